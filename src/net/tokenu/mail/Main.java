@@ -3,12 +3,22 @@ package net.tokenu.mail;
 import com.commons.*;
 import net.tokenu.mail.service.Microsoft;
 import net.tokenu.mail.ui.EmailClientGUI;
+import net.tokenu.mail.util.FileWatcher;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class Main {
-    public static RandomPickerType<String> proxies;
+    // Replaced as a whole when proxies.txt changes, sessions keep the proxy they picked
+    public static volatile RandomPickerType<String> proxies;
+    private static final List<String> proxyLines = new ArrayList<>();
     static {
         try {
-            proxies = RandomPickerType.create(FileUtil.readAllLines("proxies.txt"));
+            proxyLines.addAll(FileUtil.readAllLines("proxies.txt"));
+            proxies = RandomPickerType.create(new ArrayList<>(proxyLines));
             if (proxies.isEmpty()) {
                 LogUtil.error("No proxies found, it's recommended to use proxies.");
             }
@@ -17,6 +27,39 @@ public class Main {
         }
     }
 
+    /**
+     * Picks up proxies added to proxies.txt while the program runs.
+     */
+    private static void watchProxies() {
+        try {
+            FileWatcher.watch(Paths.get("proxies.txt"), new FileWatcher.Listener() {
+                @Override
+                public void appended(Path file, long from, long to) throws Exception {
+                    List<String> added = FileWatcher.readLines(file, from, to);
+                    synchronized (proxyLines) {
+                        proxyLines.addAll(added);
+                        proxies = RandomPickerType.create(new ArrayList<>(proxyLines));
+                    }
+                    LogUtil.log("proxies.txt: " + added.size() + " proxies added");
+                }
+
+                @Override
+                public void replaced(Path file) throws Exception {
+                    List<String> lines = FileUtil.readAllLines(file.toString());
+                    synchronized (proxyLines) {
+                        proxyLines.clear();
+                        proxyLines.addAll(lines);
+                        proxies = RandomPickerType.create(new ArrayList<>(proxyLines));
+                    }
+                    LogUtil.log("proxies.txt reloaded: " + lines.size() + " proxies");
+                }
+            });
+        }
+        catch (Exception e) {
+            LogUtil.warning("proxies.txt won't be reloaded when it changes: " + e.getMessage());
+        }
+    }
+
     public static void main(String[] args) {
         System.out.printf("Trying to start program with Java %s%s%n%n", System.getProperty("java.version"), ConsoleColors.RESET);
         if (!System.getProperty("java.version").contains("1.8.0")){
@@ -26,16 +69,21 @@ public class Main {
             return;
         }
 
+        watchProxies();
+
         // Check if command-line arguments are provided
         if (args.length > 0 && args[0].equalsIgnoreCase("--cli")) {
             // Run the command-line version
             try {
-                Microsoft.main(new String[0]);
+                Microsoft.main(Arrays.copyOfRange(args, 1, args.length));
             } catch (Exception e) {
                 System.err.println("Error running command-line version: " + e.getMessage());
                 ThrowableUtil.println(e);
             }
         } else {
+            for (int i = 0; i + 1 < args.length; i++) {
+                if (args[i].equalsIgnoreCase("--db")) Microsoft.database = args[i + 1];
+            }
             // Run the GUI version
             EmailClientGUI.main(args);
         }
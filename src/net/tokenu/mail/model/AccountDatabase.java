@@ -0,0 +1,456 @@
+package net.tokenu.mail.model;
+
+import net.tokenu.mail.util.AuthType;
+import net.tokenu.mail.util.Format;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Binary account database, memory-mapped, as an alternative to parsing emails.txt on every start.
+ * Opening it only maps the file, an account is found through the email index without a scan,
+ * and refreshed tokens are written into the account's record in place.
+ * <p>
+ * Layout, all numbers big-endian:
+ * <pre>
+ * header   64 bytes: magic, version, account count, slot count, end of the records, imported Format,
+ *          first free extent
+ * rows     long per account: offset of its record
+ * slots    int per slot: row + 1 by email hash (open addressing, at most half full), 0 is empty
+ * records  hash, email, password, client id (int length, -1 for null, then UTF-8),
+ *          expiresIn, type, then the refresh and the access token: int capacity, int length, capacity bytes
+ * </pre>
+ * Tokens get spare capacity so a refresh usually fits; a token that doesn't fit moves the record to a free extent
+ * or the end. The extent it leaves is freed: free extents form a list through the file (int length, long next),
+ * and records are cut from the end of the first one that is large enough.
+ * The file is mapped in 1GB segments that records never cross.
+ * <p>
+ * The accounts are fixed when the database is imported, the rows and the email index have no room for more.
+ * Accounts added to the accounts file later need a new import.
+ */
+public class AccountDatabase extends AccountStore implements Closeable {
+    private static final int MAGIC = 0x4D434442; // "MCDB"
+    private static final int VERSION = 1;
+    private static final int HEADER = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int COUNT_OFFSET = 8;
+    private static final int SLOTS_OFFSET = 12;
+    private static final int END_OFFSET = 16;
+    private static final int FORMAT_OFFSET = 24;
+    private static final int FREE_OFFSET = 32;
+    // Length and next offset of a free extent, smaller remainders aren't split off
+    private static final int MIN_FREE = 12;
+
+    private static final long SEGMENT = 1L << 30;
+    // The mapping of the last segment grows in steps of this
+    private static final long GROWTH = 64L << 20;
+    // Room for a token of an OAuth account, access tokens of personal accounts are 1-2KB
+    private static final int MIN_TOKEN_CAPACITY = 2048;
+
+    private final FileChannel channel;
+    private final int count;
+    private final int slotCount;
+    private final long slotsOffset;
+    private final Format format;
+    private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private long end;
+
+    private AccountDatabase(FileChannel channel, int count, int slotCount, Format format, long end) throws IOException {
+        this.channel = channel;
+        this.count = count;
+        this.slotCount = slotCount;
+        this.slotsOffset = HEADER + 8L * count;
+        this.format = format;
+        this.end = end;
+        ensureMapped(Math.max(end, channel.size()));
+    }
+
+    /**
+     * Maps an existing database. Nothing is read besides the header.
+     *
+     * @throws IOException If the file isn't an account database or its import didn't finish
+     */
+    public static AccountDatabase open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) ;
+            if (header.hasRemaining() || header.getInt(MAGIC_OFFSET) != MAGIC) {
+                throw new IOException(path + " is not an account database or its import didn't finish");
+            }
+            if (header.getInt(VERSION_OFFSET) != VERSION) {
+                throw new IOException(path + " has version " + header.getInt(VERSION_OFFSET) + ", expected " + VERSION);
+            }
+            return new AccountDatabase(channel, header.getInt(COUNT_OFFSET), header.getInt(SLOTS_OFFSET),
+                    Format.values()[header.get(FORMAT_OFFSET)], header.getLong(END_OFFSET));
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a database with the accounts, replacing the file if it exists.
+     *
+     * @param format The format the accounts were read from, the default for exporting them again
+     */
+    public static AccountDatabase create(Path path, Collection<EmailAccount> accounts, Format format) throws IOException {
+        int count = accounts.size();
+        int slotCount = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) * 2;
+        long recordsOffset = (HEADER + 8L * count + 4L * slotCount + 7) & ~7L;
+        if (recordsOffset > SEGMENT) throw new IOException("Too many accounts for one database: " + count);
+
+        Files.deleteIfExists(path);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        AccountDatabase database;
+        try {
+            database = new AccountDatabase(channel, count, slotCount, format, recordsOffset);
+            int row = 0;
+            for (EmailAccount account : accounts) {
+                database.insert(row++, account);
+            }
+
+            // The magic goes in last, a file whose import was cut off can't be opened
+            ByteBuffer header = database.segments[0];
+            header.putInt(VERSION_OFFSET, VERSION);
+            header.putInt(COUNT_OFFSET, count);
+            header.putInt(SLOTS_OFFSET, slotCount);
+            header.put(FORMAT_OFFSET, (byte) format.ordinal());
+            database.force();
+            header.putInt(MAGIC_OFFSET, MAGIC);
+            database.force();
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return database;
+    }
+
+    /**
+     * @return The format the accounts were imported from
+     */
+    public Format getFormat() {
+        return format;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public synchronized int indexOf(String email) {
+        if (email == null) return -1;
+        byte[] key = encode(email);
+        int hash = hash(key);
+        int mask = slotCount - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int row = segments[0].getInt((int) (slotsOffset + 4L * slot)) - 1;
+            if (row < 0) return -1;
+            long offset = offsetOf(row);
+            ByteBuffer segment = segment(offset);
+            int position = position(offset);
+            if (segment.getInt(position) == hash && equals(segment, position + 4, key)) return row;
+        }
+    }
+
+    @Override
+    synchronized String get(int column, int row) {
+        long offset = offsetOf(row);
+        ByteBuffer segment = segment(offset);
+        int position = position(offset);
+        if (column == REFRESH_TOKEN || column == ACCESS_TOKEN) {
+            return decode(readToken(segment, tokenPosition(segment, position, column)));
+        }
+        // Email, password and client id follow the hash in column order
+        position += 4;
+        for (int i = EMAIL; i < column; i++) {
+            position = skipString(segment, position);
+        }
+        return decode(readString(segment, position));
+    }
+
+    @Override
+    synchronized long getExpiresIn(int row) {
+        long offset = offsetOf(row);
+        return segment(offset).getLong(fixedPosition(segment(offset), position(offset)));
+    }
+
+    @Override
+    synchronized AuthType getType(int row) {
+        long offset = offsetOf(row);
+        return TYPES[segment(offset).get(fixedPosition(segment(offset), position(offset)) + 8)];
+    }
+
+    @Override
+    synchronized void setType(int row, AuthType type) {
+        long offset = offsetOf(row);
+        segment(offset).put(fixedPosition(segment(offset), position(offset)) + 8, (byte) type.ordinal());
+    }
+
+    @Override
+    synchronized void updateTokens(int row, String refreshToken, String accessToken, long expiresIn, AuthType type) {
+        byte[] refresh = encode(refreshToken);
+        byte[] access = encode(accessToken);
+        long offset = offsetOf(row);
+        ByteBuffer segment = segment(offset);
+        int position = position(offset);
+        int fixed = fixedPosition(segment, position);
+        int refreshPosition = tokenPosition(segment, position, REFRESH_TOKEN);
+        int accessPosition = tokenPosition(segment, position, ACCESS_TOKEN);
+
+        if (length(refresh) > segment.getInt(refreshPosition) || length(access) > segment.getInt(accessPosition)) {
+            // Doesn't fit, write the whole record again elsewhere and free this one once the row points there
+            int length = accessPosition + 8 + segment.getInt(accessPosition) - position;
+            try {
+                long moved = append(segment.getInt(position), readString(segment, position + 4),
+                        readString(segment, skipString(segment, position + 4)),
+                        readString(segment, skipString(segment, skipString(segment, position + 4))),
+                        expiresIn, type, refresh, access);
+                segments[0].putLong(HEADER + 8 * row, moved);
+            }
+            catch (IOException e) {
+                throw new IllegalStateException("Can't grow " + this, e);
+            }
+            free(offset, length);
+            return;
+        }
+
+        writeToken(segment, refreshPosition, refresh);
+        writeToken(segment, accessPosition, access);
+        segment.putLong(fixed, expiresIn);
+        segment.put(fixed + 8, (byte) type.ordinal());
+    }
+
+    @Override
+    synchronized int hashOf(int row) {
+        long offset = offsetOf(row);
+        return segment(offset).getInt(position(offset));
+    }
+
+    @Override
+    synchronized byte[] getEmailBytes(int row) {
+        long offset = offsetOf(row);
+        return readString(segment(offset), position(offset) + 4);
+    }
+
+    /**
+     * Writes changed pages to disk. Tokens are written to the mapping right away, the OS writes them
+     * out eventually even without this.
+     */
+    public synchronized void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    private void insert(int row, EmailAccount account) throws IOException {
+        byte[] email = encode(account.getEmail());
+        int hash = hash(email);
+        int mask = slotCount - 1;
+        int slot = hash & mask;
+        while (segments[0].getInt((int) (slotsOffset + 4L * slot)) != 0) {
+            if (Arrays.equals(getEmailBytes(segments[0].getInt((int) (slotsOffset + 4L * slot)) - 1), email)) {
+                throw new IllegalArgumentException("Duplicate account " + account.getEmail());
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        long offset = append(hash, email, encode(account.getPassword()), encode(account.getClientId()),
+                account.getExpiresIn(), account.getType(),
+                encode(account.getRefreshToken()), encode(account.getAccessToken()));
+        segments[0].putLong(HEADER + 8 * row, offset);
+        segments[0].putInt((int) (slotsOffset + 4L * slot), row + 1);
+    }
+
+    private long append(int hash, byte[] email, byte[] password, byte[] clientId, long expiresIn, AuthType type,
+                        byte[] refreshToken, byte[] accessToken) throws IOException {
+        int refreshCapacity = capacity(refreshToken, type);
+        int accessCapacity = capacity(accessToken, type);
+        int length = 4 + 4 + length(email) + 4 + length(password) + 4 + length(clientId) + 8 + 1
+                + 8 + refreshCapacity + 8 + accessCapacity;
+
+        long offset = reuse(length);
+        if (offset == 0) {
+            offset = end;
+            if (offset / SEGMENT != (offset + length - 1) / SEGMENT) offset = (offset / SEGMENT + 1) * SEGMENT;
+            ensureMapped(offset + length);
+            end = offset + length;
+            segments[0].putLong(END_OFFSET, end);
+        }
+
+        ByteBuffer segment = segment(offset);
+        int position = position(offset);
+        segment.putInt(position, hash);
+        position = writeString(segment, position + 4, email);
+        position = writeString(segment, position, password);
+        position = writeString(segment, position, clientId);
+        segment.putLong(position, expiresIn);
+        segment.put(position + 8, (byte) type.ordinal());
+        position += 9;
+        segment.putInt(position, refreshCapacity);
+        writeToken(segment, position, refreshToken);
+        position += 8 + refreshCapacity;
+        segment.putInt(position, accessCapacity);
+        writeToken(segment, position, accessToken);
+        return offset;
+    }
+
+    /**
+     * Cuts an extent from the end of the first free one that is large enough. Extents lie within a segment,
+     * so the part cut off does as well.
+     *
+     * @return The offset of the extent, or 0 if no free extent is large enough
+     */
+    private long reuse(int length) {
+        long previous = 0;
+        for (long free = segments[0].getLong(FREE_OFFSET); free != 0; ) {
+            ByteBuffer segment = segment(free);
+            int position = position(free);
+            int freeLength = segment.getInt(position);
+            long next = segment.getLong(position + 4);
+            if (freeLength >= length + MIN_FREE) {
+                segment.putInt(position, freeLength - length);
+                return free + freeLength - length;
+            }
+            if (freeLength == length) {
+                if (previous == 0) segments[0].putLong(FREE_OFFSET, next);
+                else segment(previous).putLong(position(previous) + 4, next);
+                return free;
+            }
+            previous = free;
+            free = next;
+        }
+        return 0;
+    }
+
+    /**
+     * Adds the extent of a record no row points to anymore to the front of the free list.
+     */
+    private void free(long offset, int length) {
+        ByteBuffer segment = segment(offset);
+        int position = position(offset);
+        segment.putInt(position, length);
+        segment.putLong(position + 4, segments[0].getLong(FREE_OFFSET));
+        segments[0].putLong(FREE_OFFSET, offset);
+    }
+
+    private void ensureMapped(long limit) throws IOException {
+        int last = (int) ((limit - 1) / SEGMENT);
+        if (segments.length <= last) segments = Arrays.copyOf(segments, last + 1);
+        for (int i = 0; i <= last; i++) {
+            long base = i * SEGMENT;
+            long needed = Math.min(SEGMENT, limit - base);
+            if (segments[i] != null && segments[i].capacity() >= needed) continue;
+            long size = Math.min(SEGMENT, (needed + GROWTH - 1) / GROWTH * GROWTH);
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, base, size);
+        }
+    }
+
+    private long offsetOf(int row) {
+        if (row < 0 || row >= count) throw new IndexOutOfBoundsException("Row " + row + " of " + count);
+        return segments[0].getLong(HEADER + 8 * row);
+    }
+
+    private ByteBuffer segment(long offset) {
+        return segments[(int) (offset / SEGMENT)];
+    }
+
+    private static int position(long offset) {
+        return (int) (offset % SEGMENT);
+    }
+
+    // Position of expiresIn, after the hash and the three strings
+    private static int fixedPosition(ByteBuffer segment, int position) {
+        return skipString(segment, skipString(segment, skipString(segment, position + 4)));
+    }
+
+    private static int tokenPosition(ByteBuffer segment, int position, int column) {
+        int refresh = fixedPosition(segment, position) + 9;
+        return column == REFRESH_TOKEN ? refresh : refresh + 8 + segment.getInt(refresh);
+    }
+
+    private static int skipString(ByteBuffer segment, int position) {
+        return position + 4 + Math.max(segment.getInt(position), 0);
+    }
+
+    private static byte[] readString(ByteBuffer segment, int position) {
+        return read(segment, position + 4, segment.getInt(position));
+    }
+
+    private static byte[] readToken(ByteBuffer segment, int position) {
+        return read(segment, position + 8, segment.getInt(position + 4));
+    }
+
+    private static byte[] read(ByteBuffer segment, int position, int length) {
+        if (length < 0) return null;
+        byte[] value = new byte[length];
+        ByteBuffer view = segment.duplicate();
+        view.position(position);
+        view.get(value);
+        return value;
+    }
+
+    private static int writeString(ByteBuffer segment, int position, byte[] value) {
+        segment.putInt(position, value != null ? value.length : -1);
+        write(segment, position + 4, value);
+        return position + 4 + length(value);
+    }
+
+    // The capacity at position stays as it is. The length goes in last, so it never covers bytes that
+    // aren't written yet.
+    private static void writeToken(ByteBuffer segment, int position, byte[] value) {
+        write(segment, position + 8, value);
+        segment.putInt(position + 4, value != null ? value.length : -1);
+    }
+
+    private static void write(ByteBuffer segment, int position, byte[] value) {
+        if (value == null) return;
+        ByteBuffer view = segment.duplicate();
+        view.position(position);
+        view.put(value);
+    }
+
+    private static boolean equals(ByteBuffer segment, int position, byte[] key) {
+        int length = segment.getInt(position);
+        if (key == null) return length < 0;
+        if (length != key.length) return false;
+        for (int i = 0; i < length; i++) {
+            if (segment.get(position + 4 + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    private static int capacity(byte[] token, AuthType type) {
+        int length = length(token);
+        if (type == AuthType.IMAP_BASIC) return length;
+        return Math.max(length + length / 4, MIN_TOKEN_CAPACITY);
+    }
+
+    private static int length(byte[] value) {
+        return value != null ? value.length : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "AccountDatabase of " + count + " accounts, " + end + " bytes";
+    }
+}
@@ -0,0 +1,109 @@
+package net.tokenu.mail.model;
+
+import net.tokenu.mail.util.AuthType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Where the data of {@link EmailAccount}s lives: rows of accounts, looked up by email.
+ * An EmailAccount only holds its store and row number.
+ */
+public abstract class AccountStore {
+    static final int EMAIL = 0;
+    static final int PASSWORD = 1;
+    static final int CLIENT_ID = 2;
+    static final int REFRESH_TOKEN = 3;
+    static final int ACCESS_TOKEN = 4;
+
+    static final AuthType[] TYPES = AuthType.values();
+
+    /**
+     * Returns the store all the accounts are rows of, or copies them into a new {@link AccountTable}
+     * if they come from several stores.
+     */
+    public static AccountStore of(Collection<EmailAccount> accounts) {
+        AccountStore shared = null;
+        for (EmailAccount account : accounts) {
+            if (shared == null) shared = account.table;
+            else if (shared != account.table) {
+                shared = null;
+                break;
+            }
+        }
+        if (shared != null) return shared;
+
+        AccountTable table = new AccountTable(accounts.size());
+        for (EmailAccount account : accounts) {
+            table.add(account);
+        }
+        return table;
+    }
+
+    public abstract int size();
+
+    /**
+     * @return The row of the account with exactly this email, or -1
+     */
+    public abstract int indexOf(String email);
+
+    /**
+     * @return The account with exactly this email, or null
+     */
+    public EmailAccount find(String email) {
+        int row = indexOf(email);
+        return row >= 0 ? get(row) : null;
+    }
+
+    public EmailAccount get(int row) {
+        if (row < 0 || row >= size()) throw new IndexOutOfBoundsException("Row " + row + " of " + size());
+        return new EmailAccount(this, row);
+    }
+
+    /**
+     * @return A new list with a view of every row, in the order they were added
+     */
+    public List<EmailAccount> accounts() {
+        int count = size();
+        List<EmailAccount> accounts = new ArrayList<>(count);
+        for (int row = 0; row < count; row++) {
+            accounts.add(new EmailAccount(this, row));
+        }
+        return accounts;
+    }
+
+    abstract String get(int column, int row);
+
+    abstract long getExpiresIn(int row);
+
+    abstract AuthType getType(int row);
+
+    abstract void setType(int row, AuthType type);
+
+    abstract void updateTokens(int row, String refreshToken, String accessToken, long expiresIn, AuthType type);
+
+    abstract int hashOf(int row);
+
+    abstract byte[] getEmailBytes(int row);
+
+    boolean sameEmail(int row, AccountStore other, int otherRow) {
+        return hashOf(row) == other.hashOf(otherRow) && Arrays.equals(getEmailBytes(row), other.getEmailBytes(otherRow));
+    }
+
+    static byte[] encode(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    static String decode(byte[] value) {
+        return value != null ? new String(value, StandardCharsets.UTF_8) : null;
+    }
+
+    static int hash(byte[] key) {
+        int hash = key != null ? Arrays.hashCode(key) : 0;
+        // Spread the high bits, the slot is taken from the low ones
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,71 @@
+package net.tokenu.mail.model;
+
+import net.tokenu.mail.service.ResultWriter;
+
+/**
+ * Message counts of one account, as collected by the AccountScanner.
+ */
+public class AccountSummary {
+    private final String email;
+    private final int total;
+    private final int unread;
+    private final long lastReceived;
+    private final ResultWriter.Category failure;
+    private final long scannedAt;
+
+    public AccountSummary(String email, int total, int unread, long lastReceived) {
+        this(email, total, unread, lastReceived, null);
+    }
+
+    private AccountSummary(String email, int total, int unread, long lastReceived, ResultWriter.Category failure) {
+        this.email = email;
+        this.total = total;
+        this.unread = unread;
+        this.lastReceived = lastReceived;
+        this.failure = failure;
+        this.scannedAt = System.currentTimeMillis();
+    }
+
+    public static AccountSummary failed(String email, ResultWriter.Category failure) {
+        return new AccountSummary(email, -1, -1, 0, failure);
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    /**
+     * @return The number of messages in the scanned folders, or -1 if the scan failed
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    public int getUnread() {
+        return unread;
+    }
+
+    /**
+     * @return When the newest inbox message was received in epoch milliseconds, or 0 if unknown
+     */
+    public long getLastReceived() {
+        return lastReceived;
+    }
+
+    /**
+     * @return Why the scan failed, or null
+     */
+    public ResultWriter.Category getFailure() {
+        return failure;
+    }
+
+    public long getScannedAt() {
+        return scannedAt;
+    }
+
+    @Override
+    public String toString() {
+        if (failure != null) return email + ": " + failure;
+        return String.format("%s: %d unread / %d", email, unread, total);
+    }
+}
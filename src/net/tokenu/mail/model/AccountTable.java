@@ -0,0 +1,200 @@
+package net.tokenu.mail.model;
+
+import net.tokenu.mail.util.AuthType;
+
+import java.util.Arrays;
+
+/**
+ * Compact storage for many accounts, one array per field instead of one object per account.
+ * Strings are kept as UTF-8 byte arrays, the token expiry and auth type as primitives, and emails are indexed
+ * in an open-addressing table of row numbers, so a million accounts don't need a million HashMap entries.
+ * <p>
+ * Rows are only appended; the token fields of a row are updated in place when they're refreshed.
+ * Appending replaces the arrays when they're full, so reads synchronize on the table as well.
+ */
+public class AccountTable extends AccountStore {
+    private static final int COLUMNS = 5;
+
+    // columns[column][row], null for a null String
+    private final byte[][][] columns = new byte[COLUMNS][][];
+    private long[] expiresIn;
+    private byte[] types;
+    private int[] hashes;
+    private int size;
+
+    // Row + 1 by email hash, 0 is an empty slot. Kept at most half full.
+    private int[] slots;
+
+    public AccountTable() {
+        this(16);
+    }
+
+    /**
+     * @param capacity The expected number of accounts, the table grows past it if needed
+     */
+    public AccountTable(int capacity) {
+        capacity = Math.max(capacity, 1);
+        for (int column = 0; column < COLUMNS; column++) {
+            columns[column] = new byte[capacity][];
+        }
+        expiresIn = new long[capacity];
+        types = new byte[capacity];
+        hashes = new int[capacity];
+        slots = new int[Integer.highestOneBit(capacity * 2 - 1) * 2];
+    }
+
+    /**
+     * Appends an account.
+     *
+     * @param expiresIn When the access token expires, in epoch milliseconds
+     * @return The account, or null if the table already has an account with this email
+     */
+    public synchronized EmailAccount add(String email, String password, String clientId, String refreshToken,
+                                         String accessToken, long expiresIn, AuthType type) {
+        byte[] key = encode(email);
+        int hash = hash(key);
+        int slot = find(key, hash);
+        if (slots[slot] != 0) return null;
+
+        if (size == hashes.length) grow();
+        int row = size++;
+        columns[EMAIL][row] = key;
+        columns[PASSWORD][row] = encode(password);
+        columns[CLIENT_ID][row] = encode(clientId);
+        columns[REFRESH_TOKEN][row] = encode(refreshToken);
+        columns[ACCESS_TOKEN][row] = encode(accessToken);
+        this.expiresIn[row] = expiresIn;
+        types[row] = (byte) type.ordinal();
+        hashes[row] = hash;
+
+        slots[slot] = row + 1;
+        if (size * 2 > slots.length) rehash();
+        return new EmailAccount(this, row);
+    }
+
+    /**
+     * Appends a copy of an account, e.g. one parsed into another table.
+     *
+     * @return The copy, or null if the table already has an account with this email
+     */
+    public EmailAccount add(EmailAccount account) {
+        if (!(account.table instanceof AccountTable)) {
+            return add(account.getEmail(), account.getPassword(), account.getClientId(), account.getRefreshToken(),
+                    account.getAccessToken(), account.getExpiresIn(), account.getType());
+        }
+        AccountTable other = (AccountTable) account.table;
+        byte[][] values = new byte[COLUMNS][];
+        long expiresIn;
+        byte type;
+        int hash;
+        synchronized (other) {
+            for (int column = 0; column < COLUMNS; column++) {
+                values[column] = other.columns[column][account.row];
+            }
+            expiresIn = other.expiresIn[account.row];
+            type = other.types[account.row];
+            hash = other.hashes[account.row];
+        }
+
+        // The byte arrays are never changed, only replaced, so both tables can share them
+        synchronized (this) {
+            int slot = find(values[EMAIL], hash);
+            if (slots[slot] != 0) return null;
+
+            if (size == hashes.length) grow();
+            int row = size++;
+            for (int column = 0; column < COLUMNS; column++) {
+                columns[column][row] = values[column];
+            }
+            this.expiresIn[row] = expiresIn;
+            types[row] = type;
+            hashes[row] = hash;
+
+            slots[slot] = row + 1;
+            if (size * 2 > slots.length) rehash();
+            return new EmailAccount(this, row);
+        }
+    }
+
+    @Override
+    public synchronized int indexOf(String email) {
+        if (email == null) return -1;
+        byte[] key = encode(email);
+        return slots[find(key, hash(key))] - 1;
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    synchronized String get(int column, int row) {
+        return decode(columns[column][row]);
+    }
+
+    @Override
+    synchronized long getExpiresIn(int row) {
+        return expiresIn[row];
+    }
+
+    @Override
+    synchronized AuthType getType(int row) {
+        return TYPES[types[row]];
+    }
+
+    @Override
+    synchronized void setType(int row, AuthType type) {
+        types[row] = (byte) type.ordinal();
+    }
+
+    @Override
+    synchronized void updateTokens(int row, String refreshToken, String accessToken, long expiresIn, AuthType type) {
+        columns[REFRESH_TOKEN][row] = encode(refreshToken);
+        columns[ACCESS_TOKEN][row] = encode(accessToken);
+        this.expiresIn[row] = expiresIn;
+        types[row] = (byte) type.ordinal();
+    }
+
+    @Override
+    synchronized int hashOf(int row) {
+        return hashes[row];
+    }
+
+    @Override
+    synchronized byte[] getEmailBytes(int row) {
+        return columns[EMAIL][row];
+    }
+
+    /**
+     * @return The slot holding the email, or the empty slot it would go to
+     */
+    private int find(byte[] key, int hash) {
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int row = slots[slot] - 1;
+            if (row < 0 || (hashes[row] == hash && Arrays.equals(columns[EMAIL][row], key))) return slot;
+        }
+    }
+
+    private void grow() {
+        int capacity = hashes.length * 2;
+        for (int column = 0; column < COLUMNS; column++) {
+            columns[column] = Arrays.copyOf(columns[column], capacity);
+        }
+        expiresIn = Arrays.copyOf(expiresIn, capacity);
+        types = Arrays.copyOf(types, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+    }
+
+    private void rehash() {
+        int[] grown = new int[slots.length * 2];
+        int mask = grown.length - 1;
+        for (int row = 0; row < size; row++) {
+            int slot = hashes[row] & mask;
+            while (grown[slot] != 0) slot = (slot + 1) & mask;
+            grown[slot] = row + 1;
+        }
+        slots = grown;
+    }
+}
@@ -0,0 +1,80 @@
+package net.tokenu.mail.model;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Metadata of one attachment, read from the IMAP BODYSTRUCTURE or the Graph attachments list
+ * without downloading its content.
+ */
+public class Attachment {
+    private final String id;
+    private final String name;
+    private final String contentType;
+    private final long size;
+    private final boolean inline;
+    private String sha256;
+
+    /**
+     * @param id The IMAP part section (e.g. 2 or 1.3) or the Graph attachment id
+     * @param size The size in bytes as reported by the server, or -1 if unknown.
+     *             For IMAP this is the encoded size, base64 parts decode to about 3/4 of it.
+     */
+    public Attachment(String id, String name, String contentType, long size, boolean inline) {
+        this.id = id;
+        this.name = name;
+        this.contentType = contentType;
+        this.size = size;
+        this.inline = inline;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return true for parts shown inside the body, e.g. images referenced by cid:
+     */
+    public boolean isInline() {
+        return inline;
+    }
+
+    /**
+     * @return The hash the content is stored under in the AttachmentStore, or null if it wasn't downloaded
+     */
+    public String getSha256() {
+        return sha256;
+    }
+
+    public Attachment setSha256(String sha256) {
+        this.sha256 = sha256;
+        return this;
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", id);
+        json.addProperty("name", name);
+        json.addProperty("contentType", contentType);
+        json.addProperty("size", size);
+        json.addProperty("inline", inline);
+        if (sha256 != null) json.addProperty("sha256", sha256);
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + contentType + ", " + size + " bytes)";
+    }
+}
@@ -5,25 +5,24 @@ import com.google.gson.JsonPrimitive;
 import net.tokenu.mail.util.AuthType;
 
 import java.time.Instant;
-import java.util.Objects;
 
 /**
  * Represents an email account with authentication information.
+ * The data lives in a row of an {@link AccountStore}, this is only a view of that row.
  */
 public class EmailAccount {
-    private String email;
-    private String password;
-    private String clientId;
-    private String refreshToken;
-    private String accessToken;
-    private long expiresIn;
-
-    private AuthType type;
+    final AccountStore table;
+    final int row;
 
     private static final String refreshTokenKey = "refreshToken";
     private static final String accessTokenKey = "accessToken";
     private static final String expiresInKey = "expiresIn";
 
+    EmailAccount(AccountStore table, int row) {
+        this.table = table;
+        this.row = row;
+    }
+
     /**
      * Creates an EmailAccount from a JsonObject.
      * 
@@ -31,33 +30,40 @@ public class EmailAccount {
      * @return A new EmailAccount instance
      */
     public static EmailAccount fromJson(JsonObject jsonObj) {
-        EmailAccount account = new EmailAccount();
-
-        account.clientId = getJsonValueCaseInsensitive(jsonObj, "clientId");
-        account.email = getJsonValueCaseInsensitive(jsonObj, "email");
-        account.password = getJsonValueCaseInsensitive(jsonObj, "password");
-        account.refreshToken = getJsonValueCaseInsensitive(jsonObj, "refreshToken");
-
-        account.accessToken = (String) getJsonValueCaseInsensitive(jsonObj, accessTokenKey, null);
-        account.expiresIn = ((Number) getJsonValueCaseInsensitive(jsonObj, expiresInKey, 0)).longValue();
-
-        account.type = AuthType.valueOf(getJsonValueCaseInsensitive(jsonObj, "type", AuthType.GRAPH.toString()).toString());
+        return fromJson(jsonObj, new AccountTable(1));
+    }
 
-        if (account.refreshToken  == null) {
-            account.type = AuthType.IMAP_BASIC;
+    /**
+     * Adds an account read from a JsonObject to the table.
+     *
+     * @return The new account, or null if the table already has its email
+     */
+    public static EmailAccount fromJson(JsonObject jsonObj, AccountTable table) {
+        String refreshToken = getJsonValueCaseInsensitive(jsonObj, "refreshToken");
+        AuthType type = AuthType.valueOf(getJsonValueCaseInsensitive(jsonObj, "type", AuthType.GRAPH.toString()).toString());
+        if (refreshToken == null) {
+            type = AuthType.IMAP_BASIC;
         }
-        return account;
+
+        return table.add(
+                getJsonValueCaseInsensitive(jsonObj, "email"),
+                getJsonValueCaseInsensitive(jsonObj, "password"),
+                getJsonValueCaseInsensitive(jsonObj, "clientId"),
+                refreshToken,
+                (String) getJsonValueCaseInsensitive(jsonObj, accessTokenKey, null),
+                ((Number) getJsonValueCaseInsensitive(jsonObj, expiresInKey, 0)).longValue(),
+                type);
     }
 
     public static EmailAccount fromText(String email, String password) {
-        EmailAccount account = new EmailAccount();
-
-        account.email = email;
-        account.password = password;
-
-        account.type = AuthType.IMAP_BASIC;
+        return fromText(email, password, new AccountTable(1));
+    }
 
-        return account;
+    /**
+     * @return The new account, or null if the table already has its email
+     */
+    public static EmailAccount fromText(String email, String password, AccountTable table) {
+        return table.add(email, password, null, null, null, 0, AuthType.IMAP_BASIC);
     }
 
     /**
@@ -67,13 +73,13 @@ public class EmailAccount {
      */
     public JsonObject toJson() {
         JsonObject json = new JsonObject();
-        json.addProperty("clientId", clientId);
-        json.addProperty("email", email);
-        json.addProperty("password", password);
-        json.addProperty("refreshToken", refreshToken);
-        json.addProperty(accessTokenKey, accessToken);
-        json.addProperty(expiresInKey, expiresIn);
-        json.addProperty("type", type.name());
+        json.addProperty("clientId", getClientId());
+        json.addProperty("email", getEmail());
+        json.addProperty("password", getPassword());
+        json.addProperty("refreshToken", getRefreshToken());
+        json.addProperty(accessTokenKey, getAccessToken());
+        json.addProperty(expiresInKey, getExpiresIn());
+        json.addProperty("type", getType().name());
         return json;
     }
 
@@ -84,9 +90,7 @@ public class EmailAccount {
      * @param expiresIn The expiration time in seconds from now
      */
     public void updateAccessToken(String accessToken, long expiresIn, AuthType type) {
-        this.type = type;
-        this.accessToken = accessToken;
-        this.expiresIn = Instant.now().plusSeconds(expiresIn).toEpochMilli();
+        updateAccessToken(getRefreshToken(), accessToken, expiresIn, type);
     }
     /**
      * Updates the access token and expiration time.
@@ -95,10 +99,14 @@ public class EmailAccount {
      * @param expiresIn The expiration time in seconds from now
      */
     public void updateAccessToken(String refreshToken, String accessToken, long expiresIn, AuthType type) {
-        this.type = type;
-        this.refreshToken = refreshToken;
-        this.accessToken = accessToken;
-        this.expiresIn = Instant.now().plusSeconds(expiresIn).toEpochMilli();
+        table.updateTokens(row, refreshToken, accessToken, Instant.now().plusSeconds(expiresIn).toEpochMilli(), type);
+    }
+
+    /**
+     * Takes over the tokens of another copy of this account, e.g. one sent back by a worker.
+     */
+    public void updateTokens(EmailAccount other) {
+        table.updateTokens(row, other.getRefreshToken(), other.getAccessToken(), other.getExpiresIn(), other.getType());
     }
 
     /**
@@ -107,8 +115,8 @@ public class EmailAccount {
      * @return true if the access token is valid, false otherwise
      */
     public boolean hasValidAccessToken() {
-        if (type.equals(AuthType.IMAP_BASIC)) return true;
-        return accessToken != null && expiresIn > Instant.now().toEpochMilli();
+        if (getType().equals(AuthType.IMAP_BASIC)) return true;
+        return getAccessToken() != null && getExpiresIn() > Instant.now().toEpochMilli();
     }
 
     /**
@@ -117,44 +125,45 @@ public class EmailAccount {
      * @param jsonObj The JsonObject to update
      */
     public void updateJsonObject(JsonObject jsonObj) {
+        String accessToken = getAccessToken();
         if (accessToken == null) return;
-        jsonObj.addProperty(refreshTokenKey, refreshToken);
+        jsonObj.addProperty(refreshTokenKey, getRefreshToken());
         jsonObj.addProperty(accessTokenKey, accessToken);
-        jsonObj.addProperty(expiresInKey, expiresIn);
-        jsonObj.addProperty("type", type.name());
+        jsonObj.addProperty(expiresInKey, getExpiresIn());
+        jsonObj.addProperty("type", getType().name());
     }
 
     // Getters
     public String getEmail() {
-        return email;
+        return table.get(AccountStore.EMAIL, row);
     }
 
     public String getPassword() {
-        return password;
+        return table.get(AccountStore.PASSWORD, row);
     }
 
     public String getClientId() {
-        return clientId;
+        return table.get(AccountStore.CLIENT_ID, row);
     }
 
     public String getRefreshToken() {
-        return refreshToken;
+        return table.get(AccountStore.REFRESH_TOKEN, row);
     }
 
     public String getAccessToken() {
-        return accessToken;
+        return table.get(AccountStore.ACCESS_TOKEN, row);
     }
 
     public long getExpiresIn() {
-        return expiresIn;
+        return table.getExpiresIn(row);
     }
 
     public AuthType getType() {
-        return type;
+        return table.getType(row);
     }
 
     public void setType(AuthType type) {
-        this.type = type;
+        table.setType(row, type);
     }
 
     // Input key should be camelCase
@@ -164,12 +173,16 @@ public class EmailAccount {
         String pascalCaseKey = key.substring(0, 1).toUpperCase() + key.substring(1);
         String snakeCaseKey = toSnakeCase(key);
 
-        return jsonObject.has(key) ? jsonObject.get(key).getAsString() :
-                jsonObject.has(snakeCaseKey) ? jsonObject.get(snakeCaseKey).getAsString() :
-                        jsonObject.has(lowercaseKey) ? jsonObject.get(lowercaseKey).getAsString() :
-                                jsonObject.has(pascalCaseKey) ? jsonObject.get(pascalCaseKey).getAsString() :
+        return jsonObject.has(key) ? getAsString(jsonObject, key) :
+                jsonObject.has(snakeCaseKey) ? getAsString(jsonObject, snakeCaseKey) :
+                        jsonObject.has(lowercaseKey) ? getAsString(jsonObject, lowercaseKey) :
+                                jsonObject.has(pascalCaseKey) ? getAsString(jsonObject, pascalCaseKey) :
                                 null;
     }
+    // toJson writes null fields as JSON null, read them back as null
+    private static String getAsString(JsonObject jsonObject, String key) {
+        return jsonObject.get(key).isJsonNull() ? null : jsonObject.get(key).getAsString();
+    }
     public static Object getJsonValueCaseInsensitive(JsonObject jsonObject, String key, Object defaultValue) {
         if (jsonObject == null || key == null || key.isEmpty()) {
             return defaultValue;
@@ -214,18 +227,19 @@ public class EmailAccount {
 
     @Override
     public String toString() {
-        return email;
+        return getEmail();
     }
 
     @Override
     public boolean equals(Object o) {
         if (!(o instanceof EmailAccount)) return false;
         EmailAccount that = (EmailAccount) o;
-        return Objects.equals(email, that.email);
+        if (table == that.table) return row == that.row;
+        return table.sameEmail(row, that.table, that.row);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(email);
+        return table.hashOf(row);
     }
 }
\ No newline at end of file
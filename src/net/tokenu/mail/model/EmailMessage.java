@@ -3,14 +3,19 @@ package net.tokenu.mail.model;
 import com.commons.FileUtil;
 import com.commons.LogUtil;
 import com.commons.ThrowableUtil;
+import com.google.gson.JsonObject;
+import net.tokenu.mail.service.ImapMessageLoader;
 import net.tokenu.mail.service.MailContentExtractor;
+import net.tokenu.mail.service.Microsoft;
+import net.tokenu.mail.util.Log;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import javax.mail.*;
-import javax.mail.FolderClosedException;
 import javax.mail.internet.MimeBodyPart;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static net.tokenu.mail.service.Microsoft.lazyLoad;
@@ -27,9 +32,12 @@ public class EmailMessage {
     private String body;
     private String contentType;//html, text
     private String receivedDateTime;
+    private String folder = "INBOX";
+    private boolean hasAttachments;
+    private List<Attachment> attachments;
 
-    // Fields for lazy loading IMAP messages
-    private Message originalMessage;
+    // Where the IMAP message can be fetched again, for lazy bodies and attachments
+    private MessageReference reference;
     private AtomicBoolean bodyLoaded = new AtomicBoolean(true); // Default to true for non-IMAP messages
     private boolean isImapMessage = false;
 
@@ -46,6 +54,7 @@ public class EmailMessage {
         message.subject = jsonObject.optString("subject", "No Subject");
         message.preview = jsonObject.optString("bodyPreview", "");
         message.receivedDateTime = jsonObject.optString("receivedDateTime", "");
+        message.hasAttachments = jsonObject.optBoolean("hasAttachments");
 
         JSONObject from = jsonObject.optJSONObject("from");
         if (from != null) {
@@ -95,10 +104,10 @@ public class EmailMessage {
         try {
             // Mark as IMAP message
             emailMessage.isImapMessage = true;
+            emailMessage.reference = reference(message);
 
-            // Store original message for lazy loading if needed
-            if (lazyLoad) {
-                emailMessage.originalMessage = message;
+            // Only the reference is kept, the body is fetched again when it is needed
+            if (lazyLoad && emailMessage.reference != null) {
                 emailMessage.bodyLoaded.set(false);
             }
 
@@ -129,40 +138,14 @@ public class EmailMessage {
             }
 
             // If lazy loading is enabled, only set placeholder values for body and preview
-            if (lazyLoad) {
+            if (!emailMessage.bodyLoaded.get()) {
                 emailMessage.contentType = "text"; // Default, will be updated when loaded
                 emailMessage.body = "Loading content..."; // Will be loaded on demand
                 emailMessage.preview = "Click to load content..."; // Placeholder
             } else {
                 // Extract body and preview immediately (original behavior)
                 try {
-                    // preview (plain text content)
-                    String textContent = MailContentExtractor.getPlainTextContent(message);
-
-                    // body (HTML content) if null use (plain text content)
-                    String htmlContent = MailContentExtractor.getHtmlContent(message);
-                    emailMessage.body = htmlContent != null ? htmlContent : textContent;
-
-                    // Set content type based on whether HTML content is available
-                    emailMessage.contentType = htmlContent != null ? "html" : "text";
-
-                    // Create a preview (first % characters or less)
-                    int characters = 200;
-                    if (textContent != null && !textContent.isEmpty()) {
-                        emailMessage.preview = textContent.length() > characters ?
-                                textContent.substring(0, characters) + "..." : textContent;
-                        if (emailMessage.preview.startsWith("------")) {
-                            emailMessage.preview = emailMessage.preview.replaceAll("--+", "");
-                        }
-                        if (emailMessage.preview.contains("\n")||emailMessage.preview.contains("\r")) {
-                            emailMessage.preview = emailMessage.preview.replaceAll("[\\n\\r]+", "⏎");
-                            emailMessage.preview = emailMessage.preview.replaceAll("⏎+", "⏎");
-                            if (emailMessage.preview.startsWith("⏎"))
-                                emailMessage.preview = emailMessage.preview.replaceAll("^⏎+", "");
-                        }
-                    } else {
-                        emailMessage.preview = "No preview available";
-                    }
+                    emailMessage.readContent(message);
                 } catch (Exception e) {
                     ThrowableUtil.println(e);
                     emailMessage.body = "Error retrieving message content";
@@ -181,6 +164,74 @@ public class EmailMessage {
         return fromIMAP(message, lazyLoad);
     }
 
+    // The user name the store was connected with is the email address, for both XOAUTH2 and LOGIN
+    private static MessageReference reference(Message message) throws MessagingException {
+        Folder folder = message.getFolder();
+        if (!(folder instanceof UIDFolder) || folder.getStore().getURLName() == null) return null;
+        UIDFolder uidFolder = (UIDFolder) folder;
+        return new MessageReference(folder.getStore().getURLName().getUsername(), folder.getFullName(),
+                uidFolder.getUIDValidity(), uidFolder.getUID(message));
+    }
+
+    /**
+     * Reads body, content type, preview and attachment list from the message.
+     */
+    private void readContent(Message message) throws MessagingException, IOException {
+        // preview (plain text content)
+        String textContent = MailContentExtractor.getPlainTextContent(message);
+
+        // body (HTML content) if null use (plain text content)
+        String htmlContent = MailContentExtractor.getHtmlContent(message);
+        body = htmlContent != null ? htmlContent : textContent;
+
+        // Set content type based on whether HTML content is available
+        contentType = htmlContent != null ? "html" : "text";
+
+        // Attachments are listed from BODYSTRUCTURE, which loading the body fetched anyway
+        attachments = MailContentExtractor.getAttachments(message);
+        hasAttachments = !attachments.isEmpty();
+
+        // Create a preview (first % characters or less)
+        int characters = 200;
+        if (textContent != null && !textContent.isEmpty()) {
+            preview = textContent.length() > characters ?
+                    textContent.substring(0, characters) + "..." : textContent;
+            if (preview.startsWith("------")) {
+                preview = preview.replaceAll("--+", "");
+            }
+            if (preview.contains("\n") || preview.contains("\r")) {
+                preview = preview.replaceAll("[\\n\\r]+", "⏎");
+                preview = preview.replaceAll("⏎+", "⏎");
+                if (preview.startsWith("⏎"))
+                    preview = preview.replaceAll("^⏎+", "");
+            }
+        } else {
+            preview = "No preview available";
+        }
+    }
+
+    /**
+     * Converts this EmailMessage to a JsonObject.
+     *
+     * @param withBody Whether to include the body, which loads it for lazy IMAP messages
+     * @return JsonObject containing the message data
+     */
+    public JsonObject toJson(boolean withBody) {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", id);
+        json.addProperty("subject", subject);
+        json.addProperty("from", from);
+        json.addProperty("to", to);
+        json.addProperty("receivedDateTime", receivedDateTime);
+        json.addProperty("folder", folder);
+        json.addProperty("preview", preview);
+        if (withBody) {
+            json.addProperty("contentType", getContentType());
+            json.addProperty("body", getBody());
+        }
+        return json;
+    }
+
     // Getters
     public String getId() {
         return id;
@@ -215,7 +266,8 @@ public class EmailMessage {
 
     /**
      * Loads the body and preview content if they haven't been loaded yet.
-     * This is used for lazy loading IMAP messages.
+     * This is used for lazy loading IMAP messages, which are fetched again by their reference
+     * on a connection that is opened if needed.
      */
     private synchronized void loadBodyIfNeeded() {
         // If this is not an IMAP message or the body is already loaded, do nothing
@@ -223,65 +275,124 @@ public class EmailMessage {
             return;
         }
 
-        // Try to load the body and preview
         try {
-            if (originalMessage != null) {
-                System.out.println("Loading body: " + getSubject());
-
-                // preview (plain text content)
-                String textContent = MailContentExtractor.getPlainTextContent(originalMessage);
-
-                // body (HTML content) if null use (plain text content)
-                String htmlContent = MailContentExtractor.getHtmlContent(originalMessage);
-                body = htmlContent != null ? htmlContent : textContent;
-
-                // Set content type based on whether HTML content is available
-                contentType = htmlContent != null ? "html" : "text";
-
-                // Create a preview (first % characters or less)
-                int characters = 200;
-                if (textContent != null && !textContent.isEmpty()) {
-                    preview = textContent.length() > characters ?
-                            textContent.substring(0, characters) + "..." : textContent;
-                    if (preview.startsWith("------")) {
-                        preview = preview.replaceAll("--+", "");
-                    }
-                    if (preview.contains("\n") || preview.contains("\r")) {
-                        preview = preview.replaceAll("[\\n\\r]+", "⏎");
-                        preview = preview.replaceAll("⏎+", "⏎");
-                        if (preview.startsWith("⏎"))
-                            preview = preview.replaceAll("^⏎+", "");
-                    }
-                } else {
-                    preview = "No preview available";
-                }
-
-                // Mark as loaded
-                bodyLoaded.set(true);
-
-                // Clear the reference to the original message to free memory
-                originalMessage = null;
-            }
-        } catch (FolderClosedException e) {
-            LogUtil.warning("Folder closed, cannot load message content: " + e.getMessage());
-            body = "<p><i>Cannot load content - the email connection was closed. Please refresh or select a different account.</i></p>";
-            preview = "Content unavailable - folder closed";
+            Log.debug("Loading body: %s", subject);
+            ImapMessageLoader.load(reference, message -> {
+                readContent(message);
+                return null;
+            });
+            bodyLoaded.set(true);
+        } catch (MessageRemovedException e) {
+            LogUtil.warning("Cannot load message content: " + e.getMessage());
+            body = "<p><i>Cannot load content - the message no longer exists on the server.</i></p>";
+            preview = "Content unavailable - message deleted";
             contentType = "html";
             bodyLoaded.set(true); // Mark as loaded to prevent repeated attempts
-            originalMessage = null; // Clear reference to avoid further attempts
         } catch (Exception e) {
+            // Not marked as loaded, the next call tries again
             ThrowableUtil.println(e);
             body = "Error retrieving message content";
             preview = "Error retrieving message content";
-            bodyLoaded.set(true); // Mark as loaded to prevent repeated attempts
-            originalMessage = null; // Clear reference to avoid further attempts
         }
     }
 
+    /**
+     * Loads the body of a lazy IMAP message from the message it was listed from, while that message's folder
+     * is still open, instead of fetching it again on another connection later.
+     */
+    public synchronized void loadBody(Message message) {
+        if (!isImapMessage || bodyLoaded.get()) return;
+        try {
+            readContent(message);
+            bodyLoaded.set(true);
+        } catch (Exception e) {
+            // Not marked as loaded, getBody tries again by the reference
+            ThrowableUtil.println(e);
+        }
+    }
+
+    /**
+     * @return The attachments, loading the body of a lazy IMAP message first,
+     * or null for a Graph message whose attachments weren't listed yet
+     */
+    public List<Attachment> getAttachments() {
+        loadBodyIfNeeded();
+        return attachments;
+    }
+
+    public EmailMessage setAttachments(List<Attachment> attachments) {
+        this.attachments = attachments;
+        this.hasAttachments = !attachments.isEmpty();
+        return this;
+    }
+
+    /**
+     * @return Whether the message has attachments, as far as known without loading its body
+     */
+    public boolean hasAttachments() {
+        return hasAttachments;
+    }
+
+    /**
+     * Streams the decoded content of an IMAP attachment. The message is fetched again by its reference,
+     * the connection is held until the reader returns.
+     *
+     * @param attachment One of {@link #getAttachments()}
+     * @param reader Reads the content, which is closed afterwards
+     * @return What the reader returned
+     * @throws Exception If the message is not an IMAP message or the content can't be read
+     */
+    public <T> T readAttachment(Attachment attachment, Microsoft.StreamReader<T> reader) throws Exception {
+        if (reference == null) throw new MessagingException("Only IMAP attachments are read from the message");
+        return ImapMessageLoader.load(reference, message -> {
+            try (InputStream in = MailContentExtractor.getPart(message, attachment.getId()).getInputStream()) {
+                return reader.read(in);
+            }
+        });
+    }
+
+    /**
+     * @return Where the IMAP message can be fetched again, or null for Graph messages
+     */
+    public MessageReference getReference() {
+        return reference;
+    }
+
     public String getReceivedDateTime() {
         return receivedDateTime;
     }
 
+    /**
+     * @return The IMAP folder name or Graph folder the message was fetched from, INBOX by default
+     */
+    public String getFolder() {
+        return folder;
+    }
+
+    public EmailMessage setFolder(String folder) {
+        this.folder = folder;
+        return this;
+    }
+
+    /**
+     * @return false for a lazy IMAP message whose body hasn't been loaded yet
+     */
+    public boolean isBodyLoaded() {
+        return bodyLoaded.get();
+    }
+
+    /**
+     * Drops the loaded body of a lazy IMAP message to free its memory, it is fetched again when it is needed.
+     * The preview is kept.
+     */
+    public synchronized void unloadBody() {
+        if (!isImapMessage || reference == null || !bodyLoaded.get()) return;
+        body = "Loading content...";
+        contentType = "text";
+        attachments = null;
+        bodyLoaded.set(false);
+    }
+
     @Override
     public String toString() {
         loadBodyIfNeeded();
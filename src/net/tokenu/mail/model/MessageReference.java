@@ -0,0 +1,43 @@
+package net.tokenu.mail.model;
+
+/**
+ * Where an IMAP message can be fetched again: the account, folder, UIDVALIDITY and UID.
+ * Unlike a JavaMail Message it doesn't need the connection it was listed on to stay open.
+ */
+public class MessageReference {
+    private final String email;
+    private final String folder;
+    private final long uidValidity;
+    private final long uid;
+
+    public MessageReference(String email, String folder, long uidValidity, long uid) {
+        this.email = email;
+        this.folder = folder;
+        this.uidValidity = uidValidity;
+        this.uid = uid;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    /**
+     * @return The full name of the IMAP folder
+     */
+    public String getFolder() {
+        return folder;
+    }
+
+    public long getUidValidity() {
+        return uidValidity;
+    }
+
+    public long getUid() {
+        return uid;
+    }
+
+    @Override
+    public String toString() {
+        return email + "/" + folder + ";UIDVALIDITY=" + uidValidity + "/;UID=" + uid;
+    }
+}
@@ -0,0 +1,64 @@
+package net.tokenu.mail.model;
+
+import com.google.gson.JsonObject;
+
+/**
+ * A value extracted from a message by a rule, e.g. a verification code or a confirmation link.
+ */
+public class RuleMatch {
+    private final String email;
+    private final String messageId;
+    private final String rule;
+    private final String value;
+    private final String subject;
+    private final String receivedDateTime;
+
+    public RuleMatch(String email, EmailMessage message, String rule, String value) {
+        this.email = email;
+        this.messageId = message.getId();
+        this.rule = rule;
+        this.value = value;
+        this.subject = message.getSubject();
+        this.receivedDateTime = message.getReceivedDateTime();
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("email", email);
+        json.addProperty("messageId", messageId);
+        json.addProperty("rule", rule);
+        json.addProperty("value", value);
+        json.addProperty("subject", subject);
+        json.addProperty("receivedDateTime", receivedDateTime);
+        return json;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public String getRule() {
+        return rule;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getReceivedDateTime() {
+        return receivedDateTime;
+    }
+
+    @Override
+    public String toString() {
+        return email + " " + rule + ": " + value;
+    }
+}
@@ -0,0 +1,425 @@
+package net.tokenu.mail.service;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.tokenu.mail.model.AccountTable;
+import net.tokenu.mail.model.EmailAccount;
+import net.tokenu.mail.util.AuthType;
+import net.tokenu.mail.util.Format;
+import net.tokenu.mail.util.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Parses an accounts file in parallel: the file is memory-mapped, split into chunks that end at a line break,
+ * and the chunks are parsed on a fork/join pool, so a large file is read about as fast as the disk allows.
+ * <p>
+ * Every line is validated. Lines that can't be used (malformed JSON, missing fields, no email, duplicates,
+ * a line of 2 GB or more) are skipped and reported with their line number instead of stopping the import.
+ */
+public class AccountFileParser {
+    // Threads parsing chunks at the same time
+    public static int THREADS = Runtime.getRuntime().availableProcessors();
+    // Chunks are split until they're at most this long
+    public static int CHUNK_SIZE = 16 * 1024 * 1024;
+    // A chunk is read into one byte array, a longer line is skipped with an error
+    private static final long MAX_LINE = Integer.MAX_VALUE - 8;
+
+    public static class LineError {
+        private final long line;
+        private final String message;
+
+        LineError(long line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+
+        /**
+         * @return The line number, starting at 1
+         */
+        public long getLine() {
+            return line;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return "Line " + line + ": " + message;
+        }
+    }
+
+    public static class Result {
+        private final Format format;
+        private final long lines;
+        private final List<EmailAccount> accounts;
+        private final List<LineError> errors;
+
+        Result(Format format, long lines, List<EmailAccount> accounts, List<LineError> errors) {
+            this.format = format;
+            this.lines = lines;
+            this.accounts = accounts;
+            this.errors = errors;
+        }
+
+        /**
+         * @return The format detected from the first line, null for an empty file
+         */
+        public Format getFormat() {
+            return format;
+        }
+
+        public long getLines() {
+            return lines;
+        }
+
+        /**
+         * @return The accounts in file order, rows of one AccountTable
+         */
+        public List<EmailAccount> getAccounts() {
+            return accounts;
+        }
+
+        /**
+         * @return The lines that were skipped, in file order
+         */
+        public List<LineError> getErrors() {
+            return errors;
+        }
+    }
+
+    /**
+     * Parses an accounts file in any of the {@link Format}s.
+     *
+     * @throws IOException If the file can't be read or the first line is in no known format
+     */
+    public static Result parse(String fileName) throws IOException {
+        return parse(fileName, 0, -1);
+    }
+
+    /**
+     * Parses the lines in a byte range of an accounts file, e.g. the lines appended since it was loaded.
+     * Line numbers in the errors count from the start of the range.
+     *
+     * @param from Start of a line
+     * @param to End of the range, -1 for the end of the file
+     */
+    public static Result parse(String fileName, long from, long to) throws IOException {
+        Path path = Paths.get(fileName);
+        long started = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long end = to < 0 ? channel.size() : Math.min(to, channel.size());
+            long size = Math.max(end - from, 0);
+            Format format = detectFormat(channel, from, size);
+            if (format == null) return new Result(null, 0, new ArrayList<>(), new ArrayList<>());
+
+            List<Chunk> chunks;
+            ForkJoinPool pool = new ForkJoinPool(THREADS);
+            try {
+                chunks = pool.invoke(new ChunkTask(channel, format, from, end));
+            }
+            finally {
+                pool.shutdown();
+            }
+
+            // Chunks are merged in file order so line numbers and "first one wins" for duplicates hold
+            AccountTable table = new AccountTable(chunks.stream().mapToInt(chunk -> chunk.table.size()).sum());
+            List<LineError> errors = new ArrayList<>();
+            long lines = 0;
+            for (Chunk chunk : chunks) {
+                for (LineError error : chunk.errors) {
+                    errors.add(new LineError(lines + error.line, error.message));
+                }
+                List<EmailAccount> accounts = chunk.table.accounts();
+                for (int i = 0; i < accounts.size(); i++) {
+                    if (table.add(accounts.get(i)) == null) {
+                        errors.add(new LineError(lines + chunk.lineOfRow[i], "Duplicate of an earlier line: " + accounts.get(i).getEmail()));
+                    }
+                }
+                lines += chunk.lines;
+            }
+            // Errors found while merging come after those of their chunk, put them back in line order
+            errors.sort((a, b) -> Long.compare(a.line, b.line));
+
+            Metrics.add("accounts.parse.bytes", size);
+            Metrics.time("accounts.parse", (System.nanoTime() - started) / 1_000_000);
+            return new Result(format, lines, table.accounts(), errors);
+        }
+    }
+
+    /**
+     * @param line The first line of a file that isn't empty, trimmed
+     * @return The format of the file, or null if it's in no known format
+     */
+    public static Format detectFormat(String line) {
+        if (line.startsWith("[")) return Format.ARRAY;
+        if (line.startsWith("{")) return Format.OBJECT_LIST;
+        if (line.contains(":")) return Format.COLON_SEPARATED;
+        if (line.contains("----")) return Format.DASH_SEPARATED;
+        return null;
+    }
+
+    /**
+     * Reads one line the way {@link #parse} does, for code that goes through a file line by line
+     * (e.g. to rewrite it). The accounts aren't checked for duplicates.
+     *
+     * @param line A trimmed line that isn't empty
+     * @return The accounts of the line, more than one for a line of an ARRAY file
+     * @throws RuntimeException If parse would skip the line: malformed JSON, missing fields or no email
+     */
+    public static List<JsonObject> parseLine(Format format, String line) {
+        List<JsonObject> accounts = new ArrayList<>(1);
+        switch (format) {
+            case ARRAY:
+                for (JsonElement element : JsonParser.parseString(line).getAsJsonArray()) {
+                    accounts.add(validate(element.getAsJsonObject()));
+                }
+                break;
+            case OBJECT_LIST:
+                accounts.add(validate(JsonParser.parseString(line).getAsJsonObject()));
+                break;
+            case COLON_SEPARATED:
+                accounts.add(separatedJson(fields(line, ":"), 3, 2));
+                break;
+            case DASH_SEPARATED:
+                accounts.add(separatedJson(fields(line, "----"), 2, 3));
+                break;
+        }
+        return accounts;
+    }
+
+    private static Format detectFormat(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, 64 * 1024));
+        while (buffer.hasRemaining() && channel.read(buffer, from + buffer.position()) > 0) ;
+        String start = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+        for (String line : start.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            Format format = detectFormat(line);
+            if (format == null) throw new IOException("Unsupported format");
+            return format;
+        }
+        return null;
+    }
+
+    // Same JSON as EmailAccount.fromJson reads
+    private static JsonObject separatedJson(List<String> fields, int clientIdIndex, int refreshTokenIndex) {
+        JsonObject json = new JsonObject();
+        json.addProperty("email", fields.get(0));
+        json.addProperty("password", fields.get(1));
+        if (fields.size() > 2) {
+            json.addProperty("clientId", fields.get(clientIdIndex));
+            json.addProperty("refreshToken", fields.get(refreshTokenIndex));
+        }
+        return json;
+    }
+
+    /**
+     * Splits a line of a separated format and checks the number of fields and the email.
+     */
+    private static List<String> fields(String line, String separator) {
+        List<String> fields = split(line, separator);
+        if (fields.size() != 2 && fields.size() < 4) {
+            throw new IllegalArgumentException("Expected 2 or 4 fields, found " + fields.size());
+        }
+        checkEmail(fields.get(0));
+        return fields;
+    }
+
+    private static JsonObject validate(JsonObject json) {
+        checkEmail(EmailAccount.getJsonValueCaseInsensitive(json, "email"));
+        return json;
+    }
+
+    private static void checkEmail(String email) {
+        if (email == null || email.isEmpty()) throw new IllegalArgumentException("No email");
+        if (email.indexOf('@') <= 0) throw new IllegalArgumentException("Not an email: " + email);
+    }
+
+    // String.split without the regex, trailing empty fields are dropped the same way
+    private static List<String> split(String line, String separator) {
+        List<String> fields = new ArrayList<>(4);
+        int from = 0;
+        int index;
+        while ((index = line.indexOf(separator, from)) >= 0) {
+            fields.add(line.substring(from, index));
+            from = index + separator.length();
+        }
+        fields.add(line.substring(from));
+        while (fields.size() > 1 && fields.get(fields.size() - 1).isEmpty()) {
+            fields.remove(fields.size() - 1);
+        }
+        return fields;
+    }
+
+    // The parsed part of the file between two line breaks
+    private static class Chunk {
+        final AccountTable table = new AccountTable(1024);
+        // Line of every row in table, counted from the start of the chunk
+        int[] lineOfRow = new int[1024];
+        final List<LineError> errors = new ArrayList<>();
+        int lines;
+    }
+
+    private static class ChunkTask extends RecursiveTask<List<Chunk>> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final Format format;
+        private final long start;
+        private final long end;
+
+        ChunkTask(FileChannel channel, Format format, long start, long end) {
+            this.channel = channel;
+            this.format = format;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected List<Chunk> compute() {
+            try {
+                if (end - start > CHUNK_SIZE) {
+                    long middle = nextLine(channel, start + (end - start) / 2, end);
+                    // No line break after the middle: split off the line that runs to the end instead,
+                    // so a chunk that stays longer than CHUNK_SIZE is always a single line
+                    if (middle == end) middle = lineStart(channel, start, start + (end - start) / 2);
+                    if (middle > start && middle < end) {
+                        ChunkTask left = new ChunkTask(channel, format, start, middle);
+                        ChunkTask right = new ChunkTask(channel, format, middle, end);
+                        right.fork();
+                        List<Chunk> chunks = new ArrayList<>(left.compute());
+                        chunks.addAll(right.join());
+                        return chunks;
+                    }
+                }
+                return Collections.singletonList(parse());
+            }
+            catch (IOException e) {
+                throw new IllegalStateException("Error reading accounts at byte " + start, e);
+            }
+        }
+
+        private Chunk parse() throws IOException {
+            Chunk chunk = new Chunk();
+            if (end <= start) return chunk;
+            if (end - start > MAX_LINE) {
+                // Only a single line is left in a chunk this long, see compute
+                chunk.lines = 1;
+                chunk.errors.add(new LineError(1, "Line is longer than " + MAX_LINE + " bytes"));
+                return chunk;
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            byte[] bytes = new byte[(int) (end - start)];
+            mapped.get(bytes);
+
+            int lineStart = 0;
+            for (int i = 0; i <= bytes.length; i++) {
+                if (i < bytes.length && bytes[i] != '\n') continue;
+                if (i == bytes.length && lineStart == bytes.length) break;
+                chunk.lines++;
+                String line = new String(bytes, lineStart, i - lineStart, StandardCharsets.UTF_8).trim();
+                lineStart = i + 1;
+                if (line.isEmpty()) continue;
+                try {
+                    parseLine(chunk, line);
+                }
+                catch (Exception e) {
+                    chunk.errors.add(new LineError(chunk.lines, e.getMessage() != null ? e.getMessage() : e.toString()));
+                }
+            }
+            return chunk;
+        }
+
+        private void parseLine(Chunk chunk, String line) {
+            switch (format) {
+                case ARRAY:
+                    for (JsonElement element : JsonParser.parseString(line).getAsJsonArray()) {
+                        add(chunk, EmailAccount.fromJson(validate(element.getAsJsonObject()), chunk.table));
+                    }
+                    break;
+                case OBJECT_LIST:
+                    add(chunk, EmailAccount.fromJson(validate(JsonParser.parseString(line).getAsJsonObject()), chunk.table));
+                    break;
+                case COLON_SEPARATED:
+                    addSeparated(chunk, fields(line, ":"), 3, 2);
+                    break;
+                case DASH_SEPARATED:
+                    addSeparated(chunk, fields(line, "----"), 2, 3);
+                    break;
+            }
+        }
+
+        private void addSeparated(Chunk chunk, List<String> fields, int clientIdIndex, int refreshTokenIndex) {
+            // Same result as EmailAccount.fromJson(separatedJson(...)) without building a JsonObject first
+            String clientId = fields.size() > 2 ? fields.get(clientIdIndex) : null;
+            String refreshToken = fields.size() > 2 ? fields.get(refreshTokenIndex) : null;
+            add(chunk, chunk.table.add(fields.get(0), fields.get(1), clientId, refreshToken, null, 0,
+                    refreshToken != null ? AuthType.GRAPH : AuthType.IMAP_BASIC));
+        }
+
+        private static void add(Chunk chunk, EmailAccount account) {
+            if (account == null) {
+                throw new IllegalArgumentException("Duplicate of an earlier line");
+            }
+            int row = chunk.table.size() - 1;
+            if (row == chunk.lineOfRow.length) {
+                int[] grown = new int[row * 2];
+                System.arraycopy(chunk.lineOfRow, 0, grown, 0, row);
+                chunk.lineOfRow = grown;
+            }
+            chunk.lineOfRow[row] = chunk.lines;
+        }
+    }
+
+    /**
+     * @return The position after the last line break before position, or start if there is none
+     */
+    private static long lineStart(FileChannel channel, long start, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while (position > start) {
+            int length = (int) Math.min(buffer.capacity(), position - start);
+            long from = position - length;
+            buffer.clear();
+            buffer.limit(length);
+            while (buffer.hasRemaining() && channel.read(buffer, from + buffer.position()) > 0) ;
+            for (int i = buffer.position() - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') return from + i + 1;
+            }
+            position = from;
+        }
+        return start;
+    }
+
+    /**
+     * @return The position after the first line break at or after position, or end if there is none
+     */
+    private static long nextLine(FileChannel channel, long position, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while (position < end) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) return end;
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') return Math.min(position + i + 1, end);
+            }
+            position += read;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,125 @@
+package net.tokenu.mail.service;
+
+import com.commons.LogUtil;
+import net.tokenu.mail.model.AccountStore;
+import net.tokenu.mail.model.AccountTable;
+import net.tokenu.mail.model.EmailAccount;
+import net.tokenu.mail.util.FileWatcher;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps the loaded accounts in sync with emails.txt while the program runs. Lines appended to the file are the only
+ * part parsed again; when the file is rewritten it is parsed completely and compared with the loaded accounts.
+ * <p>
+ * Only additions and removals are applied. An account that is already loaded keeps its credentials and tokens,
+ * those were possibly refreshed since and the program writes them back to the file itself. Nothing happens to the
+ * sessions of removed accounts, they are only reported to the listener.
+ */
+public class AccountReloader implements FileWatcher.Listener {
+    public interface Listener {
+        /**
+         * Called on the watcher thread, or on a thread saving the accounts file.
+         *
+         * @param added Accounts that are new in the file, or came back after being removed
+         * @param removed Loaded accounts that are no longer in the file
+         */
+        void changed(List<EmailAccount> added, List<EmailAccount> removed);
+    }
+
+    private final String fileName;
+    private final AccountTable table;
+    private final Listener listener;
+    // Rows of the table that are in the file, rows are never deleted from the table
+    private final BitSet live = new BitSet();
+
+    private AccountReloader(String fileName, AccountTable table, Listener listener) {
+        this.fileName = fileName;
+        this.table = table;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts watching the file the accounts were loaded from.
+     *
+     * @param accounts The loaded accounts, rows of one AccountTable
+     * @return The reloader, or null if the accounts don't come from an accounts file (e.g. --db)
+     */
+    public static AccountReloader watch(String fileName, List<EmailAccount> accounts, Listener listener) throws IOException {
+        AccountStore store = AccountStore.of(accounts);
+        if (!(store instanceof AccountTable) || store.size() != accounts.size()) {
+            LogUtil.warning("Accounts aren't read from " + fileName + ", it won't be reloaded when it changes");
+            return null;
+        }
+        AccountReloader reloader = new AccountReloader(fileName, (AccountTable) store, listener);
+        reloader.live.set(0, store.size());
+        FileWatcher.watch(Paths.get(fileName), reloader);
+        return reloader;
+    }
+
+    public void stop() {
+        FileWatcher.unwatch(Paths.get(fileName));
+    }
+
+    @Override
+    public void appended(Path file, long from, long to) throws IOException {
+        AccountFileParser.Result result = AccountFileParser.parse(fileName, from, to);
+        List<EmailAccount> added = new ArrayList<>();
+        synchronized (this) {
+            for (EmailAccount account : result.getAccounts()) {
+                EmailAccount loaded = merge(account);
+                if (loaded != null) added.add(loaded);
+            }
+        }
+        report(added, Collections.emptyList(), result.getErrors().size());
+    }
+
+    @Override
+    public void replaced(Path file) throws IOException {
+        AccountFileParser.Result result = AccountFileParser.parse(fileName);
+        List<EmailAccount> added = new ArrayList<>();
+        List<EmailAccount> removed = new ArrayList<>();
+        synchronized (this) {
+            BitSet present = new BitSet(table.size());
+            for (EmailAccount account : result.getAccounts()) {
+                EmailAccount loaded = merge(account);
+                if (loaded != null) added.add(loaded);
+                present.set(table.indexOf(account.getEmail()));
+            }
+            BitSet gone = (BitSet) live.clone();
+            gone.andNot(present);
+            for (int row = gone.nextSetBit(0); row >= 0; row = gone.nextSetBit(row + 1)) {
+                live.clear(row);
+                removed.add(table.get(row));
+            }
+        }
+        report(added, removed, result.getErrors().size());
+    }
+
+    /**
+     * @return The loaded account if it wasn't live before, null if nothing changed
+     */
+    private EmailAccount merge(EmailAccount account) {
+        EmailAccount loaded = table.add(account);
+        int row = table.indexOf(account.getEmail());
+        if (loaded == null) {
+            if (live.get(row)) return null;
+            loaded = table.get(row);
+        }
+        live.set(row);
+        return loaded;
+    }
+
+    private void report(List<EmailAccount> added, List<EmailAccount> removed, int errors) {
+        if (added.isEmpty() && removed.isEmpty()) return;
+        LogUtil.log(String.format("%s changed: %d accounts added, %d removed%s", fileName, added.size(), removed.size(),
+                errors > 0 ? ", " + errors + " lines skipped" : ""));
+        listener.changed(added, removed);
+    }
+}
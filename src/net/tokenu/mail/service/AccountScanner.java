@@ -0,0 +1,276 @@
+package net.tokenu.mail.service;
+
+import com.commons.LogUtil;
+import com.commons.ThrowableUtil;
+import com.sun.mail.imap.IMAPFolder;
+import net.tokenu.mail.model.AccountSummary;
+import net.tokenu.mail.model.EmailAccount;
+import net.tokenu.mail.util.AuthType;
+import net.tokenu.mail.util.Deadline;
+import net.tokenu.mail.util.InvalidAuthenticationToken;
+import net.tokenu.mail.util.Metrics;
+import org.json.JSONObject;
+
+import javax.mail.Folder;
+import javax.mail.FolderNotFoundException;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects total/unread counts of every account in the background, THREADS accounts at a time,
+ * with the cheapest calls there are: IMAP STATUS of the fetched folders without SELECTing them,
+ * Graph mailFolder unreadItemCount/totalItemCount.
+ * The time of the newest inbox message costs one more call, so it is only looked up again when the inbox changed.
+ * Graph accounts whose clientId only works with IMAP are scanned over IMAP, the same as when their messages are listed.
+ * Accounts that failed permanently before (see {@link NegativeCache}) are skipped; only a rejected login or token
+ * is recorded there, not a timeout or an unexpected error.
+ */
+public class AccountScanner {
+    public static int THREADS = 4;
+    public static long INTERVAL = TimeUnit.MINUTES.toMillis(5);
+
+    public interface Listener {
+        /**
+         * Called on a scanner thread for every scanned account.
+         */
+        void onSummary(EmailAccount account, AccountSummary summary);
+
+        /**
+         * Called after every account of a pass was scanned, e.g. to save refreshed tokens.
+         */
+        default void onFinished() {
+        }
+    }
+
+    private final List<EmailAccount> accounts;
+    private final Listener listener;
+    private final Map<String, AccountSummary> summaries = new ConcurrentHashMap<>();
+    // Inbox UIDNEXT (IMAP) or total (Graph) at the last scan, and the newest message at that point
+    private final Map<String, long[]> inboxMarks = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "account-scanner");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService workers = Executors.newFixedThreadPool(THREADS, r -> {
+        Thread thread = new Thread(r, "account-scanner-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public AccountScanner(List<EmailAccount> accounts, Listener listener) {
+        this.accounts = accounts;
+        this.listener = listener;
+    }
+
+    /**
+     * Scans every account now and then every INTERVAL.
+     */
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::scanAll, 0, INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts another pass right after the current one.
+     */
+    public void scanNow() {
+        scheduler.execute(this::scanAll);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    /**
+     * @return The last summary of the account, or null if it wasn't scanned yet
+     */
+    public AccountSummary get(EmailAccount account) {
+        return summaries.get(account.getEmail().toLowerCase());
+    }
+
+    private void scanAll() {
+        long start = System.currentTimeMillis();
+        List<Future<?>> pending = new ArrayList<>();
+        for (EmailAccount account : new ArrayList<>(accounts)) {
+            if (NegativeCache.isDead(account)) continue;
+            pending.add(workers.submit(() -> scan(account)));
+        }
+        for (Future<?> future : pending) {
+            try {
+                future.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (ExecutionException e) {
+                ThrowableUtil.println(e.getCause());
+            }
+        }
+        NegativeCache.save();
+        Metrics.time("scanner.pass", System.currentTimeMillis() - start);
+        LogUtil.log(String.format("Scanned %d accounts in %dms", pending.size(), System.currentTimeMillis() - start));
+        listener.onFinished();
+    }
+
+    /**
+     * Scans one account on the calling thread.
+     *
+     * @return The new summary, also passed to the listener
+     */
+    public AccountSummary scan(EmailAccount account) {
+        String key = account.getEmail().toLowerCase();
+        AccountSummary summary;
+        Deadline.start(Microsoft.ACCOUNT_DEADLINE);
+        try {
+            // Shared with other threads refreshing the same account
+            synchronized (account) {
+                Microsoft.refreshAccessToken(account);
+            }
+            summary = account.getType() == AuthType.GRAPH ? scanGraph(account) : scanImap(account);
+            NegativeCache.clear(account);
+            Metrics.increment("scanner.scanned");
+        }
+        catch (Exception e) {
+            ResultWriter.Category category = ResultWriter.classify(e);
+            LogUtil.warning(String.format("Scanning %s failed (%s): %s", account.getEmail(), category, e.getMessage()));
+            if (category.isAuthFailure()) NegativeCache.record(account, category);
+            summary = AccountSummary.failed(account.getEmail(), category);
+            Metrics.increment("scanner.failed");
+        }
+        finally {
+            Deadline.clear();
+        }
+
+        summaries.put(key, summary);
+        listener.onSummary(account, summary);
+        return summary;
+    }
+
+    private AccountSummary scanImap(EmailAccount account) throws Exception {
+        String email = account.getEmail();
+        boolean isOAuth = account.getType() != AuthType.IMAP_BASIC;
+        String credential = isOAuth ? account.getAccessToken() : account.getPassword();
+
+        return Governor.forKey(Microsoft.getHost(email)).call(() -> {
+            Store store = Microsoft.connectStore(email, credential, isOAuth);
+            try {
+                int total = 0;
+                int unread = 0;
+                long lastReceived = 0;
+                for (String name : MailFolders.imapFolders(email, store)) {
+                    IMAPFolder folder = (IMAPFolder) store.getFolder(name);
+                    MailFolders.Status status;
+                    try {
+                        status = MailFolders.status(folder);
+                    }
+                    catch (FolderNotFoundException e) {
+                        MailFolders.forget(email);
+                        continue;
+                    }
+                    total += status.getMessages();
+                    unread += status.getUnseen();
+
+                    if (name.equals("INBOX")) {
+                        long[] mark = inboxMarks.get(email.toLowerCase());
+                        lastReceived = mark != null && mark[0] == status.getUidNext() ? mark[1]
+                                : status.getMessages() > 0 ? newestReceived(folder) : 0;
+                        inboxMarks.put(email.toLowerCase(), new long[]{status.getUidNext(), lastReceived});
+                    }
+                }
+                return new AccountSummary(email, total, unread, lastReceived);
+            }
+            finally {
+                try {
+                    store.close();
+                }
+                catch (MessagingException ignored) {
+                }
+            }
+        });
+    }
+
+    // EXAMINE and one FETCH for the date of the newest message
+    private static long newestReceived(IMAPFolder inbox) throws MessagingException {
+        inbox.open(Folder.READ_ONLY);
+        try {
+            int count = inbox.getMessageCount();
+            if (count == 0) return 0;
+            Message newest = inbox.getMessage(count);
+            return newest.getReceivedDate() != null ? newest.getReceivedDate().getTime() : 0;
+        }
+        finally {
+            inbox.close(false);
+        }
+    }
+
+    // Falls back to IMAP OAuth like Microsoft.getInboxMessages, and remembers the path in the CapabilityRegistry
+    private AccountSummary scanGraph(EmailAccount account) throws Exception {
+        String host = Microsoft.getHost(account.getEmail());
+        if (CapabilityRegistry.isImapOnly(host, account.getClientId())) {
+            account.setType(AuthType.IMAP_OAUTH);
+            return scanImap(account);
+        }
+
+        try {
+            AccountSummary summary = scanGraphFolders(account);
+            CapabilityRegistry.recordAuth(host, account.getClientId(), AuthType.GRAPH, null);
+            return summary;
+        }
+        catch (InvalidAuthenticationToken e) {
+            // The inbox mark holds the Graph total, IMAP compares UIDNEXT
+            inboxMarks.remove(account.getEmail().toLowerCase());
+            AccountSummary summary = scanImap(account);
+            account.setType(AuthType.IMAP_OAUTH);
+            CapabilityRegistry.recordAuth(host, account.getClientId(), AuthType.IMAP_OAUTH, null);
+            return summary;
+        }
+    }
+
+    private AccountSummary scanGraphFolders(EmailAccount account) throws Exception {
+        String email = account.getEmail();
+        String accessToken = account.getAccessToken();
+
+        int total = 0;
+        int unread = 0;
+        long lastReceived = 0;
+        for (Map.Entry<String, String> folder : MailFolders.graphFolders(accessToken).entrySet()) {
+            JSONObject counts = Microsoft.getMailFolderGraphAPI(accessToken, folder.getValue());
+            int messages = counts.optInt("totalItemCount");
+            total += messages;
+            unread += counts.optInt("unreadItemCount");
+
+            if (folder.getKey().equals("INBOX")) {
+                long[] mark = inboxMarks.get(email.toLowerCase());
+                lastReceived = mark != null && mark[0] == messages ? mark[1]
+                        : parse(Microsoft.getLastReceivedGraphAPI(accessToken, folder.getValue()));
+                inboxMarks.put(email.toLowerCase(), new long[]{messages, lastReceived});
+            }
+        }
+        return new AccountSummary(email, total, unread, lastReceived);
+    }
+
+    private static long parse(String dateTime) {
+        if (dateTime == null) return 0;
+        try {
+            return Instant.parse(dateTime).toEpochMilli();
+        }
+        catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package net.tokenu.mail.service;
+
+import com.commons.LogUtil;
+import net.tokenu.mail.model.Attachment;
+import net.tokenu.mail.util.Metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content-addressed attachment files: every file is stored once under its SHA-256,
+ * as DIRECTORY/ab/abcdef..., no matter how many messages or accounts it was attached to.
+ * <p>
+ * Content is copied from the source channel to a temporary file through one fixed buffer while the hash is
+ * computed, then moved to its place, so memory use doesn't depend on the attachment size.
+ * Which message a file came from is appended to DIRECTORY/index.txt.
+ */
+public class AttachmentStore {
+    public static String DIRECTORY = "attachments";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Stores the content of a stream, which is read to the end but not closed.
+     *
+     * @return The SHA-256 of the content
+     */
+    public static String save(InputStream in) throws IOException {
+        return save(Channels.newChannel(in));
+    }
+
+    /**
+     * Stores the content of a channel, which is read to the end but not closed.
+     * If the same content is already stored the copy is dropped.
+     *
+     * @return The SHA-256 of the content
+     */
+    public static String save(ReadableByteChannel in) throws IOException {
+        Path directory = Paths.get(DIRECTORY);
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, "download-", ".part");
+        long start = System.currentTimeMillis();
+        long size = 0;
+        try {
+            MessageDigest digest = sha256();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (in.read(buffer) != -1) {
+                    buffer.flip();
+                    digest.update(buffer.duplicate());
+                    while (buffer.hasRemaining()) {
+                        size += out.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            }
+
+            String hash = hex(digest.digest());
+            Path target = path(hash);
+            if (Files.exists(target)) {
+                Metrics.increment("attachments.deduplicated");
+                return hash;
+            }
+            Files.createDirectories(target.getParent());
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (FileAlreadyExistsException e) {
+                // Another thread stored the same content first
+                Metrics.increment("attachments.deduplicated");
+                return hash;
+            }
+            Metrics.increment("attachments.stored");
+            Metrics.time("attachments.save", System.currentTimeMillis() - start);
+            return hash;
+        }
+        finally {
+            Files.deleteIfExists(temp);
+            Metrics.add("attachments.bytes", size);
+        }
+    }
+
+    /**
+     * @return Where content with this hash is stored, whether it exists or not
+     */
+    public static Path path(String sha256) {
+        return Paths.get(DIRECTORY, sha256.substring(0, 2), sha256);
+    }
+
+    public static boolean contains(String sha256) {
+        return sha256 != null && Files.exists(path(sha256));
+    }
+
+    /**
+     * Records that a stored attachment belongs to a message.
+     */
+    public static synchronized void index(String email, String messageId, Attachment attachment) {
+        String line = String.join("\t", attachment.getSha256(), email, messageId,
+                attachment.getName().replaceAll("[\\t\\r\\n]", " ")) + System.lineSeparator();
+        try {
+            Files.write(Paths.get(DIRECTORY, "index.txt"), line.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        catch (IOException e) {
+            LogUtil.warning("Could not update the attachment index: " + e.getMessage());
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,144 @@
+package net.tokenu.mail.service;
+
+import net.tokenu.mail.model.EmailMessage;
+import net.tokenu.mail.util.Metrics;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Loads lazy IMAP bodies ahead of time, for the messages around the selected one and those on screen,
+ * so opening them doesn't wait for a round-trip.
+ * <p>
+ * One thread at minimum priority loads one body at a time, and waits while an {@link #interactive} load is running.
+ * A new {@link #prefetch} replaces whatever was still pending. Prefetched bodies that weren't opened are
+ * unloaded again, oldest first, once they take more than MEMORY_BUDGET bytes.
+ */
+public class BodyPrefetcher {
+    public static long MEMORY_BUDGET = 16L * 1024 * 1024;
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "body-prefetcher");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicInteger interactive = new AtomicInteger();
+    private final Object idle = new Object();
+    // Prefetched bodies that weren't opened yet, oldest first, with their estimated size in bytes
+    private final Map<EmailMessage, Long> prefetched = new LinkedHashMap<>();
+    private long prefetchedBytes;
+
+    /**
+     * Loads the bodies of the messages in order, replacing the previous request.
+     */
+    public void prefetch(List<EmailMessage> messages) {
+        long current = generation.incrementAndGet();
+        List<EmailMessage> copy = new ArrayList<>(messages);
+        worker.execute(() -> run(current, copy));
+    }
+
+    /**
+     * Runs a load the user is waiting for. Prefetching doesn't start another load until it is done.
+     */
+    public <T> T interactive(Supplier<T> load) {
+        interactive.incrementAndGet();
+        try {
+            return load.get();
+        }
+        finally {
+            if (interactive.decrementAndGet() == 0) {
+                synchronized (idle) {
+                    idle.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * The message was opened, so its body no longer counts against the budget.
+     */
+    public synchronized void opened(EmailMessage message) {
+        Long size = prefetched.remove(message);
+        if (size != null) {
+            prefetchedBytes -= size;
+            Metrics.increment("prefetch.hit");
+        }
+    }
+
+    /**
+     * Cancels pending loads and forgets what was prefetched, e.g. when another account is shown.
+     */
+    public synchronized void clear() {
+        generation.incrementAndGet();
+        prefetched.clear();
+        prefetchedBytes = 0;
+    }
+
+    public void shutdown() {
+        generation.incrementAndGet();
+        worker.shutdownNow();
+    }
+
+    private void run(long current, List<EmailMessage> messages) {
+        for (EmailMessage message : messages) {
+            if (generation.get() != current) {
+                Metrics.increment("prefetch.cancelled");
+                return;
+            }
+            if (message.isBodyLoaded()) continue;
+            if (!awaitIdle() || generation.get() != current) return;
+
+            message.getBody();
+            // A failed load is left for the next click to retry
+            if (!message.isBodyLoaded()) continue;
+            remember(message);
+            Metrics.increment("prefetch.loaded");
+        }
+    }
+
+    private boolean awaitIdle() {
+        synchronized (idle) {
+            while (interactive.get() > 0) {
+                try {
+                    idle.wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private synchronized void remember(EmailMessage message) {
+        // Java strings take up to two bytes per character
+        long size = 2L * (length(message.getBody()) + length(message.getPreview()));
+        prefetched.put(message, size);
+        prefetchedBytes += size;
+
+        Iterator<Map.Entry<EmailMessage, Long>> iterator = prefetched.entrySet().iterator();
+        while (prefetchedBytes > MEMORY_BUDGET && iterator.hasNext()) {
+            Map.Entry<EmailMessage, Long> oldest = iterator.next();
+            if (oldest.getKey() == message) break;
+            iterator.remove();
+            prefetchedBytes -= oldest.getValue();
+            oldest.getKey().unloadBody();
+            Metrics.increment("prefetch.evicted");
+        }
+    }
+
+    private static int length(String value) {
+        return value != null ? value.length() : 0;
+    }
+}
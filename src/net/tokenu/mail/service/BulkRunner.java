@@ -0,0 +1,238 @@
+package net.tokenu.mail.service;
+
+import com.commons.LogUtil;
+import com.commons.ThrowableUtil;
+import net.tokenu.mail.model.EmailAccount;
+import net.tokenu.mail.model.EmailMessage;
+import net.tokenu.mail.model.RuleMatch;
+import net.tokenu.mail.util.AuthType;
+import net.tokenu.mail.util.CircuitOpenException;
+import net.tokenu.mail.util.Deadline;
+import net.tokenu.mail.util.Metrics;
+
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks every account of a --cli run: refreshes the token and fetches the inbox.
+ * Results go through a {@link ResultWriter} into one file per outcome (valid.txt, invalid.txt, ...).
+ * Accounts the {@link NegativeCache} knows to be dead are skipped without a request.
+ * Accounts are processed by BULK_THREADS workers, the per-endpoint {@link Governor}s keep
+ * them within what each provider tolerates.
+ * Accounts whose IMAP host has an open {@link CircuitBreaker} are moved to the back of the queue
+ * until the breaker lets a probe through, and fail fast once they were deferred MAX_DEFERRALS times.
+ */
+public class BulkRunner {
+    public static int MAX_DEFERRALS = 3;
+    // Dump fetched messages to messages.txt, they used to be printed to stdout
+    public static boolean SAVE_MESSAGES = true;
+
+    private final List<EmailAccount> accounts;
+    private final int threads;
+    private final Checkpoint checkpoint;
+    private String outputDirectory = "";
+    private Listener listener;
+    private RuleEngine rules;
+    private final AtomicInteger index = new AtomicInteger();
+    private ResultWriter results;
+
+    private final DelayQueue<Task> queue = new DelayQueue<>();
+    private final AtomicInteger remaining = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Called once per account when it is finished, from the worker thread that checked it.
+     */
+    public interface Listener {
+        void onResult(EmailAccount account, ResultWriter.Category category);
+
+        default void onMatch(RuleMatch match) {
+        }
+    }
+
+    private class Task implements Delayed {
+        private final EmailAccount account;
+        private final long readyAt;
+        private final int deferrals;
+        // Keeps FIFO order between tasks that are ready at the same time
+        private final long seq = sequence.incrementAndGet();
+
+        private Task(EmailAccount account, long readyAt, int deferrals) {
+            this.account = account;
+            this.readyAt = readyAt;
+            this.deferrals = deferrals;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(readyAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            Task other = (Task) o;
+            int c = Long.compare(readyAt, other.readyAt);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+
+    /**
+     * @param accounts The accounts to check
+     * @param threads The number of workers
+     * @param checkpoint The journal of the run, accounts it has finished are skipped
+     */
+    public BulkRunner(List<EmailAccount> accounts, int threads, Checkpoint checkpoint) {
+        this.accounts = accounts;
+        this.threads = Math.max(1, threads);
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Writes the result files into the directory instead of the working directory.
+     */
+    public BulkRunner setOutputDirectory(String outputDirectory) {
+        this.outputDirectory = outputDirectory;
+        return this;
+    }
+
+    public BulkRunner setListener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Runs the rules over every inbox and writes the matches to matches.txt instead of dumping the messages.
+     * Only the bodies of messages a rule can still match by sender and subject are fetched.
+     */
+    public BulkRunner setRules(RuleEngine rules) {
+        this.rules = rules;
+        return this;
+    }
+
+    public void run() throws InterruptedException {
+        for (EmailAccount account : accounts) {
+            if (checkpoint.isFinished(account)) continue;
+            queue.add(new Task(account, 0, 0));
+        }
+        remaining.set(queue.size());
+        index.set(accounts.size() - queue.size());
+
+        try (ResultWriter results = new ResultWriter(outputDirectory)) {
+            this.results = results;
+            if (threads == 1) {
+                work();
+                return;
+            }
+
+            // Connections can't be shared between workers
+            Microsoft.multipleThreaded = true;
+            ExecutorService workers = Executors.newFixedThreadPool(threads);
+            for (int i = 0; i < threads; i++) {
+                workers.submit(this::work);
+            }
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        finally {
+            NegativeCache.save();
+        }
+    }
+
+    private void work() {
+        try {
+            while (remaining.get() > 0) {
+                Task task = queue.poll(1, TimeUnit.SECONDS);
+                if (task == null) continue;
+                if (!check(task)) remaining.decrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return true if the account was deferred and is still queued
+     */
+    private boolean check(Task task) {
+        EmailAccount account = task.account;
+        ResultWriter.Category known = NegativeCache.lookup(account);
+        if (known != null) {
+            LogUtil.warning(String.format("[%d] %s skipped, known %s", index.incrementAndGet(), account, known));
+            Metrics.increment("bulk.skipped.negative");
+            finish(account, known);
+            return false;
+        }
+
+        try {
+            // Skip the token refresh too when the account would only hit a dead host afterwards
+            if (account.getType() != AuthType.GRAPH) {
+                CircuitBreaker breaker = CircuitBreaker.forHost(Microsoft.getHost(account.getEmail()));
+                if (breaker.isOpen()) {
+                    return defer(task, breaker.getRetryAt());
+                }
+            }
+
+            Deadline.start(Microsoft.ACCOUNT_DEADLINE);
+            LogUtil.log("> "+account.getEmail());
+            Microsoft.refreshAccessToken(account);
+            List<EmailMessage> messages = rules != null
+                    ? Microsoft.getInboxMessages(account, rules::needsBody)
+                    : Microsoft.getInboxMessages(account);
+
+            if (rules != null) {
+                for (RuleMatch match : rules.match(account.getEmail(), messages)) {
+                    results.write(ResultWriter.Category.MATCHES, match.toJson().toString());
+                    if (listener != null) listener.onMatch(match);
+                    LogUtil.successful(match);
+                }
+            }
+            else if (SAVE_MESSAGES) {
+                StringBuilder sb = new StringBuilder();
+                for (EmailMessage message : messages) {
+                    sb.append(message).append("\n----------------------------------------\n");
+                }
+                if (sb.length() > 0) results.write(ResultWriter.Category.MESSAGES, sb.toString());
+            }
+
+            results.write(ResultWriter.Category.VALID, account.toJson().toString());
+            finish(account, ResultWriter.Category.VALID);
+            NegativeCache.clear(account);
+            LogUtil.successful(String.format("[%d] %s (%d messages)", index.incrementAndGet(), account, messages.size()));
+        } catch (CircuitOpenException e) {
+            return defer(task, e.getRetryAt());
+        } catch (Throwable e) {
+            ResultWriter.Category category = ResultWriter.classify(e);
+            LogUtil.error(String.format("[%d] %s %s: %s", index.incrementAndGet(), account, category, e.getMessage()));
+            results.write(category, account.toJson().toString());
+            finish(account, category);
+            NegativeCache.record(account, category);
+        } finally {
+            Deadline.clear();
+        }
+        return false;
+    }
+
+    private void finish(EmailAccount account, ResultWriter.Category category) {
+        checkpoint.record(results, account, category);
+        if (listener != null) listener.onResult(account, category);
+    }
+
+    private boolean defer(Task task, long retryAt) {
+        if (task.deferrals >= MAX_DEFERRALS) {
+            // The account itself may be fine, so it goes to connect_failure.txt rather than invalid.txt
+            LogUtil.warning(String.format("[%d] %s skipped, %s is unreachable",
+                    index.incrementAndGet(), task.account, Microsoft.getHost(task.account.getEmail())));
+            results.write(ResultWriter.Category.CONNECT_FAILURE, task.account.toJson().toString());
+            finish(task.account, ResultWriter.Category.CONNECT_FAILURE);
+            return false;
+        }
+        queue.add(new Task(task.account, retryAt, task.deferrals + 1));
+        return true;
+    }
+}
@@ -0,0 +1,264 @@
+package net.tokenu.mail.service;
+
+import com.commons.FileUtil;
+import com.commons.LogUtil;
+import com.commons.ThrowableUtil;
+import com.commons.json.JsonUtil;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.mail.imap.IMAPStore;
+import net.tokenu.mail.util.AuthType;
+
+import javax.mail.MessagingException;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent record of what each provider supports, keyed by IMAP host and clientId.
+ * Entries with a clientId store the auth type that worked and the token scope,
+ * the host's own entry (clientId null) stores the IMAP extensions advertised by the server.
+ * Later sessions use it to take the working path directly instead of discovering it by failing.
+ */
+public class CapabilityRegistry {
+    public static String fileName = "capabilities.json";
+    public static long TTL = TimeUnit.DAYS.toMillis(7);
+
+    // Extensions worth remembering, checked with IMAPStore.hasCapability after login
+    public static final String[] EXTENSIONS = {
+            "IDLE", "CONDSTORE", "QRESYNC", "UIDPLUS", "MOVE", "COMPRESS=DEFLATE",
+            "SORT", "THREAD=REFERENCES", "LITERAL+", "SPECIAL-USE", "ENABLE", "UTF8=ACCEPT",
+    };
+
+    private static Map<String, Entry> entries;
+
+    public static class Entry {
+        private final String host;
+        private final String clientId;
+        private AuthType authType;
+        private String mechanism;
+        private String scope;
+        private Set<String> extensions = new LinkedHashSet<>();
+        private long updatedAt;
+
+        private Entry(String host, String clientId) {
+            this.host = host;
+            this.clientId = clientId;
+        }
+
+        public boolean isExpired() {
+            return System.currentTimeMillis() - updatedAt > TTL;
+        }
+
+        public boolean supports(String extension) {
+            return extensions.contains(extension.toUpperCase());
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public String getClientId() {
+            return clientId;
+        }
+
+        public AuthType getAuthType() {
+            return authType;
+        }
+
+        public String getMechanism() {
+            return mechanism;
+        }
+
+        public String getScope() {
+            return scope;
+        }
+
+        public Set<String> getExtensions() {
+            return Collections.unmodifiableSet(extensions);
+        }
+
+        public long getUpdatedAt() {
+            return updatedAt;
+        }
+
+        private JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            json.addProperty("host", host);
+            json.addProperty("clientId", clientId);
+            json.addProperty("authType", authType != null ? authType.name() : null);
+            json.addProperty("mechanism", mechanism);
+            json.addProperty("scope", scope);
+            JsonArray array = new JsonArray();
+            for (String extension : extensions) array.add(extension);
+            json.add("extensions", array);
+            json.addProperty("updatedAt", updatedAt);
+            return json;
+        }
+
+        private static Entry fromJson(JsonObject json) {
+            Entry entry = new Entry(getString(json, "host"), getString(json, "clientId"));
+            String authType = getString(json, "authType");
+            entry.authType = authType != null ? AuthType.valueOf(authType) : null;
+            entry.mechanism = getString(json, "mechanism");
+            entry.scope = getString(json, "scope");
+            if (json.has("extensions")) {
+                for (JsonElement element : json.getAsJsonArray("extensions")) {
+                    entry.extensions.add(element.getAsString());
+                }
+            }
+            entry.updatedAt = json.has("updatedAt") ? json.get("updatedAt").getAsLong() : 0;
+            return entry;
+        }
+
+        private static String getString(JsonObject json, String key) {
+            return json.has(key) && !json.get(key).isJsonNull() ? json.get(key).getAsString() : null;
+        }
+    }
+
+    /**
+     * Returns the entry for the host and clientId if it exists and has not expired.
+     *
+     * @param host The IMAP host (see {@link Microsoft#getHost(String)})
+     * @param clientId The OAuth clientId, or null for basic authentication
+     * @return The entry, or null if unknown or due for revalidation
+     */
+    public static synchronized Entry get(String host, String clientId) {
+        Entry entry = load().get(key(host, clientId));
+        if (entry == null || entry.isExpired()) return null;
+        return entry;
+    }
+
+    /**
+     * Checks whether a clientId is known to only work with IMAP, so Graph isn't tried first.
+     *
+     * @param host The IMAP host
+     * @param clientId The OAuth clientId
+     * @return true if a fresh record says IMAP OAuth is the path that works
+     */
+    public static synchronized boolean isImapOnly(String host, String clientId) {
+        Entry entry = get(host, clientId);
+        return entry != null && entry.authType == AuthType.IMAP_OAUTH;
+    }
+
+    /**
+     * Checks whether the host is known to advertise an IMAP extension.
+     *
+     * @param host The IMAP host
+     * @param extension The extension, e.g. "IDLE"
+     * @return true if a fresh record says the server supports it
+     */
+    public static synchronized boolean supports(String host, String extension) {
+        Entry entry = get(host, null);
+        return entry != null && entry.supports(extension);
+    }
+
+    /**
+     * Records which auth path worked for the host and clientId.
+     *
+     * @param host The IMAP host
+     * @param clientId The OAuth clientId
+     * @param authType The auth type that worked
+     * @param scope The token scope, or null to keep the recorded one
+     */
+    public static synchronized void recordAuth(String host, String clientId, AuthType authType, String scope) {
+        Entry entry = getOrCreate(host, clientId);
+        boolean changed = entry.authType != authType || (scope != null && !scope.equals(entry.scope)) || entry.isExpired();
+        if (!changed) return;
+
+        entry.authType = authType;
+        entry.mechanism = authType == AuthType.GRAPH ? "Bearer"
+                : authType == AuthType.IMAP_OAUTH ? "XOAUTH2"
+                : entry.mechanism;
+        if (scope != null) entry.scope = scope;
+        entry.updatedAt = System.currentTimeMillis();
+        save();
+    }
+
+    /**
+     * Records the server's extensions after a successful IMAP login, under the host's own entry
+     * (clientId null) since they do not depend on the account.
+     * Skipped while the existing entry is still fresh, so the check costs nothing on later connects.
+     *
+     * @param host The IMAP host
+     * @param isOAuth Whether the login used XOAUTH2
+     * @param store The connected store
+     */
+    public static synchronized void recordImap(String host, boolean isOAuth, IMAPStore store) {
+        Entry entry = getOrCreate(host, null);
+        boolean basicKnown = isOAuth || entry.authType == AuthType.IMAP_BASIC;
+        if (!entry.isExpired() && basicKnown) return;
+
+        try {
+            Set<String> extensions = new LinkedHashSet<>();
+            for (String extension : EXTENSIONS) {
+                if (store.hasCapability(extension)) extensions.add(extension);
+            }
+            entry.extensions = extensions;
+            if (!isOAuth) {
+                entry.authType = AuthType.IMAP_BASIC;
+                entry.mechanism = store.hasCapability("AUTH=PLAIN") ? "PLAIN"
+                        : store.hasCapability("AUTH=LOGIN") ? "LOGIN"
+                        : "LOGIN command";
+            }
+            entry.updatedAt = System.currentTimeMillis();
+            save();
+        } catch (MessagingException e) {
+            ThrowableUtil.println(e);
+        }
+    }
+
+    public static synchronized List<Entry> all() {
+        return new ArrayList<>(load().values());
+    }
+
+    private static Entry getOrCreate(String host, String clientId) {
+        return load().computeIfAbsent(key(host, clientId), k -> new Entry(host, clientId));
+    }
+
+    private static String key(String host, String clientId) {
+        return host + "|" + (clientId != null ? clientId : "");
+    }
+
+    private static Map<String, Entry> load() {
+        if (entries != null) return entries;
+        entries = new HashMap<>();
+        if (!new File(fileName).exists()) return entries;
+        try {
+            String content = FileUtil.readString(fileName);
+            if (content.isEmpty()) return entries;
+            JsonArray array = JsonParser.parseString(content).getAsJsonObject().getAsJsonArray("entries");
+            for (JsonElement element : array) {
+                Entry entry = Entry.fromJson(element.getAsJsonObject());
+                entries.put(key(entry.host, entry.clientId), entry);
+            }
+        }
+        catch (Exception e) {
+            LogUtil.error("Error reading " + fileName + ": " + e.getMessage());
+        }
+        return entries;
+    }
+
+    private static void save() {
+        JsonArray array = new JsonArray();
+        for (Entry entry : entries.values()) {
+            array.add(entry.toJson());
+        }
+        JsonObject json = new JsonObject();
+        json.add("entries", array);
+        try {
+            FileUtil.write(JsonUtil.prettyPrinting(json), fileName);
+        }
+        catch (Exception e) {
+            ThrowableUtil.println(e);
+        }
+    }
+}
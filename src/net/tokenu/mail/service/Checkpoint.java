@@ -0,0 +1,134 @@
+package net.tokenu.mail.service;
+
+import com.commons.FileUtil;
+import com.commons.LogUtil;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.tokenu.mail.model.EmailAccount;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Journal of a bulk run, one line per finished account with its outcome and refreshed tokens.
+ * Lines go through the {@link ResultWriter}, so they are on disk within a second of the account finishing.
+ * With --resume the journal is replayed: finished accounts are skipped and their tokens restored,
+ * without it the previous journal is set aside as checkpoint.jsonl.{time}, since it holds refreshed tokens
+ * that emails.txt may not have yet.
+ */
+public class Checkpoint {
+    // email (lower case) -> journaled account
+    private final Map<String, JsonObject> finished = new HashMap<>();
+
+    private Checkpoint() {
+    }
+
+    private static String fileName() {
+        return ResultWriter.Category.CHECKPOINT.getFileName();
+    }
+
+    /**
+     * Opens the journal for a new run.
+     *
+     * @param resume true to continue the previous run, false to start over
+     * @return The checkpoint
+     * @throws IllegalStateException If a previous journal has to be set aside and can't be moved
+     */
+    public static Checkpoint open(boolean resume) {
+        Checkpoint checkpoint = new Checkpoint();
+        File file = new File(fileName());
+        if (!file.exists()) return checkpoint;
+
+        if (!resume) {
+            File kept = new File(fileName() + "." + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()));
+            if (file.renameTo(kept)) {
+                LogUtil.warning("Moved " + fileName() + " of the previous run to " + kept
+                        + ", use --resume to continue a run instead");
+            }
+            else {
+                throw new IllegalStateException("Can't move " + fileName() + " of the previous run aside,"
+                        + " use --resume to continue it or move it yourself");
+            }
+            return checkpoint;
+        }
+
+        int corrupt = 0;
+        try {
+            for (String line : FileUtil.readAllLines(fileName())) {
+                if (line.trim().isEmpty()) continue;
+                try {
+                    JsonObject json = JsonParser.parseString(line).getAsJsonObject();
+                    JsonObject account = json.getAsJsonObject("account");
+                    String email = EmailAccount.getJsonValueCaseInsensitive(account, "email");
+                    checkpoint.finished.put(email.toLowerCase(), account);
+                }
+                catch (Exception e) {
+                    // The last line may be cut off if the run was killed while writing it
+                    corrupt++;
+                }
+            }
+        }
+        catch (Exception e) {
+            LogUtil.error("Error reading " + fileName() + ": " + e.getMessage());
+        }
+
+        LogUtil.log(String.format("Resuming: %d accounts already done%s", checkpoint.finished.size(),
+                corrupt > 0 ? ", " + corrupt + " unreadable lines ignored" : ""));
+        return checkpoint;
+    }
+
+    /**
+     * @return A checkpoint that knows no finished accounts and leaves the journal file alone
+     */
+    public static Checkpoint none() {
+        return new Checkpoint();
+    }
+
+    /**
+     * Updates accounts finished in the previous run with their journaled tokens, so refreshed tokens
+     * end up in emails.txt even though the previous run never saved it.
+     */
+    public void restore(List<EmailAccount> accounts) {
+        if (finished.isEmpty()) return;
+        for (EmailAccount account : accounts) {
+            JsonObject json = finished.get(account.getEmail().toLowerCase());
+            if (json != null) account.updateTokens(EmailAccount.fromJson(json));
+        }
+    }
+
+    public boolean isFinished(EmailAccount account) {
+        return finished.containsKey(account.getEmail().toLowerCase());
+    }
+
+    public int size() {
+        return finished.size();
+    }
+
+    /**
+     * Journals a finished account.
+     *
+     * @param results The writer of the run
+     * @param account The account, with its current tokens
+     * @param category The outcome
+     */
+    public void record(ResultWriter results, EmailAccount account, ResultWriter.Category category) {
+        JsonObject json = new JsonObject();
+        json.addProperty("status", category.name());
+        json.add("account", account.toJson());
+        results.write(ResultWriter.Category.CHECKPOINT, json.toString());
+    }
+
+    /**
+     * Removes the journal once the run completed and emails.txt was saved.
+     */
+    public static void delete() {
+        File file = new File(fileName());
+        if (file.exists() && !file.delete()) {
+            LogUtil.error("Could not delete " + fileName());
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package net.tokenu.mail.service;
+
+import com.commons.LogUtil;
+import com.sun.mail.iap.ConnectionException;
+import com.sun.mail.util.MailConnectException;
+import com.sun.mail.util.SocketConnectException;
+import net.tokenu.mail.util.CircuitOpenException;
+import net.tokenu.mail.util.Metrics;
+
+import javax.net.ssl.SSLException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Circuit breaker for an IMAP host or a proxy.
+ * Opens after FAILURE_THRESHOLD consecutive connect or server-side failures, so accounts on a dead host
+ * fail fast instead of each waiting for the connect timeout. After the open period one probe is let through
+ * (half-open): success closes the breaker, failure opens it again for twice as long.
+ */
+public class CircuitBreaker {
+    public static int FAILURE_THRESHOLD = 5;
+    public static long OPEN_DURATION = 30000;
+    public static long MAX_OPEN_DURATION = 10 * 60 * 1000;
+
+    // Server messages that mean the provider is unhealthy rather than the account. Throttling, e.g. [UNAVAILABLE],
+    // is left to the Governor
+    private static final String[] INFRASTRUCTURE_MARKERS = {
+            "internal server error", "temporarily unavailable", "service unavailable", "server error",
+            "[serverbug]",
+    };
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN,
+    }
+
+    private static final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private final String key;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openDuration = OPEN_DURATION;
+    private long openUntil;
+    private boolean probing;
+    private long probeStarted;
+
+    private CircuitBreaker(String key) {
+        this.key = key;
+        Metrics.gauge("breaker." + key, this::toString);
+    }
+
+    public static CircuitBreaker forHost(String host) {
+        return breakers.computeIfAbsent("host:" + host, CircuitBreaker::new);
+    }
+
+    public static CircuitBreaker forProxy(String host, int port) {
+        return breakers.computeIfAbsent("proxy:" + host + ":" + port, CircuitBreaker::new);
+    }
+
+    /**
+     * Lets a call through or throws. An expired open breaker lets exactly one probe through.
+     *
+     * @throws CircuitOpenException If the breaker is open or a probe is already running
+     */
+    public synchronized void check() {
+        if (state == State.CLOSED) return;
+        if (state == State.OPEN && System.currentTimeMillis() >= openUntil) {
+            state = State.HALF_OPEN;
+            probing = false;
+        }
+        // A probe that never reported back (e.g. the proxy breaker rejected it first) must not block forever
+        if (state == State.HALF_OPEN && (!probing || System.currentTimeMillis() - probeStarted > openDuration)) {
+            probing = true;
+            probeStarted = System.currentTimeMillis();
+            return;
+        }
+        Metrics.increment("breaker.fastfail");
+        throw new CircuitOpenException(key + " is unreachable, circuit open", getRetryAt());
+    }
+
+    /**
+     * @return true if calls would currently be rejected
+     */
+    public synchronized boolean isOpen() {
+        return state == State.OPEN && System.currentTimeMillis() < openUntil
+                || state == State.HALF_OPEN && probing;
+    }
+
+    /**
+     * @return Epoch millis at which the next probe is allowed
+     */
+    public synchronized long getRetryAt() {
+        return state == State.OPEN ? openUntil : System.currentTimeMillis() + OPEN_DURATION;
+    }
+
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            LogUtil.successful(key + " is reachable again, circuit closed");
+        }
+        state = State.CLOSED;
+        failures = 0;
+        probing = false;
+        openDuration = OPEN_DURATION;
+    }
+
+    /**
+     * Records the outcome of a failed call. Only infrastructure failures count,
+     * others (e.g. wrong password) prove the host is up.
+     */
+    public synchronized void onFailure(Throwable e) {
+        if (!isInfrastructureFailure(e)) {
+            onSuccess();
+            return;
+        }
+
+        failures++;
+        if (state == State.HALF_OPEN) {
+            openDuration = Math.min(MAX_OPEN_DURATION, openDuration * 2);
+            open();
+        }
+        else if (state == State.CLOSED && failures >= FAILURE_THRESHOLD) {
+            open();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        probing = false;
+        openUntil = System.currentTimeMillis() + openDuration;
+        Metrics.increment("breaker.opened");
+        LogUtil.error(String.format("%s failed %d times in a row, circuit open for %ds", key, failures, openDuration / 1000));
+    }
+
+    /**
+     * Checks the exception and its causes for connect failures and server-side errors.
+     * A throttled call isn't one, the host answered and only asked to slow down.
+     */
+    public static boolean isInfrastructureFailure(Throwable e) {
+        if (Governor.isThrottled(e)) return false;
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof MailConnectException
+                    || cause instanceof SocketConnectException
+                    || cause instanceof ConnectionException
+                    || cause instanceof ConnectException
+                    || cause instanceof NoRouteToHostException
+                    || cause instanceof UnknownHostException
+                    || cause instanceof SocketTimeoutException
+                    || cause instanceof SSLException) {
+                return true;
+            }
+            String message = cause.getMessage();
+            if (message == null) continue;
+            message = message.toLowerCase();
+            for (String marker : INFRASTRUCTURE_MARKERS) {
+                if (message.contains(marker)) return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s failures=%d%s", state, failures,
+                state == State.OPEN ? " retryIn=" + Math.max(0, openUntil - System.currentTimeMillis()) + "ms" : "");
+    }
+}
@@ -0,0 +1,375 @@
+package net.tokenu.mail.service;
+
+import com.commons.LogUtil;
+import com.commons.ThrowableUtil;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.tokenu.mail.Main;
+import net.tokenu.mail.model.EmailAccount;
+import net.tokenu.mail.util.Metrics;
+import net.tokenu.mail.util.SharedSecret;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits a bulk run into shards and leases them to {@link Worker} processes over a local socket.
+ * The protocol is one JSON line per connection each way, every request carries the {@link SharedSecret}:
+ * <pre>
+ * {"op":"lease","worker":id,"secret":s}               -> {"shard":n,"lease":ms,"accounts":[...]} | {"wait":ms} | {"done":true}
+ * {"op":"heartbeat","worker":id,"secret":s,"shard":n} -> {"ok":true|false}
+ * {"op":"complete","worker":id,"secret":s,"shard":n,"results":[{"category":..,"account":{..}}],"matches":[..]} -> {"ok":true}
+ * </pre>
+ * A request without the right secret gets {"error":"Unauthorized"}.
+ * A shard whose lease is not renewed by heartbeats is handed to the next worker that asks.
+ * Spawned workers that exit while shards are left are started again, see {@link #superviseWorkers}.
+ * The first completion of a shard wins, later ones are ignored. Results are written, journaled
+ * and merged into the account list here, so emails.txt is only ever saved by the coordinator.
+ */
+public class Coordinator {
+    public static int DEFAULT_PORT = 7391;
+    public static int SHARD_SIZE = 100;
+    public static long LEASE_DURATION = 60000;
+    // A shard that killed this many workers is given up instead of killing more
+    public static int MAX_ATTEMPTS = 3;
+    // Spawned workers that exit while shards are left are started again, up to this many times each
+    public static int MAX_RESPAWNS = 3;
+
+    private static class Shard {
+        private final int id;
+        private final List<EmailAccount> accounts = new ArrayList<>();
+        private String worker;
+        private long leaseUntil;
+        private int attempts;
+        private boolean completed;
+
+        private Shard(int id) {
+            this.id = id;
+        }
+    }
+
+    private final List<EmailAccount> accounts;
+    private final Checkpoint checkpoint;
+    private final Map<String, Integer> indexByEmail = new HashMap<>();
+    private final Deque<Shard> pending = new ArrayDeque<>();
+    private final Map<Integer, Shard> leased = new HashMap<>();
+    private int open;
+    private int respawns;
+    private ResultWriter results;
+    private String secret;
+    private volatile boolean closed;
+
+    /**
+     * @param accounts The accounts of the run, finished ones are replaced by their updated state
+     * @param checkpoint The journal of the run
+     */
+    public Coordinator(List<EmailAccount> accounts, Checkpoint checkpoint) {
+        this.accounts = accounts;
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * @param secret The secret workers must send, null to generate one (only allowed on the loopback address)
+     */
+    public Coordinator setSecret(String secret) {
+        this.secret = secret;
+        return this;
+    }
+
+    /**
+     * Serves shards until every one is completed or given up.
+     *
+     * @param bind The address to listen on
+     * @param port The port to listen on
+     * @param spawn The number of local worker processes to start, 0 to wait for external ones
+     * @param workerArgs Extra arguments of each spawned worker, e.g. --threads
+     */
+    public void run(InetAddress bind, int port, int spawn, List<String> workerArgs) throws Exception {
+        boolean generated = secret == null;
+        secret = SharedSecret.forBind(bind, secret, "The coordinator");
+        if (!bind.isLoopbackAddress()) {
+            LogUtil.error("The coordinator sends account credentials to workers unencrypted, only listen on "
+                    + bind.getHostAddress() + " in a network you trust or tunnel it (e.g. over SSH)");
+        }
+        try (ResultWriter results = new ResultWriter();
+             ServerSocket server = new ServerSocket(port, 50, bind)) {
+            this.results = results;
+            createShards();
+            LogUtil.log(String.format("Coordinator listening on %s:%d, %d shards of up to %d accounts",
+                    bind.getHostAddress(), server.getLocalPort(), open, SHARD_SIZE));
+            if (generated && spawn == 0) {
+                LogUtil.log("Start workers with " + SharedSecret.ENVIRONMENT + "=" + secret);
+            }
+
+            Thread acceptor = new Thread(() -> accept(server), "coordinator");
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            List<Process> processes = new ArrayList<>();
+            String address = (bind.isAnyLocalAddress() ? InetAddress.getLoopbackAddress() : bind).getHostAddress()
+                    + ":" + server.getLocalPort();
+            for (int i = 0; i < spawn; i++) {
+                processes.add(spawn(address, workerArgs));
+            }
+            respawns = spawn * MAX_RESPAWNS;
+
+            synchronized (this) {
+                while (open > 0) {
+                    wait(1000);
+                    reapExpired();
+                    if (spawn > 0 && open > 0) superviseWorkers(processes, address, workerArgs);
+                }
+            }
+            LogUtil.successful("All shards completed");
+
+            // Keep answering "done" until the local workers have exited
+            for (Process process : processes) {
+                process.waitFor();
+            }
+            closed = true;
+        }
+        finally {
+            NegativeCache.save();
+        }
+    }
+
+    private void createShards() {
+        for (int i = 0; i < accounts.size(); i++) {
+            indexByEmail.put(accounts.get(i).getEmail().toLowerCase(), i);
+        }
+
+        Shard shard = null;
+        for (EmailAccount account : accounts) {
+            if (checkpoint.isFinished(account)) continue;
+            ResultWriter.Category known = NegativeCache.lookup(account);
+            if (known != null) {
+                Metrics.increment("bulk.skipped.negative");
+                checkpoint.record(results, account, known);
+                continue;
+            }
+
+            if (shard == null || shard.accounts.size() >= SHARD_SIZE) {
+                shard = new Shard(pending.size());
+                pending.add(shard);
+            }
+            shard.accounts.add(account);
+        }
+        open = pending.size();
+    }
+
+    private Process spawn(String address, List<String> workerArgs) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> command = new ArrayList<>(Arrays.asList(java,
+                "-cp", System.getProperty("java.class.path"),
+                Main.class.getName(), "--cli",
+                "--worker", address));
+        command.addAll(workerArgs);
+        ProcessBuilder builder = new ProcessBuilder(command);
+        // Not on the command line, where other users could read it
+        builder.environment().put(SharedSecret.ENVIRONMENT, secret);
+        builder.inheritIO();
+        return builder.start();
+    }
+
+    /**
+     * Starts another worker for each spawned one that exited while shards are left. Once no spawned worker
+     * can be started anymore and no shard is leased, e.g. because the workers fail on startup, the pending
+     * shards are given up instead of waiting for workers that never come.
+     */
+    private void superviseWorkers(List<Process> processes, String address, List<String> workerArgs) throws Exception {
+        boolean alive = false;
+        for (int i = 0; i < processes.size(); i++) {
+            Process process = processes.get(i);
+            if (process.isAlive()) {
+                alive = true;
+                continue;
+            }
+            if (respawns <= 0) continue;
+            respawns--;
+            Metrics.increment("coordinator.workers.respawned");
+            LogUtil.warning(String.format("Worker process exited with %d while %d shards are left, starting another",
+                    process.exitValue(), open));
+            processes.set(i, spawn(address, workerArgs));
+            alive = true;
+        }
+        if (alive || !leased.isEmpty()) return;
+
+        for (Shard shard : pending) {
+            if (shard.completed) continue;
+            shard.completed = true;
+            open--;
+            LogUtil.error(String.format("Shard %d given up, no worker process is left, its %d accounts were not checked",
+                    shard.id, shard.accounts.size()));
+        }
+        pending.clear();
+    }
+
+    private void accept(ServerSocket server) {
+        while (!closed) {
+            try {
+                Socket socket = server.accept();
+                Thread handler = new Thread(() -> handle(socket), "coordinator-" + socket.getPort());
+                handler.setDaemon(true);
+                handler.start();
+            } catch (Exception e) {
+                if (!server.isClosed()) ThrowableUtil.println(e);
+                return;
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket) {
+            s.setSoTimeout(30000);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            String line = reader.readLine();
+            if (line == null) return;
+            JsonObject request = JsonParser.parseString(line).getAsJsonObject();
+
+            JsonObject response;
+            String op = request.get("op").getAsString();
+            String worker = request.get("worker").getAsString();
+            if (!request.has("secret") || !SharedSecret.matches(secret, request.get("secret").getAsString())) {
+                Metrics.increment("coordinator.unauthorized");
+                LogUtil.warning("Coordinator: refused " + op + " without the secret from " + s.getInetAddress().getHostAddress());
+                response = new JsonObject();
+                response.addProperty("error", "Unauthorized");
+            }
+            else if (op.equals("lease")) {
+                response = lease(worker);
+            }
+            else if (op.equals("heartbeat")) {
+                response = heartbeat(worker, request.get("shard").getAsInt());
+            }
+            else if (op.equals("complete")) {
+                response = complete(worker, request.get("shard").getAsInt(), request.getAsJsonArray("results"),
+                        request.has("matches") ? request.getAsJsonArray("matches") : new JsonArray());
+            }
+            else {
+                response = new JsonObject();
+                response.addProperty("error", "Unknown op " + op);
+            }
+
+            Writer writer = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8);
+            writer.write(response.toString());
+            writer.write('\n');
+            writer.flush();
+        } catch (Exception e) {
+            LogUtil.error("Coordinator request failed: " + e.getMessage());
+        }
+    }
+
+    private synchronized JsonObject lease(String worker) {
+        reapExpired();
+        JsonObject response = new JsonObject();
+
+        Shard shard = pending.poll();
+        while (shard != null && shard.completed) shard = pending.poll();
+        if (shard == null) {
+            if (open == 0) response.addProperty("done", true);
+            else response.addProperty("wait", 1000);
+            return response;
+        }
+
+        shard.worker = worker;
+        shard.leaseUntil = System.currentTimeMillis() + LEASE_DURATION;
+        shard.attempts++;
+        leased.put(shard.id, shard);
+        LogUtil.log(String.format("Shard %d (%d accounts) leased to %s", shard.id, shard.accounts.size(), worker));
+
+        JsonArray array = new JsonArray();
+        for (EmailAccount account : shard.accounts) {
+            array.add(account.toJson());
+        }
+        response.addProperty("shard", shard.id);
+        response.addProperty("lease", LEASE_DURATION);
+        response.add("accounts", array);
+        return response;
+    }
+
+    private synchronized JsonObject heartbeat(String worker, int id) {
+        Shard shard = leased.get(id);
+        boolean ok = shard != null && worker.equals(shard.worker);
+        if (ok) shard.leaseUntil = System.currentTimeMillis() + LEASE_DURATION;
+
+        JsonObject response = new JsonObject();
+        response.addProperty("ok", ok);
+        return response;
+    }
+
+    private synchronized JsonObject complete(String worker, int id, JsonArray shardResults, JsonArray matches) {
+        JsonObject response = new JsonObject();
+        response.addProperty("ok", true);
+
+        Shard shard = leased.remove(id);
+        if (shard == null) {
+            // Reassigned and not leased again yet, or already completed by another worker
+            shard = pending.stream().filter(s -> s.id == id).findFirst().orElse(null);
+        }
+        if (shard == null || shard.completed) {
+            LogUtil.warning(String.format("Ignoring duplicate result of shard %d from %s", id, worker));
+            return response;
+        }
+        shard.completed = true;
+        open--;
+
+        for (JsonElement element : shardResults) {
+            JsonObject result = element.getAsJsonObject();
+            ResultWriter.Category category = ResultWriter.Category.valueOf(result.get("category").getAsString());
+            EmailAccount account = EmailAccount.fromJson(result.getAsJsonObject("account"));
+
+            Integer index = indexByEmail.get(account.getEmail().toLowerCase());
+            // Keeps the account in the loaded AccountTable
+            if (index != null) accounts.get(index).updateTokens(account);
+
+            results.write(category, account.toJson().toString());
+            checkpoint.record(results, account, category);
+            if (category == ResultWriter.Category.VALID) NegativeCache.clear(account);
+            else NegativeCache.record(account, category);
+        }
+        for (JsonElement match : matches) {
+            results.write(ResultWriter.Category.MATCHES, match.toString());
+        }
+        Metrics.increment("coordinator.shards.completed");
+        LogUtil.successful(String.format("Shard %d completed by %s, %d left", id, worker, open));
+        notifyAll();
+        return response;
+    }
+
+    private void reapExpired() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Shard> it = leased.values().iterator(); it.hasNext(); ) {
+            Shard shard = it.next();
+            if (shard.leaseUntil > now) continue;
+            it.remove();
+
+            if (shard.attempts >= MAX_ATTEMPTS) {
+                shard.completed = true;
+                open--;
+                LogUtil.error(String.format("Shard %d given up after %d attempts, its %d accounts were not checked",
+                        shard.id, shard.attempts, shard.accounts.size()));
+                continue;
+            }
+            Metrics.increment("coordinator.shards.reassigned");
+            LogUtil.warning(String.format("Lease of shard %d by %s expired, reassigning", shard.id, shard.worker));
+            pending.addFirst(shard);
+        }
+    }
+}
@@ -0,0 +1,563 @@
+package net.tokenu.mail.service;
+
+import com.commons.LogUtil;
+import com.commons.ThrowableUtil;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpServer;
+import net.tokenu.mail.model.Attachment;
+import net.tokenu.mail.model.EmailAccount;
+import net.tokenu.mail.model.EmailMessage;
+import net.tokenu.mail.model.RuleMatch;
+import net.tokenu.mail.util.AuthType;
+import net.tokenu.mail.util.Deadline;
+import net.tokenu.mail.util.Metrics;
+import net.tokenu.mail.util.SharedSecret;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+/**
+ * Long-running local HTTP/JSON API over the accounts of emails.txt (--daemon).
+ * Accounts, tokens, TLS sessions, capability and latency data stay in memory between requests.
+ * Accounts added to or removed from emails.txt while it runs are picked up, see {@link AccountReloader}.
+ * <pre>
+ * GET    /accounts                              NDJSON, one account per line (no secrets)
+ * GET    /accounts/{email}/messages[?body=true] NDJSON, one message per line
+ * GET    /accounts/{email}/matches                NDJSON, values extracted by the --rules
+ * GET    /accounts/{email}/wait[?from=&amp;subject=&amp;rule=&amp;since=S&amp;timeout=S]
+ *                                               long poll: the first new message that fits, 408 after the timeout
+ * GET    /accounts/{email}/messages/{id}        the message with its body
+ * DELETE /accounts/{email}/messages/{id}
+ * GET    /accounts/{email}/messages/{id}/attachments        attachment metadata, nothing is downloaded
+ * GET    /accounts/{email}/messages/{id}/attachments/{aid}  the content, saved to the AttachmentStore first
+ * POST   /check[?threads=N&amp;email=a,b]          NDJSON, one result per account as it finishes
+ * GET    /metrics
+ * </pre>
+ * Every request needs "Authorization: Bearer &lt;secret&gt;" with the {@link SharedSecret}, others get 401.
+ * IMAP listings borrow the account's connection from the {@link ImapConnectionPool}, so it stays open between requests.
+ */
+public class Daemon {
+    public static int DEFAULT_PORT = 7390;
+    public static long WAIT_TIMEOUT = 60000;
+    // Refreshed tokens are saved to emails.txt this often, instead of rewriting it inside each request
+    public static long SAVE_INTERVAL = 5000;
+
+    private static final String NDJSON = "application/x-ndjson; charset=utf-8";
+    private static final String JSON = "application/json; charset=utf-8";
+
+    private final List<EmailAccount> accounts;
+    private final Map<String, EmailAccount> accountsByEmail = new ConcurrentHashMap<>();
+    // Last listing per account, so a message can be opened by id without fetching the inbox again
+    private final Map<String, Map<String, EmailMessage>> messages = new ConcurrentHashMap<>();
+    private HttpServer server;
+    private AccountReloader reloader;
+    private ScheduledExecutorService saver;
+    // Tokens changed since the last save
+    private volatile boolean dirty;
+    private RuleEngine rules;
+    private String secret;
+
+    public Daemon(List<EmailAccount> accounts) {
+        // Copy-on-write, accounts appended to emails.txt are added while requests iterate it
+        this.accounts = new CopyOnWriteArrayList<>(accounts);
+        for (EmailAccount account : accounts) {
+            accountsByEmail.put(account.getEmail().toLowerCase(), account);
+        }
+    }
+
+    /**
+     * Enables /accounts/{email}/matches and rule matching in /check.
+     */
+    public Daemon setRules(RuleEngine rules) {
+        this.rules = rules;
+        return this;
+    }
+
+    /**
+     * @param secret The secret clients must send, null to generate one (only allowed on the loopback address)
+     */
+    public Daemon setSecret(String secret) {
+        this.secret = secret;
+        return this;
+    }
+
+    public void start(InetAddress bind, int port) throws IOException {
+        boolean generated = secret == null;
+        secret = SharedSecret.forBind(bind, secret, "The daemon");
+        // The single current connection can't be shared between request threads, listings use the pool instead
+        Microsoft.multipleThreaded = true;
+        Microsoft.pooledConnections = true;
+
+        ExecutorService executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "daemon-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress(bind, port), 0);
+        Authenticator authenticator = new TokenAuthenticator();
+        server.createContext("/accounts", this::handleAccounts).setAuthenticator(authenticator);
+        server.createContext("/check", this::handleCheck).setAuthenticator(authenticator);
+        server.createContext("/metrics", this::handleMetrics).setAuthenticator(authenticator);
+        server.setExecutor(executor);
+        server.start();
+        saver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "daemon-save");
+            thread.setDaemon(true);
+            return thread;
+        });
+        saver.scheduleWithFixedDelay(this::saveIfDirty, SAVE_INTERVAL, SAVE_INTERVAL, TimeUnit.MILLISECONDS);
+        if (Microsoft.database == null) {
+            reloader = AccountReloader.watch(Microsoft.fileName, accounts, this::applyAccountChanges);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "daemon-shutdown"));
+        LogUtil.successful(String.format("Daemon listening on http://%s:%d with %d accounts",
+                bind.getHostAddress(), server.getAddress().getPort(), accounts.size()));
+        if (generated) LogUtil.log("Send \"Authorization: Bearer " + secret + "\" with every request");
+    }
+
+    private class TokenAuthenticator extends Authenticator {
+        @Override
+        public Result authenticate(HttpExchange exchange) {
+            String header = exchange.getRequestHeaders().getFirst("Authorization");
+            if (header != null && header.startsWith("Bearer ") && SharedSecret.matches(secret, header.substring(7).trim())) {
+                return new Success(new HttpPrincipal("client", "daemon"));
+            }
+            Metrics.increment("daemon.unauthorized");
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+            return new Failure(401);
+        }
+    }
+
+    public void stop() {
+        if (server == null) return;
+        server.stop(1);
+        server = null;
+        if (reloader != null) reloader.stop();
+        saver.shutdown();
+        MessageWaiter.getInstance().shutdown();
+        ImapConnectionPool.closeAll();
+        saveAccounts();
+        NegativeCache.save();
+    }
+
+    /**
+     * Applies changes of emails.txt made while the daemon runs. Requests already running for a removed account
+     * finish normally.
+     */
+    private void applyAccountChanges(List<EmailAccount> added, List<EmailAccount> removed) {
+        accounts.addAll(added);
+        accounts.removeAll(new HashSet<>(removed));
+        for (EmailAccount account : added) {
+            accountsByEmail.put(account.getEmail().toLowerCase(), account);
+        }
+        for (EmailAccount account : removed) {
+            accountsByEmail.remove(account.getEmail().toLowerCase());
+            messages.remove(account.getEmail().toLowerCase());
+        }
+    }
+
+    private void handleAccounts(HttpExchange exchange) throws IOException {
+        long start = System.currentTimeMillis();
+        try {
+            // /accounts[/{email}[/messages[/{id}[/attachments[/{id}]]]]]
+            List<String> path = segments(exchange, "/accounts");
+            String method = exchange.getRequestMethod();
+
+            if (path.isEmpty() && method.equals("GET")) {
+                listAccounts(exchange);
+                return;
+            }
+
+            EmailAccount account = path.isEmpty() ? null : accountsByEmail.get(path.get(0).toLowerCase());
+            if (account == null) {
+                sendError(exchange, 404, "Unknown account");
+                return;
+            }
+
+            if (path.size() == 2 && path.get(1).equals("messages") && method.equals("GET")) {
+                listMessages(exchange, account, "true".equals(query(exchange).get("body")));
+            }
+            else if (path.size() == 2 && path.get(1).equals("matches") && method.equals("GET")) {
+                listMatches(exchange, account);
+            }
+            else if (path.size() == 2 && path.get(1).equals("wait") && method.equals("GET")) {
+                waitMessage(exchange, account, query(exchange));
+            }
+            else if (path.size() == 3 && path.get(1).equals("messages") && method.equals("GET")) {
+                getMessage(exchange, account, path.get(2));
+            }
+            else if (path.size() == 3 && path.get(1).equals("messages") && method.equals("DELETE")) {
+                deleteMessage(exchange, account, path.get(2));
+            }
+            else if (path.size() == 4 && path.get(1).equals("messages") && path.get(3).equals("attachments")
+                    && method.equals("GET")) {
+                listAttachments(exchange, account, path.get(2));
+            }
+            else if (path.size() == 5 && path.get(1).equals("messages") && path.get(3).equals("attachments")
+                    && method.equals("GET")) {
+                getAttachment(exchange, account, path.get(2), path.get(4));
+            }
+            else {
+                sendError(exchange, 404, "Not found");
+            }
+        } catch (Exception e) {
+            sendError(exchange, 500, e);
+        } finally {
+            Deadline.clear();
+            exchange.close();
+            Metrics.time("daemon.request", System.currentTimeMillis() - start);
+        }
+    }
+
+    private void listAccounts(HttpExchange exchange) throws IOException {
+        try (Writer writer = stream(exchange)) {
+            for (EmailAccount account : accounts) {
+                JsonObject json = new JsonObject();
+                json.addProperty("email", account.getEmail());
+                json.addProperty("type", account.getType().name());
+                json.addProperty("validToken", account.getAccessToken() != null && account.hasValidAccessToken());
+                ResultWriter.Category known = NegativeCache.lookup(account);
+                if (known != null) json.addProperty("known", known.name());
+                writeLine(writer, json);
+            }
+        }
+    }
+
+    private void listMessages(HttpExchange exchange, EmailAccount account, boolean withBody) throws Exception {
+        List<EmailMessage> list = fetch(account);
+
+        Map<String, EmailMessage> byId = new HashMap<>();
+        for (EmailMessage message : list) {
+            byId.put(message.getId(), message);
+        }
+        messages.put(account.getEmail().toLowerCase(), byId);
+
+        try (Writer writer = stream(exchange)) {
+            for (EmailMessage message : list) {
+                writeLine(writer, message.toJson(withBody));
+            }
+        }
+    }
+
+    private void listMatches(HttpExchange exchange, EmailAccount account) throws Exception {
+        if (rules == null) {
+            sendError(exchange, 400, "No rules loaded, start the daemon with --rules");
+            return;
+        }
+        List<EmailMessage> list = fetch(account, rules::needsBody);
+        try (Writer writer = stream(exchange)) {
+            for (RuleMatch match : rules.match(account.getEmail(), list)) {
+                writeLine(writer, match.toJson());
+            }
+        }
+    }
+
+    private void waitMessage(HttpExchange exchange, EmailAccount account, Map<String, String> query) throws Exception {
+        String rule = query.get("rule");
+        if (rule != null && rules == null) {
+            sendError(exchange, 400, "No rules loaded, start the daemon with --rules");
+            return;
+        }
+        String from = lower(query.get("from"));
+        String subject = lower(query.get("subject"));
+        long timeout = query.containsKey("timeout") ? Long.parseLong(query.get("timeout")) * 1000 : WAIT_TIMEOUT;
+        long since = System.currentTimeMillis() - (query.containsKey("since") ? Long.parseLong(query.get("since")) * 1000 : 0);
+
+        Predicate<EmailMessage> predicate = message ->
+                (from == null || String.valueOf(message.getFrom()).toLowerCase().contains(from))
+                        && (subject == null || String.valueOf(message.getSubject()).toLowerCase().contains(subject))
+                        && (rule == null || !matches(account, message, rule).isEmpty());
+
+        EmailMessage message;
+        try {
+            message = MessageWaiter.getInstance().waitFor(account, predicate, since, timeout).get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                sendError(exchange, 408, e.getCause().getMessage());
+                return;
+            }
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+
+        JsonObject json = message.toJson(true);
+        if (rule != null) {
+            JsonArray values = new JsonArray();
+            for (RuleMatch match : matches(account, message, rule)) {
+                values.add(match.toJson());
+            }
+            json.add("matches", values);
+        }
+        send(exchange, 200, json);
+    }
+
+    private List<RuleMatch> matches(EmailAccount account, EmailMessage message, String rule) {
+        List<RuleMatch> matches = new ArrayList<>();
+        for (RuleMatch match : rules.match(account.getEmail(), message)) {
+            if (rule.isEmpty() || rule.equalsIgnoreCase(match.getRule())) matches.add(match);
+        }
+        return matches;
+    }
+
+    private static String lower(String value) {
+        return value == null || value.isEmpty() ? null : value.toLowerCase();
+    }
+
+    private void getMessage(HttpExchange exchange, EmailAccount account, String id) throws Exception {
+        EmailMessage message = findMessage(account, id);
+        if (message == null) {
+            sendError(exchange, 404, "Unknown message");
+            return;
+        }
+        send(exchange, 200, message.toJson(true));
+    }
+
+    private EmailMessage findMessage(EmailAccount account, String id) throws Exception {
+        Map<String, EmailMessage> byId = messages.get(account.getEmail().toLowerCase());
+        EmailMessage message = byId != null ? byId.get(id) : null;
+        if (message != null) return message;
+
+        if (account.getType() == AuthType.GRAPH) {
+            refresh(account);
+            return Microsoft.getMessageGraphAPI(account.getAccessToken(), id);
+        }
+        return fetch(account).stream()
+                .filter(m -> Objects.equals(m.getId(), id))
+                .findFirst().orElse(null);
+    }
+
+    private void listAttachments(HttpExchange exchange, EmailAccount account, String id) throws Exception {
+        EmailMessage message = findMessage(account, id);
+        if (message == null) {
+            sendError(exchange, 404, "Unknown message");
+            return;
+        }
+        refresh(account);
+        JsonArray json = new JsonArray();
+        for (Attachment attachment : Microsoft.getAttachments(account, message)) {
+            json.add(attachment.toJson());
+        }
+        send(exchange, 200, json);
+    }
+
+    // Downloads into the AttachmentStore and sends the stored file, neither step holds the content in memory
+    private void getAttachment(HttpExchange exchange, EmailAccount account, String id, String attachmentId) throws Exception {
+        EmailMessage message = findMessage(account, id);
+        if (message == null) {
+            sendError(exchange, 404, "Unknown message");
+            return;
+        }
+        refresh(account);
+        Attachment attachment = Microsoft.getAttachments(account, message).stream()
+                .filter(a -> a.getId().equals(attachmentId))
+                .findFirst().orElse(null);
+        if (attachment == null) {
+            sendError(exchange, 404, "Unknown attachment");
+            return;
+        }
+
+        Path file = Microsoft.saveAttachment(account, message, attachment);
+        exchange.getResponseHeaders().set("Content-Type", attachment.getContentType());
+        exchange.getResponseHeaders().set("Content-Disposition",
+                "attachment; filename=\"" + attachment.getName().replace("\"", "") + "\"");
+        exchange.getResponseHeaders().set("X-Sha256", attachment.getSha256());
+        exchange.sendResponseHeaders(200, Files.size(file));
+        try (OutputStream out = exchange.getResponseBody()) {
+            Files.copy(file, out);
+        }
+    }
+
+    private void deleteMessage(HttpExchange exchange, EmailAccount account, String id) throws Exception {
+        refresh(account);
+        Map<String, EmailMessage> byId = messages.get(account.getEmail().toLowerCase());
+        EmailMessage message = byId != null ? byId.get(id) : null;
+        // A listed IMAP message is deleted by UID in its folder, otherwise the folders are searched for the id
+        boolean deleted = message != null ? Microsoft.deleteEmail(account, message) : Microsoft.deleteEmail(account, id);
+        if (deleted && byId != null) byId.remove(id);
+
+        JsonObject json = new JsonObject();
+        json.addProperty("deleted", deleted);
+        send(exchange, deleted ? 200 : 404, json);
+    }
+
+    private void handleCheck(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                sendError(exchange, 405, "Use POST");
+                return;
+            }
+            Map<String, String> query = query(exchange);
+            int threads = query.containsKey("threads") ? Integer.parseInt(query.get("threads")) : Microsoft.BULK_THREADS;
+
+            List<EmailAccount> selected = new ArrayList<>();
+            if (query.containsKey("email")) {
+                for (String email : query.get("email").split(",")) {
+                    EmailAccount account = accountsByEmail.get(email.trim().toLowerCase());
+                    if (account != null) selected.add(account);
+                }
+            }
+            else {
+                selected.addAll(accounts);
+            }
+
+            try (Writer writer = stream(exchange)) {
+                new BulkRunner(selected, threads, Checkpoint.none())
+                        .setRules(rules)
+                        .setListener((account, category) -> {
+                            JsonObject json = new JsonObject();
+                            json.addProperty("email", account.getEmail());
+                            json.addProperty("category", category.name());
+                            synchronized (writer) {
+                                try {
+                                    writeLine(writer, json);
+                                } catch (IOException e) {
+                                    // Client went away, the check still completes
+                                }
+                            }
+                        })
+                        .run();
+            }
+            saveAccounts();
+        } catch (Exception e) {
+            ThrowableUtil.println(e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            JsonObject json = new JsonObject();
+            Metrics.snapshot().forEach((name, value) -> {
+                if (value instanceof Number) json.addProperty(name, (Number) value);
+                else json.addProperty(name, String.valueOf(value));
+            });
+            send(exchange, 200, json);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private List<EmailMessage> fetch(EmailAccount account) throws Exception {
+        return fetch(account, null);
+    }
+
+    private List<EmailMessage> fetch(EmailAccount account, Predicate<EmailMessage> needsBody) throws Exception {
+        Deadline.start(Microsoft.ACCOUNT_DEADLINE);
+        refresh(account);
+        try {
+            List<EmailMessage> list = Microsoft.getInboxMessages(account, needsBody);
+            if (NegativeCache.clear(account)) NegativeCache.save();
+            return list;
+        } catch (Exception e) {
+            NegativeCache.record(account, ResultWriter.classify(e));
+            throw e;
+        }
+    }
+
+    private void refresh(EmailAccount account) throws Exception {
+        // Parallel requests for the same account share one refresh
+        synchronized (account) {
+            String before = account.getAccessToken();
+            Microsoft.refreshAccessToken(account);
+            if (!Objects.equals(before, account.getAccessToken())) dirty = true;
+        }
+    }
+
+    private void saveIfDirty() {
+        if (dirty) saveAccounts();
+    }
+
+    private synchronized void saveAccounts() {
+        dirty = false;
+        Microsoft.saveEmailAccounts(accounts);
+    }
+
+    private static List<String> segments(HttpExchange exchange, String context) throws IOException {
+        String path = exchange.getRequestURI().getRawPath().substring(context.length());
+        List<String> segments = new ArrayList<>();
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) segments.add(URLDecoder.decode(segment.replace("+", "%2B"), "UTF-8"));
+        }
+        return segments;
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) throws IOException {
+        Map<String, String> query = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null) return query;
+        for (String pair : raw.split("&")) {
+            String[] kv = pair.split("=", 2);
+            query.put(URLDecoder.decode(kv[0], "UTF-8"), kv.length > 1 ? URLDecoder.decode(kv[1], "UTF-8") : "");
+        }
+        return query;
+    }
+
+    // Chunked NDJSON response, every line is flushed so the client sees it right away
+    private static Writer stream(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", NDJSON);
+        exchange.sendResponseHeaders(200, 0);
+        return new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8);
+    }
+
+    private static void writeLine(Writer writer, JsonElement json) throws IOException {
+        writer.write(json.toString());
+        writer.write('\n');
+        writer.flush();
+    }
+
+    private static void send(HttpExchange exchange, int code, JsonElement json) throws IOException {
+        byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", JSON);
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int code, String message) throws IOException {
+        JsonObject json = new JsonObject();
+        json.addProperty("error", message);
+        send(exchange, code, json);
+    }
+
+    private static void sendError(HttpExchange exchange, int code, Exception e) throws IOException {
+        JsonObject json = new JsonObject();
+        json.addProperty("error", String.valueOf(e.getMessage()));
+        json.addProperty("category", ResultWriter.classify(e).name());
+        try {
+            send(exchange, code, json);
+        } catch (IOException | IllegalStateException ignored) {
+            // Headers were already sent by a stream
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package net.tokenu.mail.service;
+
+import net.tokenu.mail.util.Deadline;
+import net.tokenu.mail.util.DeadlineExceededException;
+import net.tokenu.mail.util.Metrics;
+import net.tokenu.mail.util.ThrottledException;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Adaptive concurrency limit for one provider endpoint (an IMAP host, the Graph API or the token endpoint).
+ * The limit grows by about one per window of successful calls and is halved on a throttling signal (AIMD).
+ * A Retry-After from the server holds back all new calls to the endpoint until it has passed.
+ */
+public class Governor {
+    public static double INITIAL_LIMIT = 4;
+    public static double MIN_LIMIT = 1;
+    public static double MAX_LIMIT = 64;
+    // Backoff when the server throttles without saying for how long
+    public static long DEFAULT_BACKOFF = 5000;
+
+    // Server messages that mean "slow down" rather than a failed account
+    private static final String[] THROTTLE_MARKERS = {
+            "too many simultaneous connections", "too many connections", "[unavailable]", "[limit]",
+            "server busy", "try again later", "rate limit", "throttl",
+    };
+
+    private static final Map<String, Governor> governors = new ConcurrentHashMap<>();
+
+    private final String key;
+    private double limit = INITIAL_LIMIT;
+    private int inFlight;
+    private long blockedUntil;
+    private long lastDecrease;
+    private long throttled;
+
+    private Governor(String key) {
+        this.key = key;
+        Metrics.gauge("governor." + key, this::toString);
+    }
+
+    /**
+     * @param key The endpoint, e.g. the result of {@link Microsoft#getHost(String)} or "graph.microsoft.com"
+     * @return The governor for the endpoint
+     */
+    public static Governor forKey(String key) {
+        return governors.computeIfAbsent(key, Governor::new);
+    }
+
+    /**
+     * Runs a call within the endpoint's limits and feeds its outcome back into them.
+     *
+     * @param task The call to the endpoint
+     * @return The task's result
+     * @throws Exception Whatever the task throws
+     */
+    public <T> T call(Callable<T> task) throws Exception {
+        acquire();
+        try {
+            T result = task.call();
+            onSuccess();
+            return result;
+        }
+        catch (Exception e) {
+            if (isThrottled(e)) onThrottled(retryAfter(e));
+            throw e;
+        }
+        finally {
+            release();
+        }
+    }
+
+    /**
+     * Waits for a free slot, at most until the calling thread's {@link Deadline}.
+     *
+     * @throws DeadlineExceededException If the deadline passed first
+     */
+    public synchronized void acquire() throws InterruptedException {
+        Deadline deadline = Deadline.current();
+        while (true) {
+            long wait = blockedUntil - System.currentTimeMillis();
+            if (wait <= 0 && inFlight < (int) limit) break;
+            if (deadline != null) {
+                long remaining = deadline.remaining();
+                if (remaining <= 0) {
+                    Metrics.increment("governor." + key + ".deadline");
+                    throw new DeadlineExceededException("Deadline exceeded waiting for " + key);
+                }
+                wait = wait > 0 ? Math.min(wait, remaining) : remaining;
+            }
+            wait(wait > 0 ? wait : 0);
+        }
+        inFlight++;
+    }
+
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    public synchronized void onSuccess() {
+        limit = Math.min(MAX_LIMIT, limit + 1 / limit);
+    }
+
+    /**
+     * Halves the limit, at most once per backoff period since the calls already in flight
+     * usually get throttled together.
+     *
+     * @param retryAfter Milliseconds to hold back new calls, or -1 to use DEFAULT_BACKOFF
+     */
+    public synchronized void onThrottled(long retryAfter) {
+        long now = System.currentTimeMillis();
+        long backoff = retryAfter >= 0 ? retryAfter : DEFAULT_BACKOFF;
+        throttled++;
+        Metrics.increment("governor." + key + ".throttled");
+
+        if (now - lastDecrease > backoff) {
+            limit = Math.max(MIN_LIMIT, limit / 2);
+            lastDecrease = now;
+        }
+        blockedUntil = Math.max(blockedUntil, now + backoff);
+        notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Checks the exception and its causes for a throttling signal.
+     */
+    public static boolean isThrottled(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ThrottledException) return true;
+            String message = cause.getMessage();
+            if (message == null) continue;
+            message = message.toLowerCase();
+            for (String marker : THROTTLE_MARKERS) {
+                if (message.contains(marker)) return true;
+            }
+        }
+        return false;
+    }
+
+    private static long retryAfter(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ThrottledException) return ((ThrottledException) cause).getRetryAfter();
+        }
+        return -1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("limit=%.1f inFlight=%d throttled=%d blockedFor=%dms",
+                limit, inFlight, throttled, Math.max(0, blockedUntil - System.currentTimeMillis()));
+    }
+}
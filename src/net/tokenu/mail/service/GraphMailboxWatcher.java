@@ -0,0 +1,128 @@
+package net.tokenu.mail.service;
+
+import com.commons.LogUtil;
+import net.tokenu.mail.model.EmailAccount;
+import net.tokenu.mail.model.EmailMessage;
+import net.tokenu.mail.util.AuthType;
+import net.tokenu.mail.util.InvalidAuthenticationToken;
+import net.tokenu.mail.util.Metrics;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Polls the Graph delta endpoint of the inbox. Each poll returns only what changed since the previous one,
+ * so an idle mailbox costs one small request per interval. The interval starts at MIN_INTERVAL after a new
+ * message and grows by BACKOFF up to MAX_INTERVAL while nothing arrives.
+ * <p>
+ * A clientId that only has IMAP scopes gets IDX14100 from Graph; the account is then switched to IMAP OAuth,
+ * the same as when its messages are listed, and its subscriptions move to an {@link ImapMailboxWatcher}.
+ */
+class GraphMailboxWatcher extends MailboxWatcher {
+    static long MIN_INTERVAL = 2000;
+    static long MAX_INTERVAL = 30000;
+    static double BACKOFF = 1.5;
+    private static final int SEEN_LIMIT = 1000;
+
+    // Delta also reports read/flag changes, those messages were already delivered
+    private final Set<String> seen = new LinkedHashSet<>();
+    private String deltaLink;
+    private long interval = MIN_INTERVAL;
+    private volatile ScheduledFuture<?> task;
+
+    GraphMailboxWatcher(EmailAccount account, ScheduledExecutorService timer, ExecutorService workers) {
+        super(account, timer, workers);
+    }
+
+    @Override
+    void start() {
+        schedule(0);
+    }
+
+    @Override
+    void stop() {
+        stopped = true;
+        ScheduledFuture<?> task = this.task;
+        if (task != null) task.cancel(false);
+    }
+
+    private void schedule(long delay) {
+        if (!stopped) task = schedule(this::poll, delay);
+    }
+
+    private void poll() {
+        if (stopped) return;
+        try {
+            synchronized (account) {
+                Microsoft.refreshAccessToken(account);
+            }
+            // The refreshed token only has IMAP scopes, or the registry says so for this clientId
+            if (account.getType() == AuthType.IMAP_OAUTH) {
+                fallBackToImap();
+                return;
+            }
+
+            boolean initial = deltaLink == null;
+            String since = Instant.ofEpochMilli(System.currentTimeMillis() - LOOKBACK).toString();
+            String link = deltaLink;
+            int found = 0;
+            do {
+                JSONObject page = Microsoft.getInboxDeltaGraphAPI(account.getAccessToken(), link, since);
+                Metrics.increment("waiter.graph.poll");
+                JSONArray value = page.optJSONArray("value");
+                if (value != null) {
+                    for (int i = 0; i < value.length(); i++) {
+                        JSONObject json = value.getJSONObject(i);
+                        if (json.has("@removed") || !seen.add(json.optString("id"))) continue;
+                        if (seen.size() > SEEN_LIMIT) seen.remove(seen.iterator().next());
+                        EmailMessage message = EmailMessage.fromJson(json);
+                        deliver(message, initial ? receivedAt(message) : System.currentTimeMillis());
+                        found++;
+                    }
+                }
+                link = page.optString("@odata.nextLink", null);
+                if (link == null) deltaLink = page.optString("@odata.deltaLink", null);
+            } while (link != null && !stopped);
+
+            interval = found > 0 && !initial ? MIN_INTERVAL : Math.min(MAX_INTERVAL, (long) (interval * BACKOFF));
+        }
+        catch (InvalidAuthenticationToken e) {
+            account.setType(AuthType.IMAP_OAUTH);
+            CapabilityRegistry.recordAuth(Microsoft.getHost(account.getEmail()), account.getClientId(), AuthType.IMAP_OAUTH, null);
+            fallBackToImap();
+            return;
+        }
+        catch (Exception e) {
+            if (isPermanent(e)) {
+                failAll(e);
+                return;
+            }
+            interval = Math.min(MAX_INTERVAL, interval * 2);
+            LogUtil.warning(String.format("Delta poll for %s failed, retrying in %dms: %s",
+                    account.getEmail(), interval, e.getMessage()));
+        }
+        schedule(interval);
+    }
+
+    private void fallBackToImap() {
+        LogUtil.warning("Graph doesn't accept the token of " + account.getEmail() + ", watching it over IMAP");
+        Metrics.increment("waiter.graph.fallback");
+        MessageWaiter.getInstance().replace(this);
+    }
+
+    private static long receivedAt(EmailMessage message) {
+        try {
+            return Instant.parse(message.getReceivedDateTime()).toEpochMilli();
+        }
+        catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+}
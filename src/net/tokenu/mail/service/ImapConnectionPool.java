@@ -0,0 +1,192 @@
+package net.tokenu.mail.service;
+
+import com.commons.LogUtil;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import net.tokenu.mail.model.EmailAccount;
+import net.tokenu.mail.util.AuthType;
+import net.tokenu.mail.util.Metrics;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps IMAP connections with an open INBOX per account, so repeated work on the same account
+ * (watching, lazy bodies) doesn't pay for TLS, login and SELECT every time.
+ * A connection is used by one borrower at a time and closed after it has been idle for IDLE_TIMEOUT.
+ */
+public class ImapConnectionPool {
+    public static long IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(2);
+
+    public static class Connection {
+        private final String email;
+        private final IMAPStore store;
+        private final IMAPFolder inbox;
+        private final int readTimeout;
+        private final boolean pooled;
+        private volatile long releasedAt;
+
+        private Connection(String email, IMAPStore store, IMAPFolder inbox, int readTimeout, boolean pooled) {
+            this.email = email;
+            this.store = store;
+            this.inbox = inbox;
+            this.readTimeout = readTimeout;
+            this.pooled = pooled;
+        }
+
+        public String getEmail() {
+            return email;
+        }
+
+        public IMAPStore getStore() {
+            return store;
+        }
+
+        public IMAPFolder getInbox() {
+            return inbox;
+        }
+
+        public boolean isOpen() {
+            return store.isConnected() && inbox.isOpen();
+        }
+
+        /**
+         * @return The socket read timeout the session was created with, in milliseconds
+         */
+        public int getReadTimeout() {
+            return readTimeout;
+        }
+
+        private void close() {
+            Microsoft.closeConnection(inbox, store, email);
+        }
+    }
+
+    private static final Map<String, Connection> idle = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "imap-pool-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        evictor.scheduleWithFixedDelay(ImapConnectionPool::evict, 30, 30, TimeUnit.SECONDS);
+        Metrics.gauge("imap.pool.idle", idle::size);
+    }
+
+    /**
+     * Takes the idle connection of the account, or connects a new one.
+     * The access token is refreshed first if the account uses OAuth.
+     *
+     * @param account An IMAP OAuth or IMAP Basic account
+     * @return A connection with INBOX open read-only; give it back with {@link #release} or {@link #invalidate}
+     * @throws Exception If the token can't be refreshed or the connection fails
+     */
+    public static Connection acquire(EmailAccount account) throws Exception {
+        ImapMessageLoader.register(account);
+        String key = account.getEmail().toLowerCase();
+        Connection connection = idle.remove(key);
+        if (connection != null) {
+            if (connection.isOpen()) {
+                Metrics.increment("imap.pool.hit");
+                return connection;
+            }
+            connection.close();
+        }
+        Metrics.increment("imap.pool.miss");
+        // Same value getIMAPSession puts into the session, before it is rounded up to a second
+        int readTimeout = LatencyTracker.forHost(Microsoft.getHost(account.getEmail())).getReadTimeout();
+        return open(account, 0, readTimeout, true);
+    }
+
+    /**
+     * Connects a connection of its own for the account, e.g. for IMAP IDLE, which waits far longer
+     * than the host's read timeout. {@link #release} closes it instead of keeping it.
+     *
+     * @param readTimeout The socket read timeout in milliseconds
+     * @return A connection with INBOX open read-only
+     * @throws Exception If the token can't be refreshed or the connection fails
+     */
+    public static Connection connect(EmailAccount account, int readTimeout) throws Exception {
+        ImapMessageLoader.register(account);
+        Metrics.increment("imap.pool.dedicated");
+        return open(account, readTimeout, readTimeout, false);
+    }
+
+    private static Connection open(EmailAccount account, int sessionTimeout, int readTimeout, boolean pooled) throws Exception {
+        boolean isOAuth = account.getType() != AuthType.IMAP_BASIC;
+        String credential;
+        if (isOAuth) {
+            // Shared with other threads refreshing the same account
+            synchronized (account) {
+                Microsoft.refreshAccessToken(account);
+            }
+            credential = account.getAccessToken();
+        }
+        else {
+            credential = account.getPassword();
+        }
+
+        Store store = Microsoft.connectStore(account.getEmail(), credential, isOAuth, sessionTimeout);
+        try {
+            IMAPFolder inbox = (IMAPFolder) store.getFolder("INBOX");
+            inbox.open(Folder.READ_ONLY);
+            return new Connection(account.getEmail(), (IMAPStore) store, inbox, readTimeout, pooled);
+        }
+        catch (MessagingException | RuntimeException e) {
+            store.close();
+            ImapStats.close(account.getEmail());
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a healthy connection to the pool. If the account already has an idle connection, this one is closed.
+     * Connections from {@link #connect} are closed.
+     */
+    public static void release(Connection connection) {
+        if (connection == null) return;
+        if (!connection.pooled || !connection.isOpen()) {
+            connection.close();
+            return;
+        }
+        connection.releasedAt = System.currentTimeMillis();
+        Connection previous = idle.put(connection.email.toLowerCase(), connection);
+        if (previous != null && previous != connection) previous.close();
+    }
+
+    /**
+     * Closes a connection that failed instead of returning it to the pool.
+     */
+    public static void invalidate(Connection connection) {
+        if (connection == null) return;
+        Metrics.increment("imap.pool.invalidated");
+        connection.close();
+    }
+
+    /**
+     * Closes every idle connection.
+     */
+    public static void closeAll() {
+        for (String key : idle.keySet()) {
+            Connection connection = idle.remove(key);
+            if (connection != null) connection.close();
+        }
+    }
+
+    private static void evict() {
+        long now = System.currentTimeMillis();
+        idle.forEach((key, connection) -> {
+            if (now - connection.releasedAt > IDLE_TIMEOUT && idle.remove(key, connection)) {
+                LogUtil.log("Closing idle connection of " + connection.email);
+                connection.close();
+            }
+        });
+    }
+}
@@ -0,0 +1,281 @@
+package net.tokenu.mail.service;
+
+import com.commons.LogUtil;
+import com.sun.mail.imap.IMAPFolder;
+import net.tokenu.mail.model.EmailAccount;
+import net.tokenu.mail.model.EmailMessage;
+import net.tokenu.mail.util.Metrics;
+
+import javax.mail.FetchProfile;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Watches an IMAP inbox for new messages.
+ * <p>
+ * Servers that the {@link CapabilityRegistry} knows to have IDLE are watched with it: the server pushes EXISTS
+ * as soon as a message arrives. Each IDLE watcher has its own thread, up to MAX_IDLE_THREADS, and its own
+ * connection, whose read timeout is longer than IDLE_REISSUE, so a quiet inbox doesn't time out the socket.
+ * The idle is ended and started again every IDLE_REISSUE, well within the 29 minutes servers allow.
+ * <p>
+ * Other accounts are polled with NOOP, a single round trip, on a connection from the {@link ImapConnectionPool},
+ * every MIN_POLL_INTERVAL after a new message, backing off to MAX_POLL_INTERVAL while the inbox is quiet.
+ * New messages are found by the highest UID rather than the message count, which stays the same when a message
+ * arrives and another one is deleted; they are fetched by UID only when it grew.
+ */
+class ImapMailboxWatcher extends MailboxWatcher {
+    static int MAX_IDLE_THREADS = 64;
+    static long IDLE_REISSUE = TimeUnit.MINUTES.toMillis(15);
+    // Added to IDLE_REISSUE for the read timeout of IDLE connections
+    static long IDLE_TIMEOUT_MARGIN = TimeUnit.MINUTES.toMillis(2);
+    static long MIN_POLL_INTERVAL = 2000;
+    static long MAX_POLL_INTERVAL = 15000;
+    static double POLL_BACKOFF = 1.5;
+    static long MIN_RETRY_DELAY = 1000;
+    static long MAX_RETRY_DELAY = 60000;
+    // Messages looked at when the watcher starts, for subscriptions that accept recent messages
+    static int RECENT_SCAN = 20;
+
+    private static final AtomicInteger idleThreads = new AtomicInteger();
+
+    static {
+        Metrics.gauge("waiter.imap.idle", idleThreads::get);
+    }
+
+    private final Object io = new Object();
+    private volatile ImapConnectionPool.Connection connection;
+    private long lastUid;
+    private long uidValidity = -1;
+    private long retryDelay = MIN_RETRY_DELAY;
+    private long pollInterval = MIN_POLL_INTERVAL;
+    private ScheduledFuture<?> task;
+
+    ImapMailboxWatcher(EmailAccount account, ScheduledExecutorService timer, ExecutorService workers) {
+        super(account, timer, workers);
+    }
+
+    @Override
+    void start() {
+        execute(this::open);
+    }
+
+    @Override
+    void stop() {
+        stopped = true;
+        // Breaking the idle may wait for the server, so it doesn't run on the caller's thread
+        execute(() -> {
+            synchronized (io) {
+                if (task != null) task.cancel(false);
+                ImapConnectionPool.Connection connection = this.connection;
+                if (connection == null) return;
+                if (task != null) {
+                    // Polling: nobody else uses the connection
+                    this.connection = null;
+                    ImapConnectionPool.release(connection);
+                }
+                else {
+                    // Idling: the idle thread returns it once the idle is broken
+                    kick(connection);
+                }
+            }
+        });
+    }
+
+    private void open() {
+        synchronized (io) {
+            if (stopped) return;
+            String host = Microsoft.getHost(account.getEmail());
+            boolean known = CapabilityRegistry.supports(host, "IDLE");
+            boolean idle = known && reserveIdleThread();
+            try {
+                connection = connect(idle);
+                if (!known && CapabilityRegistry.supports(host, "IDLE") && reserveIdleThread()) {
+                    // First connect to the host, the login recorded that it has IDLE
+                    idle = true;
+                    ImapConnectionPool.release(connection);
+                    connection = null;
+                    connection = connect(true);
+                }
+                IMAPFolder inbox = connection.getInbox();
+                if (lastUid > 0 && inbox.getUIDValidity() == uidValidity) {
+                    // Reconnected: pick up whatever arrived while the connection was down
+                    check();
+                }
+                else {
+                    uidValidity = inbox.getUIDValidity();
+                    scanRecent(inbox);
+                }
+                retryDelay = MIN_RETRY_DELAY;
+            }
+            catch (Exception e) {
+                if (idle) idleThreads.decrementAndGet();
+                failed(e);
+                return;
+            }
+
+            if (idle) {
+                task = null;
+                ImapConnectionPool.Connection idling = connection;
+                Thread thread = new Thread(() -> idle(idling), "imap-idle-" + account.getEmail());
+                thread.setDaemon(true);
+                thread.start();
+                schedule(() -> reissueIdle(idling), IDLE_REISSUE);
+            }
+            else {
+                pollInterval = MIN_POLL_INTERVAL;
+                task = schedule(this::poll, pollInterval);
+            }
+        }
+    }
+
+    private ImapConnectionPool.Connection connect(boolean idle) throws Exception {
+        if (!idle) return ImapConnectionPool.acquire(account);
+        return ImapConnectionPool.connect(account, (int) (IDLE_REISSUE + IDLE_TIMEOUT_MARGIN));
+    }
+
+    private static boolean reserveIdleThread() {
+        if (idleThreads.incrementAndGet() <= MAX_IDLE_THREADS) return true;
+        idleThreads.decrementAndGet();
+        return false;
+    }
+
+    private void idle(ImapConnectionPool.Connection idling) {
+        try {
+            while (!stopped) {
+                // Returns after the server sent something or another thread used the folder
+                idling.getInbox().idle(true);
+                synchronized (io) {
+                    if (stopped) break;
+                    check();
+                }
+            }
+            synchronized (io) {
+                if (connection == idling) connection = null;
+            }
+            ImapConnectionPool.release(idling);
+        }
+        catch (Exception e) {
+            synchronized (io) {
+                if (!stopped) failed(e);
+                else ImapConnectionPool.invalidate(idling);
+            }
+        }
+        finally {
+            idleThreads.decrementAndGet();
+        }
+    }
+
+    private void reissueIdle(ImapConnectionPool.Connection idling) {
+        if (stopped || connection != idling) return;
+        // The idle thread checks the inbox and starts a new idle
+        kick(idling);
+        schedule(() -> reissueIdle(idling), IDLE_REISSUE);
+    }
+
+    private static void kick(ImapConnectionPool.Connection idling) {
+        try {
+            // Any command on the folder ends the IDLE first; this one is a NOOP
+            idling.getInbox().getMessageCount();
+        }
+        catch (MessagingException | RuntimeException ignored) {
+            // The idle thread sees the same failure
+        }
+    }
+
+    private void poll() {
+        synchronized (io) {
+            if (stopped || connection == null) return;
+            try {
+                // Quiet mailboxes are polled less often, a new message brings the interval back down
+                pollInterval = check() > 0 ? MIN_POLL_INTERVAL
+                        : Math.min(MAX_POLL_INTERVAL, (long) (pollInterval * POLL_BACKOFF));
+                task = schedule(this::poll, pollInterval);
+            }
+            catch (Exception e) {
+                failed(e);
+            }
+        }
+    }
+
+    // Caller holds io
+    private void scanRecent(IMAPFolder inbox) throws MessagingException {
+        int count = inbox.getMessageCount();
+        lastUid = highestUid(inbox, count);
+        if (count == 0) return;
+
+        Message[] messages = inbox.getMessages(Math.max(1, count - RECENT_SCAN + 1), count);
+        inbox.fetch(messages, envelope());
+        long since = System.currentTimeMillis() - LOOKBACK;
+        for (Message message : messages) {
+            long receivedAt = message.getReceivedDate() != null ? message.getReceivedDate().getTime() : 0;
+            if (receivedAt >= since) deliver(EmailMessage.fromIMAP(message, true), receivedAt);
+        }
+    }
+
+    /**
+     * Caller holds io.
+     *
+     * @return The number of new messages
+     */
+    private int check() throws MessagingException {
+        IMAPFolder inbox = connection.getInbox();
+        // On an open folder this sends NOOP, which also collects EXISTS/EXPUNGE the server queued
+        int count = inbox.getMessageCount();
+        Metrics.increment("waiter.imap.check");
+        if (highestUid(inbox, count) <= lastUid) return 0;
+
+        int found = 0;
+        Message[] messages = inbox.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID);
+        inbox.fetch(messages, envelope());
+        long now = System.currentTimeMillis();
+        for (Message message : messages) {
+            // "n:*" always includes the last message, even when its UID is below n
+            long uid = inbox.getUID(message);
+            if (uid <= lastUid) continue;
+            lastUid = uid;
+            deliver(EmailMessage.fromIMAP(message, true), now);
+            found++;
+        }
+        return found;
+    }
+
+    /**
+     * UIDs only grow, so a new message always raises the UID of the last one.
+     * The folder caches UIDs per message, this only costs a round trip when the last message changed.
+     */
+    private static long highestUid(IMAPFolder inbox, int count) throws MessagingException {
+        return count > 0 ? inbox.getUID(inbox.getMessage(count)) : 0;
+    }
+
+    // Caller holds io
+    private void failed(Exception e) {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+        ImapConnectionPool.invalidate(connection);
+        connection = null;
+
+        if (isPermanent(e)) {
+            failAll(e);
+            return;
+        }
+        LogUtil.warning(String.format("Watching %s failed, reconnecting in %dms: %s",
+                account.getEmail(), retryDelay, e.getMessage()));
+        schedule(this::open, retryDelay);
+        retryDelay = Math.min(MAX_RETRY_DELAY, retryDelay * 2);
+    }
+
+    private static FetchProfile envelope() {
+        FetchProfile profile = new FetchProfile();
+        profile.add(FetchProfile.Item.ENVELOPE);
+        profile.add(UIDFolder.FetchProfileItem.UID);
+        return profile;
+    }
+}
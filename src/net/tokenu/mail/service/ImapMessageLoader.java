@@ -0,0 +1,112 @@
+package net.tokenu.mail.service;
+
+import com.commons.LogUtil;
+import com.sun.mail.imap.IMAPFolder;
+import net.tokenu.mail.model.EmailAccount;
+import net.tokenu.mail.model.EmailMessage;
+import net.tokenu.mail.model.MessageReference;
+import net.tokenu.mail.util.LeastRecentlyUsedMap;
+import net.tokenu.mail.util.Metrics;
+
+import javax.mail.Folder;
+import javax.mail.FolderClosedException;
+import javax.mail.Message;
+import javax.mail.MessageRemovedException;
+import javax.mail.MessagingException;
+import javax.mail.StoreClosedException;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Fetches IMAP messages again by their {@link MessageReference}, on a connection from the {@link ImapConnectionPool}.
+ * Fetched messages only keep their reference, so a lazy body can be loaded at any time: after the connection it was
+ * listed on was closed, after switching accounts, or after the server dropped the connection.
+ * A connection that turns out to be dead is replaced and the read is tried once more.
+ * <p>
+ * Bodies that are needed right away are better read from the listed message while its folder is still open,
+ * see {@link EmailMessage#loadBody}; this costs a connection from the pool.
+ */
+public class ImapMessageLoader {
+    public interface MessageReader<T> {
+        T read(Message message) throws Exception;
+    }
+
+    public static int CACHED_ACCOUNTS = 10000;
+
+    // Credentials by email (lower case), registered when an account's messages are fetched.
+    // Messages of accounts that dropped out can't load their bodies until they are fetched again.
+    private static final Map<String, EmailAccount> accounts =
+            Collections.synchronizedMap(new LeastRecentlyUsedMap<>(CACHED_ACCOUNTS));
+
+    /**
+     * Makes an account's credentials available for loading its messages later.
+     */
+    public static void register(EmailAccount account) {
+        accounts.put(account.getEmail().toLowerCase(), account);
+    }
+
+    /**
+     * Fetches the referenced message and reads it while the connection is held.
+     * The message must not be used after the reader returns.
+     *
+     * @param reference The message
+     * @param reader Reads what is needed from the message, may be called twice if the connection is lost
+     * @return What the reader returned
+     * @throws MessageRemovedException If the message was deleted or its folder renumbered
+     * @throws Exception If the account is unknown, the connection fails or the reader fails
+     */
+    public static <T> T load(MessageReference reference, MessageReader<T> reader) throws Exception {
+        EmailAccount account = accounts.get(reference.getEmail().toLowerCase());
+        if (account == null) throw new MessagingException("No credentials for " + reference.getEmail() + ", fetch its messages again");
+
+        Exception lost = null;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            ImapConnectionPool.Connection connection = ImapConnectionPool.acquire(account);
+            try {
+                T result = read(connection, reference, reader);
+                ImapConnectionPool.release(connection);
+                Metrics.increment("imap.loader.loaded");
+                return result;
+            }
+            catch (Exception e) {
+                if (!isConnectionLost(e)) {
+                    ImapConnectionPool.release(connection);
+                    throw e;
+                }
+                ImapConnectionPool.invalidate(connection);
+                Metrics.increment("imap.loader.reconnected");
+                LogUtil.warning("Connection of " + reference.getEmail() + " was lost, reconnecting: " + e.getMessage());
+                lost = e;
+            }
+        }
+        throw lost;
+    }
+
+    private static <T> T read(ImapConnectionPool.Connection connection, MessageReference reference,
+                              MessageReader<T> reader) throws Exception {
+        IMAPFolder folder = reference.getFolder().equals("INBOX") ? connection.getInbox()
+                : (IMAPFolder) connection.getStore().getFolder(reference.getFolder());
+        boolean opened = false;
+        if (!folder.isOpen()) {
+            folder.open(Folder.READ_ONLY);
+            opened = true;
+        }
+        try {
+            if (folder.getUIDValidity() != reference.getUidValidity()) {
+                throw new MessageRemovedException(reference.getFolder() + " was renumbered, the message can't be found any more");
+            }
+            Message message = folder.getMessageByUID(reference.getUid());
+            if (message == null) throw new MessageRemovedException("The message was deleted");
+            return reader.read(message);
+        }
+        finally {
+            if (opened && folder.isOpen()) folder.close(false);
+        }
+    }
+
+    private static boolean isConnectionLost(Exception e) {
+        if (e instanceof FolderClosedException || e instanceof StoreClosedException || e instanceof IOException) return true;
+        return e instanceof MessagingException && ((MessagingException) e).getNextException() instanceof IOException;
+    }
+}
@@ -0,0 +1,453 @@
+package net.tokenu.mail.service;
+
+import net.tokenu.mail.util.Deadline;
+import net.tokenu.mail.util.Metrics;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.lang.reflect.Method;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SSL socket factory shared by all IMAP connections.
+ * Uses one tuned SSLContext whose client session cache allows TLS resumption on reconnects,
+ * and counts wire bytes and round-trips into the calling thread's {@link ImapStats}.
+ * JavaMail connects a plain socket first and then layers TLS over it with
+ * {@link #createSocket(Socket, String, int, boolean)}, so the counting happens below TLS and COMPRESS.
+ * Reads are also limited to the reading thread's {@link Deadline}, so the deadline applies to each operation
+ * while the session keeps the host's normal read timeout for connections that outlive it.
+ */
+public class ImapSocketFactory extends SSLSocketFactory {
+    public static int TLS_SESSION_CACHE_SIZE = 1024;
+    public static int TLS_SESSION_TIMEOUT_SECONDS = 4 * 60 * 60;
+    public static String[] TLS_PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+    // Preferred first, the rest of the supported suites keep their default order
+    public static String[] TLS_PREFERRED_CIPHERS = {
+            "TLS_AES_128_GCM_SHA256",
+            "TLS_AES_256_GCM_SHA384",
+            "TLS_CHACHA20_POLY1305_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+    };
+    // ALPN id to offer, e.g. "imap" (RFC 9051). Off by default: few IMAP servers negotiate it, and one that
+    // enforces ALPN rejects a handshake offering an id it doesn't know
+    public static String ALPN_PROTOCOL = null;
+
+    private static ImapSocketFactory instance;
+
+    private final SSLContext context;
+    private final SSLSocketFactory delegate;
+    private final String[] protocols;
+    private final String[] cipherSuites;
+    // Session ids seen so far, a repeated id means the handshake was abbreviated
+    private final Set<String> sessionIds = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private ImapSocketFactory() {
+        try {
+            context = SSLContext.getInstance("TLS");
+            // Same trust behaviour as "mail.imaps.ssl.trust" = "*"
+            context.init(null, new TrustManager[]{new TrustAllManager()}, null);
+
+            SSLSessionContext sessionContext = context.getClientSessionContext();
+            sessionContext.setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+            sessionContext.setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+
+            delegate = context.getSocketFactory();
+            SSLParameters supported = context.getSupportedSSLParameters();
+            protocols = filter(TLS_PROTOCOLS, supported.getProtocols());
+            cipherSuites = preferred(TLS_PREFERRED_CIPHERS, context.getDefaultSSLParameters().getCipherSuites());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Can't create SSL context", e);
+        }
+
+        Metrics.gauge("tls.session.cache.size", () -> Collections.list(context.getClientSessionContext().getIds()).size());
+    }
+
+    public static synchronized ImapSocketFactory getInstance() {
+        if (instance == null) instance = new ImapSocketFactory();
+        return instance;
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+        Socket plain = new CountingSocket(socket, ImapStats.current());
+
+        // host and port must be passed for the session cache to find a resumable session
+        SSLSocket sslSocket = (SSLSocket) delegate.createSocket(plain, host, port, autoClose);
+        configure(sslSocket);
+
+        long start = System.currentTimeMillis();
+        sslSocket.addHandshakeCompletedListener(event -> handshakeCompleted(event.getSession(), start));
+        return sslSocket;
+    }
+
+    private void configure(SSLSocket socket) {
+        SSLParameters parameters = socket.getSSLParameters();
+        if (protocols.length > 0) parameters.setProtocols(protocols);
+        parameters.setCipherSuites(cipherSuites);
+        setApplicationProtocols(parameters);
+        socket.setSSLParameters(parameters);
+    }
+
+    private void handshakeCompleted(SSLSession session, long start) {
+        long elapsed = System.currentTimeMillis() - start;
+        String id = toHex(session.getId());
+        boolean resumed = session.getCreationTime() < start || (!id.isEmpty() && !sessionIds.add(id));
+        if (resumed) {
+            Metrics.time("tls.handshake.resumed", elapsed);
+        }
+        else {
+            Metrics.time("tls.handshake.full", elapsed);
+        }
+    }
+
+    // SSLParameters.setApplicationProtocols only exists from 8u252, so it is looked up at runtime
+    private static void setApplicationProtocols(SSLParameters parameters) {
+        if (ALPN_PROTOCOL == null) return;
+        try {
+            Method method = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+            method.invoke(parameters, (Object) new String[]{ALPN_PROTOCOL});
+        } catch (ReflectiveOperationException ignored) {
+        }
+    }
+
+    private static String[] filter(String[] wanted, String[] supported) {
+        List<String> supportedList = Arrays.asList(supported);
+        List<String> result = new ArrayList<>();
+        for (String value : wanted) {
+            if (supportedList.contains(value)) result.add(value);
+        }
+        return result.toArray(new String[0]);
+    }
+
+    private static String[] preferred(String[] preferred, String[] enabled) {
+        Set<String> result = new LinkedHashSet<>(Arrays.asList(filter(preferred, enabled)));
+        result.addAll(Arrays.asList(enabled));
+        return result.toArray(new String[0]);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+    private static class TrustAllManager implements X509TrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket socket = new Socket(host, port);
+        return createSocket(socket, host, port, true);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        Socket socket = new Socket(host, port, localHost, localPort);
+        return createSocket(socket, host, port, true);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        Socket socket = new Socket(host, port);
+        return createSocket(socket, host.getHostName(), port, true);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        Socket socket = new Socket(address, port, localAddress, localPort);
+        return createSocket(socket, address.getHostName(), port, true);
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    /**
+     * Plain socket wrapper whose streams update the stats, if there are any, and whose reads time out
+     * at the reading thread's deadline. A round-trip is counted each time the client writes after having read.
+     */
+    private static class CountingSocket extends Socket {
+        private final Socket socket;
+        private final ImapStats stats;
+        private volatile boolean lastWasRead = true;
+        private InputStream input;
+        private OutputStream output;
+        // The timeout JavaMail set, and the one the socket has right now
+        private volatile int readTimeout;
+        private volatile int applied;
+
+        CountingSocket(Socket socket, ImapStats stats) throws SocketException {
+            this.socket = socket;
+            this.stats = stats;
+            this.readTimeout = socket.getSoTimeout();
+            this.applied = readTimeout;
+        }
+
+        // 0 is no timeout, as for Socket
+        private void applyDeadline() throws SocketException {
+            int timeout = Deadline.cap(readTimeout == 0 ? Integer.MAX_VALUE : readTimeout);
+            if (timeout == Integer.MAX_VALUE) timeout = 0;
+            if (timeout != applied) {
+                socket.setSoTimeout(timeout);
+                applied = timeout;
+            }
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (input == null) {
+                input = new FilterInputStream(socket.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        applyDeadline();
+                        int b = super.read();
+                        if (b >= 0) received(1);
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        applyDeadline();
+                        int n = super.read(b, off, len);
+                        if (n > 0) received(n);
+                        return n;
+                    }
+                };
+            }
+            return input;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (output == null) {
+                output = new FilterOutputStream(socket.getOutputStream()) {
+                    @Override
+                    public void write(int b) throws IOException {
+                        sent(1);
+                        out.write(b);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        sent(len);
+                        out.write(b, off, len);
+                    }
+                };
+            }
+            return output;
+        }
+
+        private void received(int n) {
+            if (stats == null) return;
+            stats.wireBytesIn.addAndGet(n);
+            lastWasRead = true;
+        }
+
+        private void sent(int n) {
+            if (stats == null) return;
+            if (lastWasRead) {
+                stats.roundTrips.incrementAndGet();
+                lastWasRead = false;
+            }
+            stats.wireBytesOut.addAndGet(n);
+        }
+
+        // Everything else is delegated to the connected socket
+
+        @Override
+        public void connect(SocketAddress endpoint) throws IOException {
+            socket.connect(endpoint);
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            socket.connect(endpoint, timeout);
+        }
+
+        @Override
+        public void bind(SocketAddress bindpoint) throws IOException {
+            socket.bind(bindpoint);
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return socket.getInetAddress();
+        }
+
+        @Override
+        public InetAddress getLocalAddress() {
+            return socket.getLocalAddress();
+        }
+
+        @Override
+        public int getPort() {
+            return socket.getPort();
+        }
+
+        @Override
+        public int getLocalPort() {
+            return socket.getLocalPort();
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress() {
+            return socket.getRemoteSocketAddress();
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            return socket.getLocalSocketAddress();
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) throws SocketException {
+            socket.setTcpNoDelay(on);
+        }
+
+        @Override
+        public boolean getTcpNoDelay() throws SocketException {
+            return socket.getTcpNoDelay();
+        }
+
+        @Override
+        public void setSoLinger(boolean on, int linger) throws SocketException {
+            socket.setSoLinger(on, linger);
+        }
+
+        @Override
+        public int getSoLinger() throws SocketException {
+            return socket.getSoLinger();
+        }
+
+        @Override
+        public synchronized void setSoTimeout(int timeout) throws SocketException {
+            socket.setSoTimeout(timeout);
+            readTimeout = timeout;
+            applied = timeout;
+        }
+
+        @Override
+        public synchronized int getSoTimeout() throws SocketException {
+            return readTimeout;
+        }
+
+        @Override
+        public synchronized void setSendBufferSize(int size) throws SocketException {
+            socket.setSendBufferSize(size);
+        }
+
+        @Override
+        public synchronized int getSendBufferSize() throws SocketException {
+            return socket.getSendBufferSize();
+        }
+
+        @Override
+        public synchronized void setReceiveBufferSize(int size) throws SocketException {
+            socket.setReceiveBufferSize(size);
+        }
+
+        @Override
+        public synchronized int getReceiveBufferSize() throws SocketException {
+            return socket.getReceiveBufferSize();
+        }
+
+        @Override
+        public void setKeepAlive(boolean on) throws SocketException {
+            socket.setKeepAlive(on);
+        }
+
+        @Override
+        public boolean getKeepAlive() throws SocketException {
+            return socket.getKeepAlive();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            socket.close();
+        }
+
+        @Override
+        public void shutdownInput() throws IOException {
+            socket.shutdownInput();
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            socket.shutdownOutput();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return socket.isConnected();
+        }
+
+        @Override
+        public boolean isBound() {
+            return socket.isBound();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return socket.isClosed();
+        }
+
+        @Override
+        public boolean isInputShutdown() {
+            return socket.isInputShutdown();
+        }
+
+        @Override
+        public boolean isOutputShutdown() {
+            return socket.isOutputShutdown();
+        }
+
+        @Override
+        public String toString() {
+            return socket.toString();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package net.tokenu.mail.service;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Per-connection IMAP traffic counters.
+ * Wire bytes and round-trips are counted on the socket (after TLS and COMPRESS),
+ * plain bytes and commands are counted from the JavaMail protocol trace when enabled.
+ * A connection's record is kept until it closes, then its counts are added to its host's totals.
+ */
+public class ImapStats {
+    private static final Map<String, ImapStats> sessions = new ConcurrentHashMap<>();
+    // Totals of the closed connections by host
+    private static final Map<String, ImapStats> hosts = new ConcurrentHashMap<>();
+    // Sockets are created on the thread that connects, see ImapSocketFactory
+    private static final ThreadLocal<ImapStats> current = new ThreadLocal<>();
+
+    // Tagged completion sent by the server, e.g. "A12 OK FETCH completed"
+    private static final Pattern TAGGED_RESPONSE = Pattern.compile("^[A-Z]+\\d+ (OK|NO|BAD)\\b.*");
+
+    private final String email;
+    private final String host;
+
+    final AtomicLong wireBytesIn = new AtomicLong();
+    final AtomicLong wireBytesOut = new AtomicLong();
+    final AtomicLong roundTrips = new AtomicLong();
+    final AtomicLong plainBytes = new AtomicLong();
+    final AtomicLong commands = new AtomicLong();
+    private volatile boolean compressed;
+    private volatile boolean traced;
+
+    private ImapStats(String email, String host) {
+        this.email = email;
+        this.host = host;
+    }
+
+    /**
+     * Starts a new stats record for a connection, replacing the previous one for the same email.
+     * The record becomes the calling thread's current one, so sockets opened by this thread count into it.
+     *
+     * @param email The email address the connection belongs to
+     * @param host The IMAP host
+     * @return The new ImapStats instance
+     */
+    public static ImapStats open(String email, String host) {
+        ImapStats stats = new ImapStats(email, host);
+        sessions.put(email, stats);
+        current.set(stats);
+        return stats;
+    }
+
+    /**
+     * Makes a record the calling thread's current one, e.g. after it was opened on another thread.
+     */
+    public static void bind(ImapStats stats) {
+        if (stats == null) current.remove();
+        else current.set(stats);
+    }
+
+    /**
+     * @return The stats record opened last on this thread, or null
+     */
+    public static ImapStats current() {
+        return current.get();
+    }
+
+    /**
+     * @param email The email address
+     * @return The stats of the most recent session for the email, or null if none
+     */
+    public static ImapStats get(String email) {
+        return sessions.get(email);
+    }
+
+    /**
+     * @return The records of the connections that are open
+     */
+    public static List<ImapStats> all() {
+        return new ArrayList<>(sessions.values());
+    }
+
+    /**
+     * Ends the record of the email's connection when it closes or fails to connect: the record is removed and
+     * its counts are added to the host's totals.
+     *
+     * @return The record, or null if the email has none
+     */
+    public static ImapStats close(String email) {
+        ImapStats stats = sessions.remove(email);
+        if (stats != null) addToHost(stats);
+        return stats;
+    }
+
+    /**
+     * Ends a record if it's still the current one of its email, e.g. one of several attempts to connect.
+     */
+    public static void close(ImapStats stats) {
+        if (stats != null && sessions.remove(stats.email, stats)) addToHost(stats);
+    }
+
+    private static void addToHost(ImapStats stats) {
+        ImapStats total = hosts.computeIfAbsent(stats.host, host -> new ImapStats(null, host));
+        total.wireBytesIn.addAndGet(stats.getWireBytesIn());
+        total.wireBytesOut.addAndGet(stats.getWireBytesOut());
+        total.roundTrips.addAndGet(stats.getRoundTrips());
+        total.plainBytes.addAndGet(stats.getPlainBytes());
+        total.commands.addAndGet(stats.getCommands());
+        if (stats.traced) total.traced = true;
+    }
+
+    /**
+     * @return The totals of the host's closed connections, or null if none closed yet
+     */
+    public static ImapStats forHost(String host) {
+        return hosts.get(host);
+    }
+
+    /**
+     * Creates a debug stream for {@code Session.setDebugOut} that counts the protocol trace
+     * instead of printing it. JavaMail writes the trace above the COMPRESS layer, so these
+     * are the uncompressed bytes.
+     */
+    public PrintStream traceStream() {
+        traced = true;
+        return new PrintStream(new OutputStream() {
+            private final StringBuilder line = new StringBuilder();
+
+            @Override
+            public void write(int b) {
+                if (b == '\n') {
+                    countLine(line.toString());
+                    line.setLength(0);
+                }
+                else if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+        }, true);
+    }
+
+    private void countLine(String line) {
+        // JavaMail's own debug messages are prefixed, protocol trace lines are not
+        if (line.startsWith("DEBUG")) return;
+        plainBytes.addAndGet(line.getBytes(StandardCharsets.ISO_8859_1).length + 2);
+        if (TAGGED_RESPONSE.matcher(line).matches()) {
+            commands.incrementAndGet();
+        }
+    }
+
+    void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    /**
+     * @return The email, or null for the totals of a host
+     */
+    public String getEmail() {
+        return email;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public long getWireBytesIn() {
+        return wireBytesIn.get();
+    }
+
+    public long getWireBytesOut() {
+        return wireBytesOut.get();
+    }
+
+    public long getWireBytes() {
+        return wireBytesIn.get() + wireBytesOut.get();
+    }
+
+    /**
+     * @return The number of read-to-write turnarounds on the socket, including the TLS handshake
+     */
+    public long getRoundTrips() {
+        return roundTrips.get();
+    }
+
+    /**
+     * @return The number of completed IMAP commands, or 0 if the trace is not enabled
+     */
+    public long getCommands() {
+        return commands.get();
+    }
+
+    public long getPlainBytes() {
+        return plainBytes.get();
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * @return plain bytes / wire bytes, or 0 if the trace is not enabled
+     */
+    public double getCompressionRatio() {
+        long wire = getWireBytes();
+        if (!traced || wire == 0) return 0;
+        return (double) plainBytes.get() / wire;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("IMAP %s: wire %d in / %d out bytes, %d round-trips, compress=%s",
+                email != null ? email + "@" + host : host, getWireBytesIn(), getWireBytesOut(), getRoundTrips(), compressed));
+        if (traced) {
+            sb.append(String.format(", %d commands, plain %d bytes, ratio %.2fx",
+                    getCommands(), getPlainBytes(), getCompressionRatio()));
+        }
+        return sb.toString();
+    }
+}
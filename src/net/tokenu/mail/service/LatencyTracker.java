@@ -0,0 +1,71 @@
+package net.tokenu.mail.service;
+
+import net.tokenu.mail.util.Metrics;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recent IMAP connect latencies of one host, used to derive its timeouts.
+ * Keeps the last SAMPLES connects (TCP, TLS and login) in a ring buffer.
+ */
+public class LatencyTracker {
+    public static int SAMPLES = 64;
+    // Percentiles are not trusted before this many samples, the defaults are used instead
+    public static int MIN_SAMPLES = 5;
+    public static int DEFAULT_TIMEOUT = 30000;
+    public static int MIN_CONNECT_TIMEOUT = 3000;
+    public static int MIN_READ_TIMEOUT = 5000;
+
+    private static final Map<String, LatencyTracker> hosts = new ConcurrentHashMap<>();
+
+    private final long[] samples = new long[SAMPLES];
+    private int count;
+    private int next;
+
+    private LatencyTracker(String host) {
+        Metrics.gauge("imap.latency." + host, () -> String.format("p50=%dms p95=%dms p99=%dms connectTimeout=%dms",
+                percentile(50), percentile(95), percentile(99), getConnectTimeout()));
+    }
+
+    public static LatencyTracker forHost(String host) {
+        return hosts.computeIfAbsent(host, LatencyTracker::new);
+    }
+
+    public synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) count++;
+    }
+
+    /**
+     * @param p The percentile, 0-100
+     * @return The latency in milliseconds, or -1 if there are not enough samples
+     */
+    public synchronized long percentile(int p) {
+        if (count < MIN_SAMPLES) return -1;
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(p / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    /**
+     * @return Timeout for the whole connect, twice the p99 within [MIN_CONNECT_TIMEOUT, DEFAULT_TIMEOUT]
+     */
+    public int getConnectTimeout() {
+        long p99 = percentile(99);
+        if (p99 < 0) return DEFAULT_TIMEOUT;
+        return (int) Math.max(MIN_CONNECT_TIMEOUT, Math.min(DEFAULT_TIMEOUT, p99 * 2));
+    }
+
+    /**
+     * @return Socket read timeout, three times the p99 within [MIN_READ_TIMEOUT, DEFAULT_TIMEOUT]
+     */
+    public int getReadTimeout() {
+        long p99 = percentile(99);
+        if (p99 < 0) return DEFAULT_TIMEOUT;
+        return (int) Math.max(MIN_READ_TIMEOUT, Math.min(DEFAULT_TIMEOUT, p99 * 3));
+    }
+}
@@ -1,14 +1,19 @@
 package net.tokenu.mail.service;
 import com.commons.ThrowableUtil;
+import net.tokenu.mail.model.Attachment;
 
+import javax.mail.BodyPart;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Part;
 import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimePart;
 import javax.mail.internet.MimeUtility;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -172,4 +177,82 @@ public class MailContentExtractor {
 
         return null;
     }
-}
\ No newline at end of file
+
+    /**
+     * Lists the attachments of a message from its structure only, no part content is downloaded.
+     * For IMAP messages the structure comes from BODYSTRUCTURE.
+     *
+     * @param message the JavaMail Message
+     * @return attachments in message order, with their IMAP part section as id
+     * @throws MessagingException if there's an error accessing the message
+     * @throws IOException if there's an error reading the structure
+     */
+    public static List<Attachment> getAttachments(Message message) throws MessagingException, IOException {
+        List<Attachment> attachments = new ArrayList<>();
+        if (message.isMimeType("multipart/*")) {
+            collectAttachments((Multipart) message.getContent(), "", attachments);
+        }
+        else if (isAttachment(message)) {
+            attachments.add(toAttachment(message, "1"));
+        }
+        return attachments;
+    }
+
+    private static void collectAttachments(Multipart multipart, String prefix, List<Attachment> attachments)
+            throws MessagingException, IOException {
+        for (int i = 0; i < multipart.getCount(); i++) {
+            BodyPart bodyPart = multipart.getBodyPart(i);
+            String section = prefix + (i + 1);
+            if (bodyPart.isMimeType("multipart/*")) {
+                collectAttachments((Multipart) bodyPart.getContent(), section + ".", attachments);
+            }
+            else if (isAttachment(bodyPart)) {
+                attachments.add(toAttachment(bodyPart, section));
+            }
+        }
+    }
+
+    // Body text is text/plain or text/html without a file name, everything else with a name or disposition is kept
+    private static boolean isAttachment(Part part) throws MessagingException {
+        String fileName = part.getFileName();
+        if (Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition())) return true;
+        if (fileName != null && !fileName.isEmpty()) return true;
+        return !part.isMimeType("text/*") && !part.isMimeType("multipart/*") && part.getDisposition() != null;
+    }
+
+    private static Attachment toAttachment(Part part, String section) throws MessagingException {
+        String fileName = part.getFileName();
+        String name = fileName != null && !fileName.isEmpty() ? decodeMimeHeader(fileName) : "part-" + section;
+        String contentType = part.getContentType().replaceAll(";.*", "").trim().toLowerCase();
+        boolean inline = Part.INLINE.equalsIgnoreCase(part.getDisposition())
+                || (part instanceof MimePart && ((MimePart) part).getContentID() != null
+                && !Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition()));
+        return new Attachment(section, name, contentType, part.getSize(), inline);
+    }
+
+    /**
+     * Finds a part by its IMAP section, as returned in the attachment id by {@link #getAttachments(Message)}.
+     * Its {@link Part#getInputStream()} streams the decoded content: IMAP fetches the section in blocks
+     * and base64 or quoted-printable is decoded as the blocks arrive.
+     *
+     * @param message the JavaMail Message, its folder must be open
+     * @param section the part section, e.g. 2 or 1.3
+     * @return the part
+     * @throws MessagingException if the section doesn't exist
+     * @throws IOException if there's an error reading the structure
+     */
+    public static Part getPart(Message message, String section) throws MessagingException, IOException {
+        Part part = message;
+        for (String index : section.split("\\.")) {
+            int number = Integer.parseInt(index);
+            if (!part.isMimeType("multipart/*")) {
+                if (part == message && number == 1) continue;
+                throw new MessagingException("No part " + section);
+            }
+            Multipart multipart = (Multipart) part.getContent();
+            if (number < 1 || number > multipart.getCount()) throw new MessagingException("No part " + section);
+            part = multipart.getBodyPart(number - 1);
+        }
+        return part;
+    }
+}
@@ -0,0 +1,271 @@
+package net.tokenu.mail.service;
+
+import com.commons.LogUtil;
+import com.sun.mail.imap.IMAPFolder;
+import net.tokenu.mail.model.EmailMessage;
+import net.tokenu.mail.util.FolderRole;
+import net.tokenu.mail.util.LeastRecentlyUsedMap;
+import net.tokenu.mail.util.Metrics;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which folders are fetched besides INBOX, and what they looked like last time.
+ * <p>
+ * IMAP folders are found with one LIST per account and process, by SPECIAL-USE attribute or name.
+ * Before a folder is SELECTed its STATUS (MESSAGES, UIDNEXT, UNSEEN) is asked for on the connection that is
+ * already open: empty folders are skipped, and a folder whose STATUS didn't change since the last fetch
+ * returns the messages of that fetch, whose lazy bodies can still be loaded by UID.
+ * Folder lists and fetches are kept for the CACHED_ACCOUNTS accounts used last, and fetches not at all in
+ * one-shot runs, which fetch every account once.
+ */
+public class MailFolders {
+    /**
+     * Folders to fetch: role names (inbox, junk, archive, sent, drafts, trash), folder names,
+     * or "all" for every folder that holds messages. INBOX is always fetched first.
+     */
+    public static List<String> FOLDERS = new ArrayList<>(Arrays.asList("inbox", "junk"));
+    public static int CACHED_ACCOUNTS = 10000;
+    // Off for runs that fetch every account once, the fetches would only fill memory
+    public static boolean keepFetches = true;
+
+    public static class Status {
+        private final int messages;
+        private final long uidNext;
+        private final int unseen;
+
+        Status(int messages, long uidNext, int unseen) {
+            this.messages = messages;
+            this.uidNext = uidNext;
+            this.unseen = unseen;
+        }
+
+        public int getMessages() {
+            return messages;
+        }
+
+        public long getUidNext() {
+            return uidNext;
+        }
+
+        public int getUnseen() {
+            return unseen;
+        }
+
+        // Flag changes don't move UIDNEXT, UNSEEN covers the read/unread ones shown in the list
+        boolean sameAs(Status other) {
+            return other != null && messages == other.messages && uidNext == other.uidNext && unseen == other.unseen;
+        }
+    }
+
+    private static class Snapshot {
+        final Status status;
+        final List<EmailMessage> messages;
+
+        Snapshot(Status status, List<EmailMessage> messages) {
+            this.status = status;
+            this.messages = messages;
+        }
+    }
+
+    // Full names of the folders to fetch by email, INBOX first
+    private static final Map<String, List<String>> imapFolders = Collections.synchronizedMap(new LeastRecentlyUsedMap<>(CACHED_ACCOUNTS));
+    // Role of each of those folders by email and full name, for folders that have one
+    private static final Map<String, Map<String, FolderRole>> imapRoles = Collections.synchronizedMap(new LeastRecentlyUsedMap<>(CACHED_ACCOUNTS));
+    // Last fetch by email and folder
+    private static final Map<String, Snapshot> snapshots = Collections.synchronizedMap(new LeastRecentlyUsedMap<>(CACHED_ACCOUNTS));
+
+    /**
+     * Resolves FOLDERS to folder names on the server. LIST is only sent the first time for an account.
+     *
+     * @param email The email address
+     * @param store A connected store
+     * @return Full folder names, INBOX first
+     * @throws MessagingException If LIST fails
+     */
+    public static List<String> imapFolders(String email, Store store) throws MessagingException {
+        List<String> cached = imapFolders.get(email.toLowerCase());
+        if (cached != null) return cached;
+
+        Folder[] all = store.getDefaultFolder().list("*");
+        Set<String> names = new LinkedHashSet<>();
+        names.add("INBOX");
+        for (String wanted : FOLDERS) {
+            FolderRole role = FolderRole.parse(wanted);
+            if (role == FolderRole.INBOX || wanted.equalsIgnoreCase("INBOX")) continue;
+
+            for (Folder folder : all) {
+                if (!holdsMessages(folder)) continue;
+                boolean match;
+                if (wanted.equalsIgnoreCase("all")) match = true;
+                else if (role != null) match = hasAttribute(folder, role.getAttribute());
+                else match = folder.getFullName().equalsIgnoreCase(wanted);
+                if (match) names.add(folder.getFullName());
+            }
+            // No SPECIAL-USE on this server, go by the usual names
+            if (role != null && names.stream().noneMatch(name -> isRole(all, name, role))) {
+                for (Folder folder : all) {
+                    if (holdsMessages(folder) && role.hasName(folder.getName())) names.add(folder.getFullName());
+                }
+            }
+        }
+        names.removeIf(name -> !name.equals("INBOX") && name.equalsIgnoreCase("INBOX"));
+
+        Map<String, FolderRole> roles = new ConcurrentHashMap<>();
+        roles.put("INBOX", FolderRole.INBOX);
+        for (Folder folder : all) {
+            if (!names.contains(folder.getFullName())) continue;
+            FolderRole role = roleOf(folder);
+            if (role != null) roles.putIfAbsent(folder.getFullName(), role);
+        }
+
+        List<String> result = new ArrayList<>(names);
+        imapRoles.put(email.toLowerCase(), roles);
+        imapFolders.put(email.toLowerCase(), result);
+        LogUtil.log("Folders of " + email + ": " + result);
+        return result;
+    }
+
+    /**
+     * Forgets the folder list of an account, e.g. after a folder was not found.
+     */
+    public static void forget(String email) {
+        imapFolders.remove(email.toLowerCase());
+        imapRoles.remove(email.toLowerCase());
+    }
+
+    /**
+     * @param folder A full name returned by {@link #imapFolders}
+     * @return The role of the folder, or null for other folders or before imapFolders resolved them
+     */
+    public static FolderRole role(String email, String folder) {
+        Map<String, FolderRole> roles = imapRoles.get(email.toLowerCase());
+        return roles != null ? roles.get(folder) : null;
+    }
+
+    /**
+     * Sends STATUS for a folder that is not selected.
+     */
+    public static Status status(IMAPFolder folder) throws MessagingException {
+        com.sun.mail.imap.protocol.Status status = (com.sun.mail.imap.protocol.Status) folder.doCommand(
+                protocol -> protocol.status(folder.getFullName(), new String[]{"MESSAGES", "UIDNEXT", "UNSEEN"}));
+        Metrics.increment("imap.folder.status");
+        return new Status(status.total, status.uidnext, status.unseen);
+    }
+
+    /**
+     * @return The messages of the last fetch if the folder's STATUS is the same, or null
+     */
+    public static List<EmailMessage> unchanged(String email, String folder, Status status) {
+        Snapshot snapshot = snapshots.get(email.toLowerCase() + "|" + folder);
+        if (snapshot == null || !status.sameAs(snapshot.status)) return null;
+        return snapshot.messages;
+    }
+
+    /**
+     * Keeps a fetch for {@link #unchanged}, unless keepFetches is off.
+     */
+    public static void remember(String email, String folder, Status status, List<EmailMessage> messages) {
+        if (!keepFetches) return;
+        snapshots.put(email.toLowerCase() + "|" + folder, new Snapshot(status, new ArrayList<>(messages)));
+    }
+
+    /**
+     * Resolves FOLDERS to Graph folders. Roles map to well-known folder names; folder names and "all"
+     * need one mailFolders request, and one request per role to recognize its folder in the listing.
+     *
+     * @return Folder by name to show (INBOX, role name or display name), INBOX first
+     */
+    public static Map<String, String> graphFolders(String accessToken) throws Exception {
+        Map<String, String> folders = new LinkedHashMap<>();
+        folders.put("INBOX", FolderRole.INBOX.getGraphName());
+        JSONArray listed = null;
+        for (String wanted : FOLDERS) {
+            FolderRole role = FolderRole.parse(wanted);
+            if (role == FolderRole.INBOX || wanted.equalsIgnoreCase("INBOX")) continue;
+            if (role != null) {
+                folders.put(role.name(), role.getGraphName());
+                continue;
+            }
+
+            if (listed == null) listed = Microsoft.getMailFoldersGraphAPI(accessToken);
+            for (int i = 0; i < listed.length(); i++) {
+                JSONObject folder = listed.getJSONObject(i);
+                String name = folder.optString("displayName");
+                boolean match = wanted.equalsIgnoreCase("all")
+                        ? folder.optInt("totalItemCount") > 0 && !name.equalsIgnoreCase("Inbox")
+                        : name.equalsIgnoreCase(wanted);
+                if (match) folders.put(name, folder.getString("id"));
+            }
+        }
+
+        // "all" and folder names list the role folders again under their display names, which may be translated.
+        // Graph returns the id with every folder, so the role folders are looked up once to drop the doubles.
+        if (listed != null) {
+            Set<String> roleIds = new HashSet<>();
+            for (String name : folders.keySet()) {
+                FolderRole role = FolderRole.parse(name);
+                if (role == null || !name.equals(role.name())) continue;
+                roleIds.add(Microsoft.getMailFolderGraphAPI(accessToken, role.getGraphName()).optString("id"));
+            }
+            folders.entrySet().removeIf(folder -> {
+                FolderRole role = FolderRole.parse(folder.getKey());
+                return (role == null || !folder.getKey().equals(role.name())) && roleIds.contains(folder.getValue());
+            });
+        }
+        return folders;
+    }
+
+    private static boolean holdsMessages(Folder folder) {
+        try {
+            return (folder.getType() & Folder.HOLDS_MESSAGES) != 0 && !hasAttribute(folder, "\\Noselect");
+        }
+        catch (MessagingException e) {
+            return false;
+        }
+    }
+
+    // By SPECIAL-USE attribute first, then by the usual names
+    private static FolderRole roleOf(Folder folder) {
+        for (FolderRole role : FolderRole.values()) {
+            if (hasAttribute(folder, role.getAttribute())) return role;
+        }
+        for (FolderRole role : FolderRole.values()) {
+            if (role != FolderRole.INBOX && role.hasName(folder.getName())) return role;
+        }
+        return null;
+    }
+
+    private static boolean isRole(Folder[] all, String name, FolderRole role) {
+        for (Folder folder : all) {
+            if (folder.getFullName().equals(name)) return hasAttribute(folder, role.getAttribute());
+        }
+        return false;
+    }
+
+    private static boolean hasAttribute(Folder folder, String attribute) {
+        if (attribute == null || !(folder instanceof IMAPFolder)) return false;
+        try {
+            for (String value : ((IMAPFolder) folder).getAttributes()) {
+                if (value.equalsIgnoreCase(attribute)) return true;
+            }
+        }
+        catch (MessagingException ignored) {
+        }
+        return false;
+    }
+}
@@ -0,0 +1,552 @@
+package net.tokenu.mail.service;
+
+import com.commons.LogUtil;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.mail.imap.IMAPFolder;
+import net.tokenu.mail.model.EmailAccount;
+import net.tokenu.mail.util.AuthType;
+import net.tokenu.mail.util.Metrics;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.FolderNotFoundException;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import javax.mail.UIDFolder;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exports whole mailboxes (--export DIR) as raw RFC 822 messages under DIR/{email}/:
+ * one mbox file per folder, one Maildir per folder, or one .eml file per message.
+ * <p>
+ * Messages are streamed from the server into the file. IMAP fetches BODY.PEEK[] in blocks on a read-only
+ * connection, Graph sends /$value. Nothing is parsed or held in memory. Accounts are exported THREADS at a time.
+ * <p>
+ * Every folder has a watermark in DIR/{email}/export.json: the UIDVALIDITY and last exported UID on IMAP,
+ * the receivedDateTime and ids of the last exported messages on Graph. A later run continues after it, so a stopped
+ * export or an account that received more mail only fetches what is missing. An mbox file is cut back to the length
+ * saved with its watermark first, which drops a message that was only partly written.
+ * When the UIDVALIDITY of an IMAP folder changed, the folder is exported again into a new file (or directory)
+ * named after the new UIDVALIDITY, next to the old one.
+ * <p>
+ * Failing to write to DIR (a full disk, missing permissions) says nothing about the account, so it is only logged.
+ */
+public class MailboxExporter {
+    public enum Layout {
+        MBOX,
+        MAILDIR,
+        EML
+    }
+
+    private static final int BATCH = 100;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String STATE_FILE = "export.json";
+    // asctime, as used on the "From " line that separates mbox messages
+    private static final DateTimeFormatter MBOX_DATE =
+            DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US).withZone(ZoneOffset.UTC);
+
+    private interface Source {
+        void writeTo(OutputStream out) throws Exception;
+    }
+
+    private interface LocalWork<T> {
+        T run() throws IOException;
+    }
+
+    // Reading or writing the export directory failed
+    private static class LocalException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        LocalException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    private final List<EmailAccount> accounts;
+    private final int threads;
+    private final Path directory;
+    private final Layout layout;
+    private final AtomicInteger index = new AtomicInteger();
+
+    public MailboxExporter(List<EmailAccount> accounts, int threads, String directory, Layout layout) {
+        this.accounts = accounts;
+        this.threads = Math.max(1, threads);
+        this.directory = Paths.get(directory);
+        this.layout = layout;
+    }
+
+    public void run() throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        for (EmailAccount account : accounts) {
+            ResultWriter.Category known = NegativeCache.lookup(account);
+            if (known != null) {
+                LogUtil.warning(String.format("[%d] %s skipped, known %s", index.incrementAndGet(), account, known));
+                continue;
+            }
+            workers.submit(() -> exportAccount(account));
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        NegativeCache.save();
+    }
+
+    private void exportAccount(EmailAccount account) {
+        long start = System.currentTimeMillis();
+        try {
+            Microsoft.refreshAccessToken(account);
+            Path root = directory.resolve(safeName(account.getEmail().toLowerCase()));
+            local(() -> Files.createDirectories(root));
+            JsonObject state = loadState(root);
+
+            int exported = account.getType() == AuthType.GRAPH
+                    ? exportGraph(account, root, state)
+                    : exportImap(account, root, state);
+            NegativeCache.clear(account);
+            LogUtil.successful(String.format("[%d] %s (%d messages exported in %dms)",
+                    index.incrementAndGet(), account, exported, System.currentTimeMillis() - start));
+        }
+        catch (LocalException e) {
+            LogUtil.error(String.format("[%d] %s not exported, writing to %s failed: %s",
+                    index.incrementAndGet(), account, directory, e.getMessage()));
+        }
+        catch (Throwable e) {
+            ResultWriter.Category category = ResultWriter.classify(e);
+            LogUtil.error(String.format("[%d] %s %s: %s", index.incrementAndGet(), account, category, e.getMessage()));
+            if (category.isAuthFailure()) NegativeCache.record(account, category);
+        }
+    }
+
+    private int exportImap(EmailAccount account, Path root, JsonObject state) throws Exception {
+        String email = account.getEmail();
+        boolean isOAuth = account.getType() != AuthType.IMAP_BASIC;
+        String credential = isOAuth ? account.getAccessToken() : account.getPassword();
+
+        Store store = Governor.forKey(Microsoft.getHost(email)).call(() -> Microsoft.connectStore(email, credential, isOAuth));
+        int exported = 0;
+        try {
+            for (String name : MailFolders.imapFolders(email, store)) {
+                IMAPFolder folder = (IMAPFolder) store.getFolder(name);
+                try {
+                    folder.open(Folder.READ_ONLY);
+                }
+                catch (FolderNotFoundException e) {
+                    MailFolders.forget(email);
+                    continue;
+                }
+                try {
+                    exported += exportImapFolder(email, root, state, folder);
+                }
+                finally {
+                    folder.close(false);
+                }
+            }
+        }
+        finally {
+            try {
+                store.close();
+            }
+            catch (MessagingException ignored) {
+            }
+        }
+        return exported;
+    }
+
+    private int exportImapFolder(String email, Path root, JsonObject state, IMAPFolder folder) throws Exception {
+        String name = folder.getFullName();
+        JsonObject mark = mark(state, name);
+        long uidValidity = folder.getUIDValidity();
+        long lastUid = mark.has("lastUid") ? mark.get("lastUid").getAsLong() : 0;
+        if (mark.has("uidValidity") && mark.get("uidValidity").getAsLong() != uidValidity) {
+            // The old export stays as it is, its messages may be gone from the server by now
+            String file = safeName(name) + "." + uidValidity;
+            LogUtil.warning(name + " of " + email + " was renumbered (UIDVALIDITY changed), exporting all of it again to " + file);
+            lastUid = 0;
+            mark.addProperty("file", file);
+            mark.remove("mboxLength");
+        }
+        mark.addProperty("uidValidity", uidValidity);
+        mark.addProperty("lastUid", lastUid);
+
+        Message[] messages = folder.getMessageCount() == 0 ? new Message[0]
+                : folder.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID);
+        FetchProfile profile = new FetchProfile();
+        profile.add(UIDFolder.FetchProfileItem.UID);
+        profile.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
+
+        int exported = 0;
+        try (FolderOutput output = new FolderOutput(root, name, mark)) {
+            for (int i = 0; i < messages.length; i += BATCH) {
+                Message[] batch = Arrays.copyOfRange(messages, i, Math.min(messages.length, i + BATCH));
+                folder.fetch(batch, profile);
+                for (Message message : batch) {
+                    long uid = folder.getUID(message);
+                    // n:* always includes the last message, even when its UID is below n
+                    if (uid <= lastUid) continue;
+
+                    Date received = message.getReceivedDate();
+                    long length = output.write(uidValidity + "-" + uid,
+                            received != null ? received.getTime() : 0, message::writeTo);
+                    lastUid = uid;
+                    mark.addProperty("lastUid", uid);
+                    mark.addProperty("mboxLength", length);
+                    exported++;
+                }
+                saveState(root, state);
+            }
+        }
+        saveState(root, state);
+        return exported;
+    }
+
+    private int exportGraph(EmailAccount account, Path root, JsonObject state) throws Exception {
+        String accessToken = account.getAccessToken();
+        int exported = 0;
+        for (Map.Entry<String, String> folder : MailFolders.graphFolders(accessToken).entrySet()) {
+            exported += exportGraphFolder(accessToken, root, state, folder.getKey(), folder.getValue());
+        }
+        return exported;
+    }
+
+    private int exportGraphFolder(String accessToken, Path root, JsonObject state, String name, String folder) throws Exception {
+        JsonObject mark = mark(state, name);
+        String since = mark.has("since") ? mark.get("since").getAsString() : null;
+        // Messages received at exactly "since" that were already exported
+        Set<String> seen = new HashSet<>();
+        if (mark.has("ids")) {
+            for (JsonElement id : mark.getAsJsonArray("ids")) {
+                seen.add(id.getAsString());
+            }
+        }
+
+        String link = "https://graph.microsoft.com/v1.0/me/mailFolders/" + folder
+                + "/messages?$top=" + BATCH + "&$select=id,receivedDateTime&$orderby=receivedDateTime%20asc"
+                + (since != null ? "&$filter=" + URLEncoder.encode("receivedDateTime ge " + since, "UTF-8") : "");
+
+        int exported = 0;
+        try (FolderOutput output = new FolderOutput(root, name, mark)) {
+            while (link != null) {
+                JSONObject page = Microsoft.getGraphAPI(accessToken, link);
+                JSONArray values = page.optJSONArray("value");
+                for (int i = 0; values != null && i < values.length(); i++) {
+                    String id = values.getJSONObject(i).getString("id");
+                    String received = values.getJSONObject(i).optString("receivedDateTime", "");
+                    if (received.equals(since) && seen.contains(id)) continue;
+
+                    long length = output.write(UUID.nameUUIDFromBytes(id.getBytes(StandardCharsets.UTF_8)).toString(),
+                            parse(received), out -> Microsoft.writeMessageGraphAPI(accessToken, id, out));
+                    if (!received.equals(since)) {
+                        since = received;
+                        seen.clear();
+                    }
+                    seen.add(id);
+
+                    JsonArray ids = new JsonArray();
+                    seen.forEach(ids::add);
+                    mark.addProperty("since", since);
+                    mark.add("ids", ids);
+                    mark.addProperty("mboxLength", length);
+                    exported++;
+                }
+                saveState(root, state);
+                link = page.optString("@odata.nextLink", null);
+            }
+        }
+        return exported;
+    }
+
+    /**
+     * Where the messages of one folder go.
+     */
+    private class FolderOutput implements Closeable {
+        private final Path path;
+        private FileChannel mbox;
+        private OutputStream mboxOut;
+
+        FolderOutput(Path root, String folder, JsonObject mark) throws IOException {
+            // A folder exported again after its UIDVALIDITY changed goes to a file of its own
+            String file = mark.has("file") ? mark.get("file").getAsString() : safeName(folder);
+            if (layout == Layout.MBOX) {
+                path = root.resolve(file + ".mbox");
+                long length = mark.has("mboxLength") ? mark.get("mboxLength").getAsLong() : 0;
+                local(() -> {
+                    mbox = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    if (mbox.size() > length) mbox.truncate(length);
+                    return mbox.position(mbox.size());
+                });
+                mboxOut = new LocalOutputStream(new BufferedOutputStream(Channels.newOutputStream(mbox), BUFFER_SIZE));
+            }
+            else {
+                path = root.resolve(file);
+                local(() -> {
+                    if (layout == Layout.MAILDIR) {
+                        Files.createDirectories(path.resolve("tmp"));
+                        Files.createDirectories(path.resolve("new"));
+                        return Files.createDirectories(path.resolve("cur"));
+                    }
+                    return Files.createDirectories(path);
+                });
+            }
+        }
+
+        /**
+         * @param name A file name that is the same every time the message is exported
+         * @return The length of the mbox file after the message, 0 for the other layouts
+         */
+        long write(String name, long receivedAt, Source source) throws Exception {
+            Metrics.increment("export.messages");
+            if (layout == Layout.MBOX) {
+                String separator = "From MAILER-DAEMON " + MBOX_DATE.format(Instant.ofEpochMilli(receivedAt)) + "\n";
+                mboxOut.write(separator.getBytes(StandardCharsets.US_ASCII));
+                MboxOutputStream body = new MboxOutputStream(mboxOut);
+                source.writeTo(body);
+                body.finish();
+                mboxOut.flush();
+                return mbox.position();
+            }
+
+            // Written next to the target and renamed, a file under its final name is always complete
+            Path temp = (layout == Layout.MAILDIR ? path.resolve("tmp") : path).resolve(name + ".part");
+            OutputStream file = local(() -> Files.newOutputStream(temp));
+            try (OutputStream out = new LocalOutputStream(new BufferedOutputStream(file, BUFFER_SIZE))) {
+                source.writeTo(out);
+            }
+            Path target = layout == Layout.MAILDIR ? path.resolve("new").resolve(name) : path.resolve(name + ".eml");
+            local(() -> Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE));
+            return 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mboxOut != null) mboxOut.close();
+        }
+    }
+
+    /**
+     * Reports failures of the file it writes to as {@link LocalException}, to tell them apart from
+     * failures of the source while it is copied.
+     */
+    private static class LocalOutputStream extends FilterOutputStream {
+        LocalOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            local(() -> {
+                out.write(b);
+                return null;
+            });
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            local(() -> {
+                out.write(b, off, len);
+                return null;
+            });
+        }
+
+        @Override
+        public void flush() throws IOException {
+            local(() -> {
+                out.flush();
+                return null;
+            });
+        }
+
+        @Override
+        public void close() throws IOException {
+            local(() -> {
+                out.close();
+                return null;
+            });
+        }
+    }
+
+    private static <T> T local(LocalWork<T> work) throws LocalException {
+        try {
+            return work.run();
+        }
+        catch (LocalException e) {
+            throw e;
+        }
+        catch (IOException e) {
+            throw new LocalException(e);
+        }
+    }
+
+    /**
+     * Writes one message into an mbox file the mboxrd way: CRLF becomes LF, and a line starting with "From "
+     * after any number of '>' gets one more '>', so it can't be taken for the start of the next message.
+     * Only the start of the current line is held back while it could still be such a line.
+     */
+    static class MboxOutputStream extends FilterOutputStream {
+        private static final byte[] FROM = "From ".getBytes(StandardCharsets.US_ASCII);
+
+        private final byte[] prefix = new byte[64];
+        private int prefixLength;
+        private boolean lineStart = true;
+        private boolean carriageReturn;
+        private int last = '\n';
+
+        MboxOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (carriageReturn) {
+                carriageReturn = false;
+                if (b != '\n') put('\r');
+            }
+            if (b == '\r') {
+                carriageReturn = true;
+                return;
+            }
+            put(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        private void put(int b) throws IOException {
+            if (!lineStart) {
+                emit(b);
+                if (b == '\n') lineStart = true;
+                return;
+            }
+            if (b == '\n') {
+                flushPrefix();
+                emit(b);
+                return;
+            }
+            if (prefixLength == prefix.length) {
+                flushPrefix();
+                lineStart = false;
+                emit(b);
+                return;
+            }
+
+            prefix[prefixLength++] = (byte) b;
+            int match = matchPrefix();
+            if (match == 0) return;
+            if (match > 0) emit('>');
+            flushPrefix();
+            lineStart = false;
+        }
+
+        // 1 for >*"From ", 0 while it could still become one, -1 otherwise
+        private int matchPrefix() {
+            int i = 0;
+            while (i < prefixLength && prefix[i] == '>') i++;
+            int j = 0;
+            while (i < prefixLength && j < FROM.length) {
+                if (prefix[i++] != FROM[j++]) return -1;
+            }
+            return j == FROM.length ? 1 : 0;
+        }
+
+        private void flushPrefix() throws IOException {
+            for (int i = 0; i < prefixLength; i++) {
+                emit(prefix[i]);
+            }
+            prefixLength = 0;
+        }
+
+        private void emit(int b) throws IOException {
+            out.write(b);
+            last = b;
+        }
+
+        /**
+         * Ends the message with a line break and the blank line before the next "From " line.
+         * The underlying stream is neither flushed nor closed.
+         */
+        void finish() throws IOException {
+            if (carriageReturn) {
+                carriageReturn = false;
+                put('\r');
+            }
+            flushPrefix();
+            if (last != '\n') emit('\n');
+            emit('\n');
+            lineStart = true;
+        }
+
+        @Override
+        public void close() {
+            // The mbox file stays open for the next message
+        }
+    }
+
+    private static JsonObject mark(JsonObject state, String folder) {
+        if (!state.has(folder)) state.add(folder, new JsonObject());
+        return state.getAsJsonObject(folder);
+    }
+
+    private static JsonObject loadState(Path root) throws IOException {
+        Path file = root.resolve(STATE_FILE);
+        if (!Files.exists(file)) return new JsonObject();
+        byte[] bytes = local(() -> Files.readAllBytes(file));
+        return JsonParser.parseString(new String(bytes, StandardCharsets.UTF_8)).getAsJsonObject();
+    }
+
+    // Replaced as a whole, so a crash leaves either the old or the new watermarks
+    private static void saveState(Path root, JsonObject state) throws IOException {
+        Path temp = root.resolve(STATE_FILE + ".tmp");
+        local(() -> Files.write(temp, state.toString().getBytes(StandardCharsets.UTF_8)));
+        local(() -> Files.move(temp, root.resolve(STATE_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE));
+    }
+
+    private static String safeName(String name) {
+        return name.replaceAll("[^A-Za-z0-9@._ -]", "_");
+    }
+
+    private static long parse(String dateTime) {
+        try {
+            return Instant.parse(dateTime).toEpochMilli();
+        }
+        catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+}
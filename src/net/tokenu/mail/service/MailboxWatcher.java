@@ -0,0 +1,169 @@
+package net.tokenu.mail.service;
+
+import com.commons.LogUtil;
+import net.tokenu.mail.model.EmailAccount;
+import net.tokenu.mail.model.EmailMessage;
+import net.tokenu.mail.util.AuthType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the inbox of one account for new messages and offers them to the account's subscriptions.
+ * {@link MessageWaiter} starts one for the first subscription of an account and stops it after the last one.
+ * <p>
+ * Delays are kept by the waiter's timer thread, which only hands the work to its workers: connects and polls
+ * block on the network and would otherwise hold up every other watcher's schedule and the wait timeouts.
+ */
+abstract class MailboxWatcher {
+    // Messages received this long before the watcher started are offered to subscriptions that ask for them
+    static long LOOKBACK = TimeUnit.MINUTES.toMillis(10);
+    private static final int RECENT_LIMIT = 50;
+
+    static class Received {
+        final EmailMessage message;
+        final long receivedAt;
+
+        Received(EmailMessage message, long receivedAt) {
+            this.message = message;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    protected final EmailAccount account;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService workers;
+    private final List<MessageWaiter.Subscription> subscriptions = new ArrayList<>();
+    private final Deque<Received> recent = new ArrayDeque<>();
+    protected volatile boolean stopped;
+
+    protected MailboxWatcher(EmailAccount account, ScheduledExecutorService timer, ExecutorService workers) {
+        this.account = account;
+        this.timer = timer;
+        this.workers = workers;
+    }
+
+    /**
+     * Creates the cheapest watcher for the account: Graph delta polling, or IMAP IDLE / NOOP polling.
+     * Graph accounts whose clientId is known to only work with IMAP are watched over IMAP right away.
+     */
+    static MailboxWatcher create(EmailAccount account, ScheduledExecutorService timer, ExecutorService workers) {
+        if (account.getType() == AuthType.GRAPH
+                && CapabilityRegistry.isImapOnly(Microsoft.getHost(account.getEmail()), account.getClientId())) {
+            account.setType(AuthType.IMAP_OAUTH);
+        }
+        if (account.getType() == AuthType.GRAPH) return new GraphMailboxWatcher(account, timer, workers);
+        return new ImapMailboxWatcher(account, timer, workers);
+    }
+
+    abstract void start();
+
+    abstract void stop();
+
+    boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Runs blocking work on a worker thread.
+     */
+    protected void execute(Runnable work) {
+        workers.execute(work);
+    }
+
+    /**
+     * Runs blocking work on a worker thread after a delay.
+     *
+     * @return The scheduled hand-off, cancelling it only helps before the delay passed
+     */
+    protected ScheduledFuture<?> schedule(Runnable work, long delayMillis) {
+        return timer.schedule(() -> workers.execute(work), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a subscription.
+     *
+     * @return The messages seen so far, to be offered to the subscription with {@link #offer}
+     */
+    synchronized List<Received> subscribe(MessageWaiter.Subscription subscription) {
+        subscriptions.add(subscription);
+        return new ArrayList<>(recent);
+    }
+
+    /**
+     * @return true if this was the last subscription
+     */
+    synchronized boolean unsubscribe(MessageWaiter.Subscription subscription) {
+        return subscriptions.remove(subscription) && subscriptions.isEmpty();
+    }
+
+    /**
+     * Moves the subscriptions and the messages seen so far to another watcher of the same account.
+     */
+    synchronized void handOver(MailboxWatcher next) {
+        synchronized (next) {
+            next.subscriptions.addAll(subscriptions);
+            next.recent.addAll(recent);
+        }
+        subscriptions.clear();
+    }
+
+    void offer(MessageWaiter.Subscription subscription, List<Received> messages) {
+        for (Received received : messages) {
+            if (received.receivedAt >= subscription.getSince() && subscription.offer(received.message)) return;
+        }
+    }
+
+    /**
+     * Offers a message to every subscription that wants messages received at or after {@code receivedAt}.
+     * Predicates run outside the lock, since they may load the body.
+     *
+     * @param receivedAt When the message was received, or when it was seen for messages that arrived while watching
+     */
+    protected void deliver(EmailMessage message, long receivedAt) {
+        List<MessageWaiter.Subscription> current;
+        synchronized (this) {
+            recent.addLast(new Received(message, receivedAt));
+            if (recent.size() > RECENT_LIMIT) recent.removeFirst();
+            current = new ArrayList<>(subscriptions);
+        }
+        for (MessageWaiter.Subscription subscription : current) {
+            if (receivedAt >= subscription.getSince()) subscription.offer(message);
+        }
+    }
+
+    /**
+     * Fails every subscription and stops, e.g. after the credentials were rejected.
+     */
+    protected void failAll(Exception e) {
+        LogUtil.error(String.format("Stopped watching %s: %s", account.getEmail(), e.getMessage()));
+        stopped = true;
+        List<MessageWaiter.Subscription> current;
+        synchronized (this) {
+            current = new ArrayList<>(subscriptions);
+        }
+        for (MessageWaiter.Subscription subscription : current) {
+            subscription.fail(e);
+        }
+    }
+
+    /**
+     * @return true if retrying can't help, so the subscriptions should fail right away
+     */
+    protected static boolean isPermanent(Exception e) {
+        switch (ResultWriter.classify(e)) {
+            case INVALID_CREDENTIALS:
+            case TOKEN_REVOKED:
+            case LOCKED:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package net.tokenu.mail.service;
+
+import com.commons.ThrowableUtil;
+import net.tokenu.mail.model.EmailAccount;
+import net.tokenu.mail.model.EmailMessage;
+import net.tokenu.mail.util.Metrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Waits for messages matching a predicate to arrive, for any number of accounts at once,
+ * or streams every new message of an account with {@link #watch}.
+ * Every account with at least one subscription has one {@link MailboxWatcher}: IMAP accounts use IDLE
+ * when the server has it and NOOP polling otherwise, on a pooled connection; Graph accounts poll the delta endpoint.
+ * <pre>
+ * MessageWaiter.getInstance()
+ *         .waitFor(account, m -&gt; m.getFrom().contains("example.com"), 60000)
+ *         .thenAccept(message -&gt; ...);
+ * </pre>
+ */
+public class MessageWaiter {
+    // Threads connecting and polling, the delays and wait timeouts are kept by one timer thread
+    public static int THREADS = 8;
+
+    private static final MessageWaiter instance = new MessageWaiter();
+
+    /**
+     * One wait: completes with the first message accepted by the predicate,
+     * or exceptionally with a TimeoutException or the error that stopped the watcher.
+     */
+    public static class Subscription {
+        private final Predicate<EmailMessage> predicate;
+        private final long since;
+        // Set for watches, which get every message and only complete when they are closed
+        private final Consumer<EmailMessage> listener;
+        private final CompletableFuture<EmailMessage> future = new CompletableFuture<>();
+
+        Subscription(Predicate<EmailMessage> predicate, long since, Consumer<EmailMessage> listener) {
+            this.predicate = predicate;
+            this.since = since;
+            this.listener = listener;
+        }
+
+        long getSince() {
+            return since;
+        }
+
+        /**
+         * @return true if the message completed the subscription
+         */
+        boolean offer(EmailMessage message) {
+            if (future.isDone()) return false;
+            try {
+                if (!predicate.test(message)) return false;
+                // Loaded on the watcher thread so the caller doesn't wait for it; lazy IMAP bodies
+                // come through ImapMessageLoader, which reconnects if the connection is gone by then
+                message.getBody();
+            }
+            catch (RuntimeException e) {
+                ThrowableUtil.println(e);
+                return false;
+            }
+            if (listener == null) return future.complete(message);
+            try {
+                listener.accept(message);
+            }
+            catch (RuntimeException e) {
+                ThrowableUtil.println(e);
+            }
+            return false;
+        }
+
+        void fail(Exception e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * A running {@link #watch}; closing it stops the delivery.
+     */
+    public interface Watch extends AutoCloseable {
+        @Override
+        void close();
+
+        /**
+         * @return true after close, or after the watcher gave up on the account
+         */
+        boolean isClosed();
+    }
+
+    private final Map<String, MailboxWatcher> watchers = new HashMap<>();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "message-waiter-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService workers = Executors.newFixedThreadPool(THREADS, r -> {
+        Thread thread = new Thread(r, "message-waiter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private MessageWaiter() {
+        Metrics.gauge("waiter.subscriptions", waiting::get);
+        Metrics.gauge("waiter.watchers", this::watcherCount);
+    }
+
+    public static MessageWaiter getInstance() {
+        return instance;
+    }
+
+    /**
+     * Waits for a message that arrives from now on.
+     *
+     * @see #waitFor(EmailAccount, Predicate, long, long)
+     */
+    public CompletableFuture<EmailMessage> waitFor(EmailAccount account, Predicate<EmailMessage> predicate, long timeoutMillis) {
+        return waitFor(account, predicate, System.currentTimeMillis(), timeoutMillis);
+    }
+
+    /**
+     * Waits for a message accepted by the predicate.
+     *
+     * @param account The account to watch
+     * @param predicate Tested once per message, on a watcher thread
+     * @param since Also accept messages received since this time (at most {@link MailboxWatcher#LOOKBACK} ago),
+     *              e.g. for a message that may have arrived before the wait started
+     * @param timeoutMillis How long to wait
+     * @return A future with the first matching message; it fails with a TimeoutException after timeoutMillis.
+     *         Cancelling it ends the wait.
+     */
+    public CompletableFuture<EmailMessage> waitFor(EmailAccount account, Predicate<EmailMessage> predicate,
+                                                   long since, long timeoutMillis) {
+        Subscription subscription = new Subscription(predicate, since, null);
+        Metrics.increment("waiter.started");
+
+        long start = System.currentTimeMillis();
+        ScheduledFuture<?> timeout = timer.schedule(() -> subscription.fail(new TimeoutException(
+                        "No matching message for " + account.getEmail() + " within " + timeoutMillis + "ms")),
+                timeoutMillis, TimeUnit.MILLISECONDS);
+        subscription.future.whenComplete((message, e) -> {
+            timeout.cancel(false);
+            if (message != null) Metrics.time("waiter.matched", System.currentTimeMillis() - start);
+            else Metrics.increment(e instanceof TimeoutException ? "waiter.timeout" : "waiter.failed");
+        });
+
+        register(account, subscription);
+        return subscription.future;
+    }
+
+    /**
+     * Delivers every message that arrives from now on to the listener, until the watch is closed
+     * or the account's credentials are rejected.
+     *
+     * @param account The account to watch
+     * @param listener Called on a watcher thread, with the body already loaded
+     * @return The watch, close it to stop
+     */
+    public Watch watch(EmailAccount account, Consumer<EmailMessage> listener) {
+        Subscription subscription = new Subscription(message -> true, System.currentTimeMillis(), listener);
+        register(account, subscription);
+        return new Watch() {
+            @Override
+            public void close() {
+                subscription.future.cancel(false);
+            }
+
+            @Override
+            public boolean isClosed() {
+                return subscription.future.isDone();
+            }
+        };
+    }
+
+    private void register(EmailAccount account, Subscription subscription) {
+        String key = account.getEmail().toLowerCase();
+        MailboxWatcher watcher;
+        List<MailboxWatcher.Received> seen;
+        synchronized (this) {
+            watcher = watchers.get(key);
+            if (watcher == null || watcher.isStopped()) {
+                watcher = MailboxWatcher.create(account, timer, workers);
+                watchers.put(key, watcher);
+                watcher.start();
+            }
+            seen = watcher.subscribe(subscription);
+        }
+        waiting.incrementAndGet();
+
+        subscription.future.whenComplete((message, e) -> {
+            waiting.decrementAndGet();
+            unsubscribe(key, subscription);
+        });
+        watcher.offer(subscription, seen);
+    }
+
+    /**
+     * Replaces a watcher with a new one for the account, e.g. after it was switched from Graph to IMAP.
+     * The subscriptions move over and keep waiting.
+     */
+    synchronized void replace(MailboxWatcher watcher) {
+        watcher.stop();
+        String key = watcher.account.getEmail().toLowerCase();
+        if (watchers.get(key) != watcher) return;
+        MailboxWatcher next = MailboxWatcher.create(watcher.account, timer, workers);
+        watcher.handOver(next);
+        watchers.put(key, next);
+        next.start();
+    }
+
+    /**
+     * Stops every watcher; pending waits fail.
+     */
+    public void shutdown() {
+        List<MailboxWatcher> all;
+        synchronized (this) {
+            all = new ArrayList<>(watchers.values());
+            watchers.clear();
+        }
+        for (MailboxWatcher watcher : all) {
+            watcher.failAll(new IllegalStateException("MessageWaiter was shut down"));
+            watcher.stop();
+        }
+    }
+
+    // The account's current watcher, the subscription may have been moved to it by replace
+    private synchronized void unsubscribe(String key, Subscription subscription) {
+        MailboxWatcher watcher = watchers.get(key);
+        if (watcher != null && watcher.unsubscribe(subscription)) {
+            watcher.stop();
+            watchers.remove(key, watcher);
+        }
+    }
+
+    private synchronized int watcherCount() {
+        return watchers.size();
+    }
+}
@@ -11,219 +11,396 @@ import com.commons.http.HttpClient;
 import com.commons.http.ProxyUtil;
 import com.commons.http.ResponseContent;
 import com.commons.exception.ConnectException;
-import com.commons.json.JsonObjectUtil;
-import com.commons.json.JsonUtil;
 import net.tokenu.mail.Main;
+import net.tokenu.mail.model.AccountDatabase;
+import net.tokenu.mail.model.AccountStore;
+import net.tokenu.mail.model.Attachment;
 import net.tokenu.mail.model.EmailAccount;
 import net.tokenu.mail.model.EmailMessage;
+import net.tokenu.mail.model.MessageReference;
 import net.tokenu.mail.util.AuthType;
+import net.tokenu.mail.util.CircuitOpenException;
+import net.tokenu.mail.util.Deadline;
+import net.tokenu.mail.util.FileWatcher;
+import net.tokenu.mail.util.FolderRole;
 import net.tokenu.mail.util.Format;
 import net.tokenu.mail.util.InvalidAuthenticationToken;
+import net.tokenu.mail.util.Log;
+import net.tokenu.mail.util.Metrics;
+import net.tokenu.mail.util.SharedSecret;
+import net.tokenu.mail.util.ThrottledException;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
 import javax.mail.*;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.SocketTimeoutException;
+import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 public class Microsoft {
     public static boolean multipleThreaded = false;
+    // IMAP listings borrow the account's connection from the ImapConnectionPool instead of opening their own,
+    // so listings and lazy body loads of an account share one session that stays open between them.
+    // Set by the GUI and the daemon, a --cli run lists every account once and closes its connection.
+    public static boolean pooledConnections = false;
     public static boolean lazyLoad = true;
     public static int IMAP_MAXIMUM_LOAD_MESSAGE = 5;
     public static ProxyUtil IMAP_PROXY;
+    // RFC 4978 COMPRESS=DEFLATE, only sent when the server advertises it
+    public static boolean IMAP_COMPRESS = true;
+    // Count uncompressed bytes and commands from the protocol trace (see ImapStats)
+    public static boolean IMAP_TRACE_STATS = false;
+    // Budget for token refresh, connect and fetch of one account
+    public static long ACCOUNT_DEADLINE = 90000;
+    // Start a second connect through another proxy when the first one passes the host's p95
+    public static boolean HEDGED_CONNECT = true;
+
+    // Number of accounts checked at the same time by --cli, more than 1 implies multipleThreaded
+    public static int BULK_THREADS = 1;
 
     public static String fileName = "emails.txt";
     public static String hosts = "hosts.json";
     public static Format formatType;
+    // Errors of the accounts file printed while loading, --validate writes all of them
+    private static final int MAX_REPORTED_ERRORS = 20;
+    // Binary account database used instead of fileName (--db), imported from fileName if it doesn't exist yet
+    public static String database;
+    private static AccountDatabase accountDatabase;
 
     // Store the current open folder and store for IMAP
     private static Folder currentFolder;
     private static Store currentStore;
     private static String currentEmail;
 
+    private static final String TOKEN_ENDPOINT = "login.microsoftonline.com";
+    static final String GRAPH_ENDPOINT = "graph.microsoft.com";
+    private static final Pattern RETRY_AFTER = Pattern.compile("(?i)Retry-After\\W+(\\d+)");
+
+    // JavaMail sessions by host, auth type, proxy and timeouts, see getIMAPSession
+    private static final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    // {user, password} by proxy host:port, for proxies picked from proxies.txt that need them
+    private static final Map<String, String[]> proxyCredentials = new ConcurrentHashMap<>();
+    // IMAP host by email domain, hosts.json is read once per domain
+    private static final Map<String, String> hostCache = new ConcurrentHashMap<>();
+    private static final ExecutorService hedgeExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "imap-connect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public static void main(String[] args) throws Exception {
+        boolean resume = false;
+        int coordinatorPort = -1;
+        int spawn = 0;
+        InetAddress bind = InetAddress.getLoopbackAddress();
+        String worker = null;
+        int daemonPort = -1;
+        RuleEngine rules = null;
+        String exportDirectory = null;
+        String databaseExport = null;
+        String validate = null;
+        Format databaseFormat = null;
+        String secret = SharedSecret.fromEnvironment();
+        MailboxExporter.Layout exportLayout = MailboxExporter.Layout.MBOX;
+        List<String> workerArgs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("--threads") && i + 1 < args.length) {
+                BULK_THREADS = Integer.parseInt(args[++i]);
+                workerArgs.addAll(Arrays.asList("--threads", args[i]));
+            }
+            else if (args[i].equalsIgnoreCase("--rules") && i + 1 < args.length) {
+                rules = RuleEngine.load(args[++i]);
+                LogUtil.log("Loaded " + rules.size() + " rules from " + args[i]);
+                workerArgs.addAll(Arrays.asList("--rules", args[i]));
+            }
+            else if (args[i].equalsIgnoreCase("--folders") && i + 1 < args.length) {
+                MailFolders.FOLDERS = new ArrayList<>(Arrays.asList(args[++i].split(",")));
+                workerArgs.addAll(Arrays.asList("--folders", args[i]));
+            }
+            else if (args[i].equalsIgnoreCase("--export") && i + 1 < args.length) {
+                exportDirectory = args[++i];
+            }
+            else if (args[i].equalsIgnoreCase("--export-format") && i + 1 < args.length) {
+                exportLayout = MailboxExporter.Layout.valueOf(args[++i].toUpperCase());
+            }
+            else if (args[i].equalsIgnoreCase("--validate")) {
+                validate = i + 1 < args.length && !args[i + 1].startsWith("--") ? args[++i] : fileName;
+            }
+            else if (args[i].equalsIgnoreCase("--db") && i + 1 < args.length) {
+                database = args[++i];
+            }
+            else if (args[i].equalsIgnoreCase("--db-export") && i + 1 < args.length) {
+                databaseExport = args[++i];
+            }
+            else if (args[i].equalsIgnoreCase("--db-format") && i + 1 < args.length) {
+                databaseFormat = Format.valueOf(args[++i].toUpperCase());
+            }
+            else if (args[i].equalsIgnoreCase("--log-level") && i + 1 < args.length) {
+                Log.LEVEL = Log.Level.valueOf(args[++i].toUpperCase());
+                workerArgs.addAll(Arrays.asList("--log-level", args[i]));
+            }
+            else if (args[i].equalsIgnoreCase("--resume")) {
+                resume = true;
+            }
+            else if (args[i].equalsIgnoreCase("--recheck")) {
+                NegativeCache.ENABLED = false;
+            }
+            else if (args[i].equalsIgnoreCase("--coordinator")) {
+                coordinatorPort = i + 1 < args.length && args[i + 1].matches("\\d+")
+                        ? Integer.parseInt(args[++i]) : Coordinator.DEFAULT_PORT;
+            }
+            else if (args[i].equalsIgnoreCase("--spawn") && i + 1 < args.length) {
+                spawn = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equalsIgnoreCase("--bind") && i + 1 < args.length) {
+                bind = InetAddress.getByName(args[++i]);
+            }
+            else if (args[i].equalsIgnoreCase("--secret") && i + 1 < args.length) {
+                secret = args[++i];
+            }
+            else if (args[i].equalsIgnoreCase("--shard-size") && i + 1 < args.length) {
+                Coordinator.SHARD_SIZE = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equalsIgnoreCase("--worker") && i + 1 < args.length) {
+                worker = args[++i];
+            }
+            else if (args[i].equalsIgnoreCase("--daemon")) {
+                daemonPort = i + 1 < args.length && args[i + 1].matches("\\d+")
+                        ? Integer.parseInt(args[++i]) : Daemon.DEFAULT_PORT;
+            }
+        }
+
+        if (validate != null) {
+            System.exit(validateAccountFile(validate) > 0 ? 1 : 0);
+        }
+
+        // Workers get their accounts from the coordinator and never touch emails.txt
+        if (worker != null) {
+            MailFolders.keepFetches = false;
+            lazyLoad = false;
+            new Worker(worker, BULK_THREADS).setRules(rules).setSecret(secret).run();
+            Metrics.print();
+            return;
+        }
+
         List<EmailAccount> accounts = loadEmailAccounts();
 
-        AtomicInteger index = new AtomicInteger();
-        for (EmailAccount account : accounts) {
-            try {
-                LogUtil.log("> "+account.getEmail());
-                if (ensureValidAccessToken(account)) {
-                    List<EmailMessage> messages;
+        if (databaseExport != null) {
+            if (databaseFormat == null) databaseFormat = database != null ? openDatabase().getFormat() : formatType;
+            writeAccountFile(accounts, databaseExport, databaseFormat);
+            LogUtil.successful(String.format("Exported %d accounts to %s as %s", accounts.size(), databaseExport, databaseFormat));
+            return;
+        }
 
-                    if (account.getType().equals(AuthType.GRAPH)) {
-                        try {
-                            messages = getInboxMessagesGraphAPI(account.getAccessToken());
-                        }
-                        catch (InvalidAuthenticationToken e) {
-                            messages = getInboxMessagesIMAPOAuth(account.getEmail(), account.getAccessToken());
-                            account.setType(AuthType.IMAP_OAUTH);
-                        }
-                    }
-                    else if (account.getType().equals(AuthType.IMAP_OAUTH)) {
-                        messages = getInboxMessagesIMAPOAuth(account.getEmail(), account.getAccessToken());
-                    }
-                    else {// account.getType().equals(AuthType.IMAP_BASIC)
-                        messages = getInboxMessagesIMAPBasic(account.getEmail(), account.getPassword());
-                    }
+        // Runs until the process is stopped, tokens are saved as they are refreshed
+        if (daemonPort >= 0) {
+            new Daemon(accounts).setRules(rules).setSecret(secret).start(bind, daemonPort);
+            return;
+        }
+        // Everything below fetches each account once, a remembered fetch would never be used, and bodies
+        // are read while the folder is open instead of on a second connection per account
+        MailFolders.keepFetches = false;
+        lazyLoad = false;
+
+        // Continues after the watermarks of the previous export into the same directory
+        if (exportDirectory != null) {
+            new MailboxExporter(accounts, BULK_THREADS, exportDirectory, exportLayout).run();
+            saveEmailAccounts(accounts);
+            Metrics.print();
+            return;
+        }
 
-                    // Print messages to console (for backward compatibility)
-                    for (EmailMessage message : messages) {
-                        System.out.println(message);
-                        System.out.println("----------------------------------------");
-                    }
+        Checkpoint checkpoint = Checkpoint.open(resume);
+        checkpoint.restore(accounts);
 
-                    LogUtil.successful(String.format("[%d] %s", index.incrementAndGet(), account));
-                    continue;
-                }
-            } catch (Throwable e) {
-                ThrowableUtil.println(e);
-            }
-            LogUtil.error(String.format("[%d] %s", index.incrementAndGet(), account));
-            FileUtil.save(account.toJson().toString(), "invalid.txt");
+        if (coordinatorPort >= 0) {
+            new Coordinator(accounts, checkpoint).setSecret(secret).run(bind, coordinatorPort, spawn, workerArgs);
+        }
+        else {
+            new BulkRunner(accounts, BULK_THREADS, checkpoint).setRules(rules).run();
         }
 
         saveEmailAccounts(accounts);
+        Checkpoint.delete();
+        Log.flush(1000);
+        Metrics.print();
     }
 
-    private static JsonArray loadFile(){
-        return loadFile(fileName);
-    }
-    private static JsonArray loadFile(String fileName){
-        JsonArray array = new JsonArray();
-        try {
-            String content = FileUtil.readString(fileName);
-            if (content.isEmpty()) return array;
-
-            if (content.startsWith("[") && content.endsWith("]")) {
-                formatType = Format.ARRAY;
-                Arrays.stream(content.split("\n"))
-                        .distinct()
-                        .forEach(s -> {
-                            try {
-                                array.addAll(JsonUtil.parseJsonArray(s));
-                            } catch (Exception e) {
-                                throw new RuntimeException(e);
-                            }
-                        });
-            }
-            else if (content.startsWith("{") && content.endsWith("}")) {
-                formatType = Format.OBJECT_LIST;
-                Arrays.stream(content.split("\n"))
-                        .distinct()
-                        .forEach(s -> {
-                            try {
-                                array.add(JsonUtil.parseJsonObject(s));
-                            } catch (Exception e) {
-                                throw new RuntimeException(e);
-                            }
-                        });
-            }
-            else if (content.contains(":")) {
-                formatType = Format.COLON_SEPARATED;
-                Arrays.stream(content.split("\n"))
-                        .distinct()
-                        .forEach(s -> {
-                            try {
-                                String[] email = s.split(":");
-                                if (email.length == 2) {
-                                    array.add(
-                                            JsonObjectUtil.create()
-                                                    .add("email", email[0])
-                                                    .add("password", email[1])
-                                                    .build()
-                                    );
-                                }
-                                else {
-                                    array.add(
-                                            JsonObjectUtil.create()
-                                                    .add("email", email[0])
-                                                    .add("password", email[1])
-                                                    .add("clientId", email[3])
-                                                    .add("refreshToken", email[2])
-                                                    .build()
-                                    );
-                                }
-                            } catch (Exception e) {
-                                throw new RuntimeException(e);
-                            }
-                        });
-            }
-            else if (content.contains("----")) {
-                formatType = Format.DASH_SEPARATED;
-                Arrays.stream(content.split("\n"))
-                        .distinct()
-                        .forEach(s -> {
-                            try {
-                                String[] email = s.split("----");
-                                if (email.length == 2) {
-                                    array.add(
-                                            JsonObjectUtil.create()
-                                                    .add("email", email[0])
-                                                    .add("password", email[1])
-                                                    .build()
-                                    );
-                                }
-                                else {
-                                    array.add(
-                                            JsonObjectUtil.create()
-                                                    .add("email", email[0])
-                                                    .add("password", email[1])
-                                                    .add("clientId", email[2])
-                                                    .add("refreshToken", email[3])
-                                                    .build()
-                                    );
-                                }
-                            } catch (Exception e) {
-                                throw new RuntimeException(e);
-                            }
-                        });
+    /**
+     * Reads an accounts file one line at a time and passes every account on as a JsonObject,
+     * so the whole file is never held in memory. The format is detected from the first line.
+     * Lines AccountFileParser would skip are passed to skipped as they are.
+     */
+    private static void readAccountFile(String fileName, Consumer<JsonObject> consumer, Consumer<String> skipped) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            Format format = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String trimmed = line.trim();
+                if (trimmed.isEmpty()) continue;
+                if (format == null) {
+                    format = AccountFileParser.detectFormat(trimmed);
+                    if (format == null) throw new IOException("Unsupported format");
+                    formatType = format;
+                }
+                List<JsonObject> accounts;
+                try {
+                    accounts = AccountFileParser.parseLine(format, trimmed);
+                }
+                catch (RuntimeException e) {
+                    skipped.accept(line);
+                    continue;
+                }
+                accounts.forEach(consumer);
             }
-            else {
-                throw new RuntimeException("Unsupported format");
+        }
+    }
+
+    /**
+     * Writes accounts in one of the formats readAccountFile reads, one account per line.
+     * The separated formats only have room for the email, password, client id and refresh token.
+     */
+    public static void writeAccountFile(List<EmailAccount> accounts, String fileName, Format format) throws IOException {
+        Path file = Paths.get(fileName);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (EmailAccount account : accounts) {
+                writer.write(formatAccount(account, format));
+                writer.write('\n');
             }
         }
-        catch (Exception e) {
-            ThrowableUtil.println(e);
-            System.exit(1);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String formatAccount(EmailAccount account, Format format) {
+        switch (format) {
+            case ARRAY:
+                JsonArray array = new JsonArray();
+                array.add(account.toJson());
+                return array.toString();
+            case COLON_SEPARATED:
+                return account.getRefreshToken() == null ? account.getEmail() + ":" + account.getPassword()
+                        : String.join(":", account.getEmail(), account.getPassword(), account.getRefreshToken(), account.getClientId());
+            case DASH_SEPARATED:
+                return account.getRefreshToken() == null ? account.getEmail() + "----" + account.getPassword()
+                        : String.join("----", account.getEmail(), account.getPassword(), account.getClientId(), account.getRefreshToken());
+            default:
+                return account.toJson().toString();
         }
-        return array;
     }
+
     /**
      * Loads email accounts from the emails.txt file.
      *
      * @return A list of EmailAccount objects
      */
     public static List<EmailAccount> loadEmailAccounts() {
+        if (database != null) {
+            try {
+                return openDatabase().accounts();
+            }
+            catch (IOException e) {
+                ThrowableUtil.println(e);
+                System.exit(1);
+            }
+        }
         return loadEmailAccounts(fileName);
     }
-    public static List<EmailAccount> loadEmailAccounts(String fileName) {
-        List<EmailAccount> accounts = new ArrayList<>();
-        List<EmailAccount> duplicates = new ArrayList<>();
-        JsonArray array = loadFile(fileName);
 
+    /**
+     * Opens the --db database once, importing emails.txt into it if it doesn't exist yet.
+     */
+    public static synchronized AccountDatabase openDatabase() throws IOException {
+        if (accountDatabase != null) return accountDatabase;
+        Path path = Paths.get(database);
+        if (Files.exists(path)) {
+            accountDatabase = AccountDatabase.open(path);
+            LogUtil.log("Opened " + database + " with " + accountDatabase.size() + " accounts");
+        }
+        else {
+            List<EmailAccount> accounts = loadEmailAccounts(fileName);
+            accountDatabase = AccountDatabase.create(path, accounts, formatType != null ? formatType : Format.OBJECT_LIST);
+            LogUtil.successful(String.format("Imported %d accounts from %s into %s", accounts.size(), fileName, database));
+        }
+        return accountDatabase;
+    }
+    public static List<EmailAccount> loadEmailAccounts(String fileName) {
+        AccountFileParser.Result result = null;
         try {
-            for (int i = 0; i < array.size(); i++) {
-                JsonObject jsonObj = array.get(i).getAsJsonObject();
-                EmailAccount account = EmailAccount.fromJson(jsonObj);
-                if (accounts.contains(account)) {
-                    duplicates.add(account);
-                    continue;
-                }
-                accounts.add(account);
-            }
+            result = AccountFileParser.parse(fileName);
         }
         catch (Exception e) {
             ThrowableUtil.println(e);
+            System.exit(1);
         }
-
-        if (!duplicates.isEmpty()) {
-            LogUtil.error("Found " + duplicates.size() + " duplicate email accounts");
+        if (result.getFormat() != null) formatType = result.getFormat();
+
+        List<AccountFileParser.LineError> errors = result.getErrors();
+        if (!errors.isEmpty()) {
+            LogUtil.error(String.format("%s: %d lines skipped%s", fileName, errors.size(),
+                    errors.size() > MAX_REPORTED_ERRORS ? ", run --validate for all of them" : ""));
+            for (AccountFileParser.LineError error : errors.subList(0, Math.min(errors.size(), MAX_REPORTED_ERRORS))) {
+                LogUtil.error(error.toString());
+            }
         }
 
-        return accounts;
+        return result.getAccounts();
+    }
+
+    /**
+     * Parses the accounts file and writes every line that can't be loaded to {fileName}.errors.txt, without
+     * checking any account.
+     *
+     * @return The number of lines with errors
+     */
+    public static int validateAccountFile(String fileName) throws IOException {
+        long started = System.currentTimeMillis();
+        AccountFileParser.Result result = AccountFileParser.parse(fileName);
+        long millis = Math.max(System.currentTimeMillis() - started, 1);
+        long bytes = Files.size(Paths.get(fileName));
+
+        String report = fileName + ".errors.txt";
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(report), StandardCharsets.UTF_8)) {
+            for (AccountFileParser.LineError error : result.getErrors()) {
+                writer.write(error.toString());
+                writer.write('\n');
+            }
+        }
+        LogUtil.log(String.format("%s (%s): %d lines, %d accounts, %d errors written to %s, %dms (%d MB/s)",
+                fileName, result.getFormat(), result.getLines(), result.getAccounts().size(), result.getErrors().size(),
+                report, millis, bytes * 1000 / millis / (1024 * 1024)));
+        return result.getErrors().size();
     }
 
     /**
@@ -231,48 +408,61 @@ public class Microsoft {
      *
      * @param accounts The list of EmailAccount objects
      */
-    public static void saveEmailAccounts(List<EmailAccount> accounts) {
+    public static synchronized void saveEmailAccounts(List<EmailAccount> accounts) {
         if (accounts.isEmpty()) return;
-        if (accounts.stream().findFirst().get().getType().equals(AuthType.IMAP_BASIC)) return;
+        AccountStore store = AccountStore.of(accounts);
+        // Tokens were already written to the database's records as they were refreshed
+        if (store instanceof AccountDatabase) {
+            ((AccountDatabase) store).force();
+            return;
+        }
+        if (accounts.get(0).getType().equals(AuthType.IMAP_BASIC)) return;
         LogUtil.log("Saving email accounts...");
-        try {
-            JsonArray array = loadFile();
 
-            // Create a map of email addresses to JsonObjects from the file
-            Map<String, JsonObject> emailToJsonMap = new HashMap<>();
-            for (int i = 0; i < array.size(); i++) {
-                JsonObject jsonObj = array.get(i).getAsJsonObject();
-                String email = EmailAccount.getJsonValueCaseInsensitive(jsonObj, "email");
-                if (emailToJsonMap.containsKey(email)) continue;
-                emailToJsonMap.put(email, jsonObj);
-            }
+        // Rows already written, only the first line of an email is kept
+        BitSet written = new BitSet(store.size());
+        Set<String> unknown = new HashSet<>();
+        // Kept for the next load to report, after the accounts so the format is still detected from the first line
+        List<String> skipped = new ArrayList<>();
+        Path file = Paths.get(fileName);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
 
-            // Update JsonObjects with account data
-            for (EmailAccount account : accounts) {
-                JsonObject jsonObj = emailToJsonMap.get(account.getEmail());
-                if (jsonObj != null) {
-                    account.updateJsonObject(jsonObj);
-                }
-            }
-
-            // Remove duplicate email entries from array 
-            Set<String> seenEmails = new HashSet<>();
-            for (int i = 0; i < array.size(); i++) {
-                String email = EmailAccount.getJsonValueCaseInsensitive(array.get(i).getAsJsonObject(), "email");
-                if (!seenEmails.add(email)) {
-                    array.remove(i);
-                    i--;
+        try {
+            // Not reported back to the AccountReloader as a change
+            FileWatcher.write(file, () -> {
+                try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                    readAccountFile(fileName, jsonObj -> {
+                        String email = EmailAccount.getJsonValueCaseInsensitive(jsonObj, "email");
+                        int row = store.indexOf(email);
+                        if (row >= 0) {
+                            if (written.get(row)) return;
+                            written.set(row);
+                            store.get(row).updateJsonObject(jsonObj);
+                        }
+                        else if (!unknown.add(email)) return;
+                        try {
+                            writer.write(jsonObj.toString());
+                            writer.write('\n');
+                        }
+                        catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }, skipped::add);
+                    for (String line : skipped) {
+                        writer.write(line);
+                        writer.write('\n');
+                    }
                 }
-            }
-
-            FileUtil.write(JsonUtil.getJsonArrayToObjectList(array)
-                    .stream()
-                    .map(JsonElement::toString)
-                    .collect(Collectors.toList()),
-                    fileName);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            });
         }
         catch (Exception e) {
             ThrowableUtil.println(e);
+            try {
+                Files.deleteIfExists(temp);
+            }
+            catch (IOException ignored) {
+            }
         }
     }
 
@@ -284,18 +474,7 @@ public class Microsoft {
      */
     public static boolean ensureValidAccessToken(EmailAccount account) {
         try {
-            if (!account.hasValidAccessToken()) {
-                JSONObject jsonResponse = getAccessToken(account.getClientId(), account.getRefreshToken());
-                String refreshToken = jsonResponse.getString("refresh_token");
-                String accessToken = jsonResponse.getString("access_token");
-                long expires_in = jsonResponse.getLong("expires_in");
-                String scope = jsonResponse.getString("scope");
-                // "scope": "https://graph.microsoft.com/Mail.ReadWrite",
-                // "scope": "https://outlook.office.com/IMAP.AccessAsUser.All https://outlook.office.com/POP.AccessAsUser.All https://outlook.office.com/EWS.AccessAsUser.All https://outlook.office.com/SMTP.Send",
-                AuthType type = scope.contains("graph") ? AuthType.GRAPH : AuthType.IMAP_OAUTH;
-                account.updateAccessToken(refreshToken, accessToken, expires_in, type);
-                return true;
-            }
+            refreshAccessToken(account);
             return true;
         } catch (NullPointerException e) {
             ThrowableUtil.println(e);
@@ -306,6 +485,37 @@ public class Microsoft {
         }
     }
 
+    /**
+     * Refreshes the access token if it is missing or expired.
+     * Unlike {@link #ensureValidAccessToken(EmailAccount)} failures are thrown, so the caller can tell why.
+     *
+     * @param account The EmailAccount to refresh
+     * @throws Exception If the token endpoint rejected the refresh token or could not be reached
+     */
+    public static void refreshAccessToken(EmailAccount account) throws Exception {
+        if (account.hasValidAccessToken()) return;
+
+        Deadline.check("token refresh");
+        JSONObject jsonResponse = getAccessToken(account.getClientId(), account.getRefreshToken());
+        String refreshToken = jsonResponse.getString("refresh_token");
+        String accessToken = jsonResponse.getString("access_token");
+        long expires_in = jsonResponse.getLong("expires_in");
+        String scope = jsonResponse.getString("scope");
+        // "scope": "https://graph.microsoft.com/Mail.ReadWrite",
+        // "scope": "https://outlook.office.com/IMAP.AccessAsUser.All https://outlook.office.com/POP.AccessAsUser.All https://outlook.office.com/EWS.AccessAsUser.All https://outlook.office.com/SMTP.Send",
+        AuthType type = scope.contains("graph") ? AuthType.GRAPH : AuthType.IMAP_OAUTH;
+
+        // Keep the path recorded for this clientId instead of retrying Graph
+        String host = getHost(account.getEmail());
+        CapabilityRegistry.Entry known = CapabilityRegistry.get(host, account.getClientId());
+        if (known != null && known.getAuthType() != null && scope.equals(known.getScope())) {
+            type = known.getAuthType();
+        }
+        CapabilityRegistry.recordAuth(host, account.getClientId(), type, scope);
+
+        account.updateAccessToken(refreshToken, accessToken, expires_in, type);
+    }
+
     // GraphAPI or IMAP
     public static JSONObject getAccessToken(String clientId, String refreshToken) throws Exception {
         String tokenUrl = "https://login.microsoftonline.com/common/oauth2/v2.0/token";
@@ -317,14 +527,18 @@ public class Microsoft {
         HttpClient client = Main.proxies.isEmpty() ? HttpClient.create()
                 : HttpClient.proxy(ProxyUtil.http(Main.proxies.pick()));
 
-        ResponseContent response = client
-                .setKeepAlive(false)
-                .postRequest(tokenUrl,
-                        data,
-                        Headers.create()
-                                .setContentType("application/x-www-form-urlencoded")
-                                .get());
-        LogUtil.log(response.printMinimum());
+        ResponseContent response = Governor.forKey(TOKEN_ENDPOINT).call(() -> {
+            ResponseContent r = client
+                    .setKeepAlive(false)
+                    .postRequest(tokenUrl,
+                            data,
+                            Headers.create()
+                                    .setContentType("application/x-www-form-urlencoded")
+                                    .get());
+            checkThrottled(r);
+            return r;
+        });
+        Log.info(response::printMinimum);
 
         // Parse JSON response
         JSONObject jsonResponse = new JSONObject(response.getContent());
@@ -339,23 +553,84 @@ public class Microsoft {
         return jsonResponse;
     }
 
+    /**
+     * Throws a {@link ThrottledException} for 429 and 503 responses so the {@link Governor} backs off.
+     * Retry-After is taken from the response dump, since that is where the headers are visible.
+     */
+    static void checkThrottled(ResponseContent response) {
+        if (response.getCode() != 429 && response.getCode() != 503) return;
+
+        long retryAfter = -1;
+        Matcher matcher = RETRY_AFTER.matcher(response.printInfo());
+        if (matcher.find()) {
+            retryAfter = Long.parseLong(matcher.group(1)) * 1000;
+        }
+        throw new ThrottledException("HTTP " + response.getCode() + ": " + response.getContent(), retryAfter);
+    }
+
     // GraphAPI
+    /**
+     * Fetches the messages of the inbox and the other folders of {@link MailFolders#FOLDERS}.
+     * Folders are independent requests, so they are fetched at the same time.
+     */
     public static List<EmailMessage> getInboxMessagesGraphAPI(String accessToken) throws Exception {
-        String tokenUrl = "https://graph.microsoft.com/v1.0/me/mailfolders/inbox/messages";
+        Map<String, String> folders = MailFolders.graphFolders(accessToken);
+        if (folders.size() == 1) return getFolderMessagesGraphAPI(accessToken, "inbox");
+
+        Deadline deadline = Deadline.current();
+        Map<String, Future<List<EmailMessage>>> pending = new LinkedHashMap<>();
+        folders.forEach((name, folder) -> pending.put(name, hedgeExecutor.submit(() -> {
+            Deadline.attach(deadline);
+            try {
+                List<EmailMessage> messages = getFolderMessagesGraphAPI(accessToken, folder);
+                for (EmailMessage message : messages) {
+                    message.setFolder(name);
+                }
+                return messages;
+            }
+            finally {
+                Deadline.clear();
+            }
+        })));
+
+        List<EmailMessage> emailMessages = new ArrayList<>();
+        for (Map.Entry<String, Future<List<EmailMessage>>> entry : pending.entrySet()) {
+            try {
+                emailMessages.addAll(entry.getValue().get());
+            }
+            catch (ExecutionException e) {
+                // The inbox decides whether the account works, a missing Archive folder doesn't
+                if (entry.getKey().equals("INBOX") && e.getCause() instanceof Exception) throw (Exception) e.getCause();
+                LogUtil.warning("Skipping folder " + entry.getKey() + ": " + e.getCause().getMessage());
+            }
+        }
+        return emailMessages;
+    }
+
+    /**
+     * @param folder A well-known folder name such as junkemail, or a folder id
+     */
+    public static List<EmailMessage> getFolderMessagesGraphAPI(String accessToken, String folder) throws Exception {
+        Deadline.check("Graph fetch");
+        String tokenUrl = "https://graph.microsoft.com/v1.0/me/mailfolders/" + folder + "/messages";
         List<EmailMessage> emailMessages = new ArrayList<>();
 
         HttpClient client = Main.proxies.isEmpty() ? HttpClient.create()
                 : HttpClient.proxy(ProxyUtil.http(Main.proxies.pick()));
 
-        ResponseContent response = client
-                .setKeepAlive(false)
-                .getRequest(tokenUrl,
-                        Headers.create()
-                                .setAuthorization("Bearer " + accessToken)
-                                .setDefaultContentType()
-                                .get());
+        ResponseContent response = Governor.forKey(GRAPH_ENDPOINT).call(() -> {
+            ResponseContent r = client
+                    .setKeepAlive(false)
+                    .getRequest(tokenUrl,
+                            Headers.create()
+                                    .setAuthorization("Bearer " + accessToken)
+                                    .setDefaultContentType()
+                                    .get());
+            checkThrottled(r);
+            return r;
+        });
 
-        System.out.println(response.printInfo());
+        Log.debug(response::printInfo);
 
         /*
         {
@@ -391,18 +666,102 @@ public class Microsoft {
         return emailMessages;
     }
 
+    /**
+     * Retrieves inbox messages using the fastest path known to work for the account.
+     * Graph accounts whose clientId is recorded as IMAP-only in the {@link CapabilityRegistry}
+     * go to IMAP OAuth directly, otherwise Graph is tried first and the outcome is recorded.
+     *
+     * @param account The email account with a valid access token
+     * @return The inbox messages
+     * @throws Exception If an error occurs while fetching
+     */
+    public static List<EmailMessage> getInboxMessages(EmailAccount account) throws Exception {
+        return getInboxMessages(account, null);
+    }
+    /**
+     * Like {@link #getInboxMessages(EmailAccount)}, but IMAP bodies are only fetched for the messages
+     * the predicate selects by their envelope, the others keep a lazy body.
+     *
+     * @param account The EmailAccount
+     * @param needsBody Selects messages whose body is fetched, or null for the default behaviour
+     * @return The inbox messages
+     */
+    public static List<EmailMessage> getInboxMessages(EmailAccount account, Predicate<EmailMessage> needsBody) throws Exception {
+        String host = getHost(account.getEmail());
+        // Lazy IMAP bodies that weren't read while listing are loaded later on a pooled connection
+        ImapMessageLoader.register(account);
+
+        if (account.getType().equals(AuthType.GRAPH) && CapabilityRegistry.isImapOnly(host, account.getClientId())) {
+            account.setType(AuthType.IMAP_OAUTH);
+        }
+
+        if (account.getType().equals(AuthType.GRAPH)) {
+            try {
+                List<EmailMessage> messages = getInboxMessagesGraphAPI(account.getAccessToken());
+                CapabilityRegistry.recordAuth(host, account.getClientId(), AuthType.GRAPH, null);
+                return messages;
+            }
+            catch (InvalidAuthenticationToken e) {
+                List<EmailMessage> messages = getInboxMessagesIMAP(account, needsBody);
+                account.setType(AuthType.IMAP_OAUTH);
+                CapabilityRegistry.recordAuth(host, account.getClientId(), AuthType.IMAP_OAUTH, null);
+                return messages;
+            }
+        }
+        else if (account.getType().equals(AuthType.IMAP_OAUTH)) {
+            List<EmailMessage> messages = getInboxMessagesIMAP(account, needsBody);
+            CapabilityRegistry.recordAuth(host, account.getClientId(), AuthType.IMAP_OAUTH, null);
+            return messages;
+        }
+        else {// account.getType().equals(AuthType.IMAP_BASIC)
+            return getInboxMessagesIMAP(account, needsBody);
+        }
+    }
+
+    // IMAP OAuth or Basic, depending on the account's type (Graph accounts falling back to IMAP use OAuth)
+    private static List<EmailMessage> getInboxMessagesIMAP(EmailAccount account, Predicate<EmailMessage> needsBody) throws Exception {
+        if (pooledConnections) {
+            return Governor.forKey(getHost(account.getEmail())).call(() -> getPooledInboxMessages(account, needsBody));
+        }
+        if (account.getType().equals(AuthType.IMAP_BASIC)) {
+            return getInboxMessagesIMAPBasic(account.getEmail(), account.getPassword(), needsBody);
+        }
+        return getInboxMessagesIMAPOAuth(account.getEmail(), account.getAccessToken(), needsBody);
+    }
+
+    // Lists on the account's pooled connection and gives it back, lazy bodies are then loaded on the same one
+    private static List<EmailMessage> getPooledInboxMessages(EmailAccount account, Predicate<EmailMessage> needsBody) throws Exception {
+        ImapConnectionPool.Connection connection = ImapConnectionPool.acquire(account);
+        try {
+            List<EmailMessage> messages = getEmailMessages(account.getEmail(), connection.getInbox(), new ArrayList<>(), needsBody);
+            messages.addAll(getOtherFolderMessages(account.getEmail(), connection.getStore(), needsBody));
+            ImapConnectionPool.release(connection);
+            return messages;
+        }
+        catch (Exception e) {
+            ImapConnectionPool.invalidate(connection);
+            throw e;
+        }
+    }
+
     // IMAP OAuth
     public static List<EmailMessage> getInboxMessagesIMAPOAuth(String email, String accessToken) throws Exception {
-        return getInboxMessages(email, accessToken, true);
+        return getInboxMessagesIMAPOAuth(email, accessToken, null);
+    }
+    public static List<EmailMessage> getInboxMessagesIMAPOAuth(String email, String accessToken, Predicate<EmailMessage> needsBody) throws Exception {
+        return Governor.forKey(getHost(email)).call(() -> getInboxMessages(email, accessToken, true, needsBody));
     }
 
     // IMAP Basic
     public static List<EmailMessage> getInboxMessagesIMAPBasic(String email, String password) throws Exception {
-        return getInboxMessages(email, password, false);
+        return getInboxMessagesIMAPBasic(email, password, null);
+    }
+    public static List<EmailMessage> getInboxMessagesIMAPBasic(String email, String password, Predicate<EmailMessage> needsBody) throws Exception {
+        return Governor.forKey(getHost(email)).call(() -> getInboxMessages(email, password, false, needsBody));
     }
 
     // Unified method for both OAuth and Basic authentication
-    private static List<EmailMessage> getInboxMessages(String email, String credential, boolean isOAuth) throws Exception {
+    private static List<EmailMessage> getInboxMessages(String email, String credential, boolean isOAuth, Predicate<EmailMessage> needsBody) throws Exception {
         List<EmailMessage> emailMessages = new ArrayList<>();
 
         Folder inbox = null;
@@ -414,7 +773,7 @@ public class Microsoft {
             if (!multipleThreaded && canReuseConnection(email)) {
                 inbox = currentFolder;
                 store = currentStore;
-                LogUtil.log("Using existing connection for " + email);
+                Log.info("Using existing connection for %s", email);
             }
             else {
                 // Close previous connection if different email account
@@ -424,14 +783,8 @@ public class Microsoft {
 
                 // Create new connection
                 try {
-                    Properties props = getIMAPProperties(email, isOAuth);
-
-                    // Create session and store
-                    Session session = Session.getInstance(props);
-                    store = session.getStore("imaps");
-
                     // Connect using appropriate authentication method
-                    store.connect(email, credential);
+                    store = connectStore(email, credential, isOAuth);
 
                     // Access inbox
                     inbox = store.getFolder("INBOX");
@@ -452,7 +805,9 @@ public class Microsoft {
                 }
             }
 
-            return getEmailMessages(email, inbox, emailMessages);
+            getEmailMessages(email, inbox, emailMessages, needsBody);
+            emailMessages.addAll(getOtherFolderMessages(email, store, needsBody));
+            return emailMessages;
         }
         catch (AuthenticationFailedException e) {
             LogUtil.error("Authentication failed for " + email);
@@ -466,23 +821,91 @@ public class Microsoft {
             }
         }
     }
-    private static List<EmailMessage> getEmailMessages(String email, Folder inbox, List<EmailMessage> emailMessages) throws MessagingException {
+    /**
+     * Fetches the folders of {@link MailFolders#FOLDERS} other than INBOX on the connection INBOX was fetched with.
+     * One SELECT after another on an open connection is cheaper than a login per folder, and Outlook limits
+     * the number of IMAP sessions per mailbox. Folders whose STATUS says they are empty or unchanged are not SELECTed.
+     */
+    private static List<EmailMessage> getOtherFolderMessages(String email, Store store, Predicate<EmailMessage> needsBody)
+            throws MessagingException {
+        List<EmailMessage> messages = new ArrayList<>();
+        for (String name : MailFolders.imapFolders(email, store)) {
+            if (name.equals("INBOX")) continue;
+            Deadline.check("folder " + name);
+
+            IMAPFolder folder = (IMAPFolder) store.getFolder(name);
+            MailFolders.Status status;
+            try {
+                status = MailFolders.status(folder);
+            }
+            catch (FolderNotFoundException e) {
+                LogUtil.warning(name + " of " + email + " no longer exists");
+                MailFolders.forget(email);
+                continue;
+            }
+            if (status.getMessages() == 0) {
+                Metrics.increment("imap.folder.skipped");
+                continue;
+            }
+            List<EmailMessage> previous = MailFolders.unchanged(email, name, status);
+            if (previous != null) {
+                Metrics.increment("imap.folder.skipped");
+                messages.addAll(previous);
+                continue;
+            }
+
+            folder.open(Folder.READ_ONLY);
+            try {
+                // Lazy bodies are fetched again by UID once the folder is closed
+                List<EmailMessage> fetched = getEmailMessages(email, folder, new ArrayList<>(), needsBody);
+                for (EmailMessage message : fetched) {
+                    message.setFolder(name);
+                }
+                MailFolders.remember(email, name, status, fetched);
+                messages.addAll(fetched);
+            }
+            finally {
+                folder.close(false);
+            }
+        }
+        return messages;
+    }
+
+    private static List<EmailMessage> getEmailMessages(String email, Folder inbox, List<EmailMessage> emailMessages,
+                                                      Predicate<EmailMessage> needsBody) throws MessagingException {
         try {
             Message[] mailMessages = inbox.getMessages();
 
-            LogUtil.log(String.format("Inbox for %s: %d messages | Unread: %d",
-                    email, inbox.getMessageCount(), inbox.getUnreadMessageCount()));
+            // The unread count costs a SEARCH, only ask for it when it is logged
+            if (Log.isEnabled(Log.Level.INFO)) {
+                Log.info("%s for %s: %d messages | Unread: %d",
+                        inbox.getFullName(), email, inbox.getMessageCount(), inbox.getUnreadMessageCount());
+            }
 
             // Process the most recent % messages (or all if less than %)
             int startIndex = Math.max(0, mailMessages.length - IMAP_MAXIMUM_LOAD_MESSAGE);
-            List<Message> messagesToProcess = Arrays.asList(Arrays.copyOfRange(mailMessages, startIndex, mailMessages.length));
+            Message[] window = Arrays.copyOfRange(mailMessages, startIndex, mailMessages.length);
+            List<Message> messagesToProcess = new ArrayList<>(Arrays.asList(window));
             Collections.reverse(messagesToProcess);
 
             boolean parallel = false;
 
             // Determine whether to use lazy loading
             // If multipleThreaded is true, disable lazy loading
-            boolean useLazyLoad = multipleThreaded ? false : lazyLoad;
+            // With a needsBody selector everything starts lazy and the selected bodies are loaded while the folder is open
+            boolean useLazyLoad = needsBody != null || (multipleThreaded ? false : lazyLoad);
+
+            // Fetch envelope, flags, UID and Message-ID of the whole window in one FETCH
+            // instead of one round-trip per message and attribute
+            FetchProfile profile = new FetchProfile();
+            profile.add(FetchProfile.Item.ENVELOPE);
+            profile.add(FetchProfile.Item.FLAGS);
+            profile.add(UIDFolder.FetchProfileItem.UID);
+            profile.add("Message-ID");
+            if (!useLazyLoad) {
+                profile.add(FetchProfile.Item.CONTENT_INFO);
+            }
+            inbox.fetch(window, profile);
             //if (multipleThreaded) {
             //    LogUtil.log("multipleThreaded mode: lazy loading disabled");
             //}
@@ -494,21 +917,19 @@ public class Microsoft {
                             try {
                                 if (message.isExpunged()) {
                                     // Message has been expunged, skip it
-                                    LogUtil.log("Message " + message.getMessageNumber() + " has been expunged, skipping");
+                                    Log.debug("Message %d has been expunged, skipping", message.getMessageNumber());
                                     return null;
                                 }
                                 if (message.isSet(Flags.Flag.DELETED)) {
                                     // Message is marked for deletion
-                                    LogUtil.log("Message " + message.getMessageNumber() + " is marked for deletion, skipping");
+                                    Log.debug("Message %d is marked for deletion, skipping", message.getMessageNumber());
                                     return null;
                                 }
 
-                                long diffInMillis = currentDate.getTime() - message.getReceivedDate().getTime();
-                                System.out.printf("[%d] Loading subject: %s\t| %s ago%n",
-                                        message.getMessageNumber(), MailContentExtractor.decodeMimeHeader(message.getSubject()),
-                                        TimeUtil.millisToTime(diffInMillis));
                                 // Use lazy loading based on the determined setting
-                                return EmailMessage.fromIMAP(message, useLazyLoad);
+                                EmailMessage emailMessage = EmailMessage.fromIMAP(message, useLazyLoad);
+                                logLoaded(message.getMessageNumber(), emailMessage, message, currentDate);
+                                return emailMessage;
                             }
                             catch (MessagingException e) {
                                 throw new RuntimeException(e);
@@ -519,27 +940,28 @@ public class Microsoft {
             }
             else {
                 for (int i = mailMessages.length - 1; i >= startIndex; i--) {
+                    Deadline.check("fetching message " + i);
                     if (mailMessages[i].isExpunged()) {
                         // Message has been expunged, skip it
-                        LogUtil.log("Message " + mailMessages[i].getMessageNumber() + " has been expunged, skipping");
+                        Log.debug("Message %d has been expunged, skipping", mailMessages[i].getMessageNumber());
                         continue;
                     }
                     if (mailMessages[i].isSet(Flags.Flag.DELETED)) {
                         // Message is marked for deletion
-                        LogUtil.log("Message " + mailMessages[i].getMessageNumber() + " is marked for deletion, skipping");
+                        Log.debug("Message %d is marked for deletion, skipping", mailMessages[i].getMessageNumber());
                         continue;
                     }
 
-                    long diffInMillis = currentDate.getTime() - mailMessages[i].getReceivedDate().getTime();
-                    System.out.printf("[%d] Loading subject: %s\t| %s ago%n",
-                            i, MailContentExtractor.decodeMimeHeader(mailMessages[i].getSubject()),
-                            TimeUtil.millisToTime(diffInMillis));
                     // Use lazy loading based on the determined setting
                     EmailMessage message = EmailMessage.fromIMAP(mailMessages[i], useLazyLoad);
+                    logLoaded(i, message, mailMessages[i], currentDate);
+                    if (needsBody != null && needsBody.test(message)) {
+                        message.loadBody(mailMessages[i]);
+                    }
                     emailMessages.add(message);
                 }
             }
-            LogUtil.log("Passed time: " + timer.getTimeString());
+            Log.debug("Passed time: %s", timer.getTimeString());
 
             // Don't close connections here - keep them open for lazy loading
         }
@@ -550,7 +972,17 @@ public class Microsoft {
         return emailMessages;
     }
 
+    // The subject was decoded by fromIMAP already
+    private static void logLoaded(int number, EmailMessage emailMessage, Message message, Date now) throws MessagingException {
+        if (!Log.isEnabled(Log.Level.DEBUG)) return;
+        long diffInMillis = now.getTime() - message.getReceivedDate().getTime();
+        Log.debug("[%d] Loading subject: %s\t| %s ago", number, emailMessage.getSubject(), TimeUtil.millisToTime(diffInMillis));
+    }
+
     public static Properties getIMAPProperties(String email, boolean isOAuth) {
+        return getIMAPProperties(email, isOAuth, IMAP_PROXY);
+    }
+    public static Properties getIMAPProperties(String email, boolean isOAuth, ProxyUtil proxy) {
         // https://javaee.github.io/javamail/docs/api/com/sun/mail/imap/package-summary.html
 
         // Connection properties
@@ -574,6 +1006,11 @@ public class Microsoft {
         //props.put("mail.imap.port", "143");
         //props.put("mail.imap.starttls.enable", "true");
 
+        if (IMAP_COMPRESS) {
+            props.put("mail.imaps.compress.enable", "true");
+            props.put("mail.imaps.compress.level", "6");
+        }
+
         if (isOAuth) {
             //props.put("mail.imaps.sasl.enable", "true");
             props.put("mail.imaps.auth.mechanisms", "XOAUTH2");
@@ -581,11 +1018,14 @@ public class Microsoft {
             props.put("mail.imaps.auth.plain.disable", "true");
         }
 
-        if (IMAP_PROXY != null) {
-            props.setProperty("mail.imaps.proxy.host", IMAP_PROXY.getHost());
-            props.setProperty("mail.imaps.proxy.port", String.valueOf(IMAP_PROXY.getPort()));
-            //mail.imap.proxy.user
-            //mail.imap.proxy.password
+        if (proxy != null) {
+            props.setProperty("mail.imaps.proxy.host", proxy.getHost());
+            props.setProperty("mail.imaps.proxy.port", String.valueOf(proxy.getPort()));
+            String[] credentials = proxyCredentials.get(proxy.getHost() + ":" + proxy.getPort());
+            if (credentials != null) {
+                props.setProperty("mail.imaps.proxy.user", credentials[0]);
+                props.setProperty("mail.imaps.proxy.password", credentials[1]);
+            }
         }
 
         props.setProperty("mail.imaps.connectiontimeout", "30000"); // Timeout in milliseconds (30 seconds)
@@ -593,9 +1033,270 @@ public class Microsoft {
 
         return props;
     }
+
+    /**
+     * Returns the JavaMail session for the account's host, auth type, proxy and timeouts.
+     * Sessions are cached and share {@link ImapSocketFactory}, so reconnects to the same provider
+     * can resume the TLS session. A new {@link ImapStats} record is opened for the connection that follows.
+     * With IMAP_TRACE_STATS a fresh session is created every time, since the trace is per session.
+     *
+     * @param email The email address
+     * @param isOAuth Whether XOAUTH2 is used
+     * @return The session
+     */
+    public static Session getIMAPSession(String email, boolean isOAuth) {
+        return getIMAPSession(email, isOAuth, IMAP_PROXY);
+    }
+    public static Session getIMAPSession(String email, boolean isOAuth, ProxyUtil proxy) {
+        return getIMAPSession(email, isOAuth, proxy, 0);
+    }
+    /**
+     * @param readTimeout The socket read timeout in milliseconds, or 0 for the host's observed latency
+     */
+    public static Session getIMAPSession(String email, boolean isOAuth, ProxyUtil proxy, int readTimeout) {
+        String host = getHost(email);
+        ImapStats stats = ImapStats.open(email, host);
+
+        // Timeouts follow the host's observed latency, rounded up to whole seconds so only a few sessions exist
+        // per host. The account's deadline isn't part of them: pooled and watching connections outlive it,
+        // ImapSocketFactory limits each read to the deadline of the thread doing it instead.
+        LatencyTracker latency = LatencyTracker.forHost(host);
+        int connectTimeout = roundUpToSecond(latency.getConnectTimeout());
+        if (readTimeout <= 0) readTimeout = roundUpToSecond(latency.getReadTimeout());
+
+        if (IMAP_TRACE_STATS) {
+            Session session = Session.getInstance(getSessionProperties(email, isOAuth, proxy, connectTimeout, readTimeout));
+            session.setDebugOut(stats.traceStream());
+            session.setDebug(true);
+            return session;
+        }
+
+        String key = host + "|" + (isOAuth ? "oauth" : "basic") + "|" +
+                (proxy != null ? proxy.getHost() + ":" + proxy.getPort() : "direct") + "|" +
+                connectTimeout + "|" + readTimeout;
+        Session session = sessions.get(key);
+        if (session != null) {
+            Metrics.increment("imap.session.reused");
+            return session;
+        }
+        int timeout = readTimeout;
+        return sessions.computeIfAbsent(key, k -> {
+            Metrics.increment("imap.session.created");
+            return Session.getInstance(getSessionProperties(email, isOAuth, proxy, connectTimeout, timeout));
+        });
+    }
+    private static Properties getSessionProperties(String email, boolean isOAuth, ProxyUtil proxy,
+                                                   int connectTimeout, int readTimeout) {
+        Properties props = getIMAPProperties(email, isOAuth, proxy);
+
+        // The shared socket factory replaces MailSSLSocketFactory, it keeps trusting all hosts
+        props.remove("mail.imaps.ssl.trust");
+        props.remove("mail.imaps.socketFactory.class");
+        props.put("mail.imaps.ssl.socketFactory", ImapSocketFactory.getInstance());
+
+        props.setProperty("mail.imaps.connectiontimeout", String.valueOf(connectTimeout));
+        props.setProperty("mail.imaps.timeout", String.valueOf(readTimeout));
+        return props;
+    }
+    private static int roundUpToSecond(int millis) {
+        return (millis + 999) / 1000 * 1000;
+    }
+
+    /**
+     * Connects an IMAP store for the account.
+     * Once the host has enough latency samples and HEDGED_CONNECT is on, a second attempt through another
+     * proxy is started when the first one is still running at the host's p95; the first to succeed wins.
+     *
+     * @param email The email address
+     * @param credential The access token or password
+     * @param isOAuth Whether XOAUTH2 is used
+     * @return The connected store
+     * @throws MessagingException If every attempt failed
+     */
+    static Store connectStore(String email, String credential, boolean isOAuth) throws MessagingException {
+        return connectStore(email, credential, isOAuth, 0);
+    }
+    /**
+     * @param readTimeout The socket read timeout in milliseconds, or 0 for the host's observed latency
+     */
+    static Store connectStore(String email, String credential, boolean isOAuth, int readTimeout) throws MessagingException {
+        Deadline.check("IMAP connect");
+        long hedgeAfter = HEDGED_CONNECT ? LatencyTracker.forHost(getHost(email)).percentile(95) : -1;
+        if (hedgeAfter < 0) {
+            return connectOnce(email, credential, isOAuth, IMAP_PROXY, readTimeout);
+        }
+
+        Deadline deadline = Deadline.current();
+        CompletionService<Store> attempts = new ExecutorCompletionService<>(hedgeExecutor);
+        List<Future<Store>> pending = new ArrayList<>();
+        Future<Store> primary = attempts.submit(() -> {
+            Deadline.attach(deadline);
+            try {
+                return connectOnce(email, credential, isOAuth, IMAP_PROXY, readTimeout);
+            }
+            finally {
+                Deadline.clear();
+            }
+        });
+        pending.add(primary);
+
+        Exception failure = null;
+        try {
+            Future<Store> done = attempts.poll(hedgeAfter, TimeUnit.MILLISECONDS);
+            if (done == null) {
+                ProxyUtil hedgeProxy = pickProxy();
+                LogUtil.warning(String.format("Connect to %s for %s passed p95 (%dms), hedging", getHost(email), email, hedgeAfter));
+                Metrics.increment("imap.connect.hedged");
+                pending.add(attempts.submit(() -> {
+                    Deadline.attach(deadline);
+                    try {
+                        return connectOnce(email, credential, isOAuth, hedgeProxy, readTimeout);
+                    }
+                    finally {
+                        Deadline.clear();
+                    }
+                }));
+            }
+
+            // First successful attempt wins, the other one is closed when it finishes
+            while (!pending.isEmpty()) {
+                if (done == null) done = attempts.take();
+                pending.remove(done);
+                try {
+                    Store store = done.get();
+                    if (done != primary) Metrics.increment("imap.connect.hedge.won");
+                    discardLosers(pending);
+                    ImapStats.bind(ImapStats.get(email));
+                    return store;
+                }
+                catch (ExecutionException e) {
+                    if (failure == null) failure = (Exception) e.getCause();
+                }
+                done = null;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            discardLosers(pending);
+            throw new MessagingException("Interrupted while connecting to " + getHost(email), e);
+        }
+
+        if (failure instanceof MessagingException) throw (MessagingException) failure;
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        throw new MessagingException("Error connecting to " + getHost(email), failure);
+    }
+    /**
+     * Connects once, guarded by the circuit breakers of the host and the proxy.
+     * Failures through a proxy count against the proxy, direct failures against the host.
+     *
+     * @throws CircuitOpenException If the host or proxy breaker is open
+     */
+    private static Store connectOnce(String email, String credential, boolean isOAuth, ProxyUtil proxy,
+                                     int readTimeout) throws MessagingException {
+        String host = getHost(email);
+        CircuitBreaker hostBreaker = CircuitBreaker.forHost(host);
+        CircuitBreaker proxyBreaker = proxy != null ? CircuitBreaker.forProxy(proxy.getHost(), proxy.getPort()) : null;
+        if (proxyBreaker != null) proxyBreaker.check();
+        hostBreaker.check();
+
+        LatencyTracker latency = LatencyTracker.forHost(host);
+        Session session = getIMAPSession(email, isOAuth, proxy, readTimeout);
+        Store store = session.getStore("imaps");
+
+        long start = System.currentTimeMillis();
+        try {
+            store.connect(email, credential);
+        }
+        catch (MessagingException | RuntimeException e) {
+            // A read cut short by the account's deadline says nothing about the host or the proxy
+            Deadline deadline = Deadline.current();
+            if (deadline != null && deadline.isExpired()) throw e;
+            // A timeout counts as a sample too, so a slow host gets longer timeouts instead of failing repeatedly
+            if (isTimeout(e)) latency.record(System.currentTimeMillis() - start);
+            if (proxyBreaker != null) proxyBreaker.onFailure(e);
+            else hostBreaker.onFailure(e);
+            ImapStats.close(ImapStats.current());
+            throw e;
+        }
+        latency.record(System.currentTimeMillis() - start);
+        hostBreaker.onSuccess();
+        if (proxyBreaker != null) proxyBreaker.onSuccess();
+
+        afterConnect(email, store, isOAuth);
+        return store;
+    }
+    /**
+     * Picks a proxy for a hedged attempt, skipping proxies whose breaker is open.
+     *
+     * @return A proxy from proxies.txt, or IMAP_PROXY if there is none or all picks are open
+     */
+    private static ProxyUtil pickProxy() {
+        if (Main.proxies.isEmpty()) return IMAP_PROXY;
+        for (int i = 0; i < 3; i++) {
+            String line = Main.proxies.pick();
+            ProxyUtil proxy = ProxyUtil.http(line);
+            if (CircuitBreaker.forProxy(proxy.getHost(), proxy.getPort()).isOpen()) continue;
+            String[] credentials = parseProxyCredentials(line);
+            if (credentials != null) proxyCredentials.put(proxy.getHost() + ":" + proxy.getPort(), credentials);
+            return proxy;
+        }
+        return IMAP_PROXY;
+    }
+    /**
+     * @param line A line of proxies.txt
+     * @return {user, password} of the host:port:user:password and user:password@host:port formats, or null
+     */
+    static String[] parseProxyCredentials(String line) {
+        line = line.trim();
+        int at = line.lastIndexOf('@');
+        if (at > 0) {
+            String[] credentials = line.substring(0, at).split(":", 2);
+            return credentials.length == 2 ? credentials : null;
+        }
+        String[] parts = line.split(":", 4);
+        return parts.length == 4 ? new String[]{parts[2], parts[3]} : null;
+    }
+    private static void discardLosers(List<Future<Store>> pending) {
+        for (Future<Store> future : pending) {
+            hedgeExecutor.submit(() -> {
+                try {
+                    future.get().close();
+                } catch (Exception ignored) {
+                }
+            });
+        }
+    }
+    private static boolean isTimeout(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException) return true;
+        }
+        return false;
+    }
+
+    private static void afterConnect(String email, Store store, boolean isOAuth) {
+        if (!(store instanceof IMAPStore)) return;
+        IMAPStore imapStore = (IMAPStore) store;
+        CapabilityRegistry.recordImap(getHost(email), isOAuth, imapStore);
+
+        ImapStats stats = ImapStats.get(email);
+        if (stats != null) {
+            try {
+                stats.setCompressed(IMAP_COMPRESS && imapStore.hasCapability("COMPRESS=DEFLATE"));
+            } catch (MessagingException e) {
+                ThrowableUtil.println(e);
+            }
+        }
+    }
+    private static void logStats(String email) {
+        ImapStats stats = ImapStats.close(email);
+        if (stats != null) LogUtil.log(stats.toString());
+    }
+
     public static String getHost(String email){
         String domain = email.split("@")[1].toLowerCase();
-
+        return hostCache.computeIfAbsent(domain, Microsoft::resolveHost);
+    }
+    private static String resolveHost(String domain){
         try {
             // Read hosts.json file
             String content = FileUtil.readString(hosts);
@@ -700,6 +1401,7 @@ public class Microsoft {
 
         if (closed) {
             LogUtil.warning(currentEmail + " connection closed");
+            logStats(currentEmail);
         }
 
         currentEmail = null;
@@ -713,6 +1415,7 @@ public class Microsoft {
                 store.close();
             }
             LogUtil.warning(email + " connection closed (multipleThreaded mode)");
+            logStats(email);
         }
         catch (MessagingException e) {
             ThrowableUtil.println(e);
@@ -730,12 +1433,16 @@ public class Microsoft {
     public static EmailMessage getMessageGraphAPI(String accessToken, String messageId) throws Exception {
         String tokenUrl = "https://graph.microsoft.com/v1.0/me/messages/" + messageId;
 
-        ResponseContent response = HttpClient.create()
-                .getRequest(tokenUrl,
-                        Headers.create()
-                                .setAuthorization("Bearer " + accessToken)
-                                .setDefaultContentType()
-                                .get());
+        ResponseContent response = Governor.forKey(GRAPH_ENDPOINT).call(() -> {
+            ResponseContent r = HttpClient.create()
+                    .getRequest(tokenUrl,
+                            Headers.create()
+                                    .setAuthorization("Bearer " + accessToken)
+                                    .setDefaultContentType()
+                                    .get());
+            checkThrottled(r);
+            return r;
+        });
 
         if (response.getCode() != 200) throw new ConnectException(response);
 
@@ -743,9 +1450,265 @@ public class Microsoft {
         return EmailMessage.fromJson(messageJson);
     }
 
+    /**
+     * Lists the mail folders of the mailbox with the Microsoft Graph API.
+     *
+     * @return Folders with id, displayName and totalItemCount
+     * @throws Exception If an error occurs during the API call
+     */
+    public static JSONArray getMailFoldersGraphAPI(String accessToken) throws Exception {
+        JSONObject json = getGraphAPI(accessToken,
+                "https://graph.microsoft.com/v1.0/me/mailFolders?$top=100&$select=id,displayName,totalItemCount");
+        JSONArray folders = json.optJSONArray("value");
+        return folders != null ? folders : new JSONArray();
+    }
+
+    /**
+     * Reads the item counts of one mail folder with the Microsoft Graph API, without listing messages.
+     *
+     * @param folder A well-known folder name such as inbox, or a folder id
+     * @return The folder with totalItemCount and unreadItemCount
+     * @throws Exception If an error occurs during the API call
+     */
+    public static JSONObject getMailFolderGraphAPI(String accessToken, String folder) throws Exception {
+        return getGraphAPI(accessToken, "https://graph.microsoft.com/v1.0/me/mailFolders/" + folder
+                + "?$select=totalItemCount,unreadItemCount");
+    }
+
+    /**
+     * @param folder A well-known folder name such as inbox, or a folder id
+     * @return The receivedDateTime of the newest message in the folder, or null if it is empty
+     * @throws Exception If an error occurs during the API call
+     */
+    public static String getLastReceivedGraphAPI(String accessToken, String folder) throws Exception {
+        JSONObject json = getGraphAPI(accessToken, "https://graph.microsoft.com/v1.0/me/mailFolders/" + folder
+                + "/messages?$top=1&$select=receivedDateTime&$orderby=receivedDateTime%20desc");
+        JSONArray messages = json.optJSONArray("value");
+        return messages != null && messages.length() > 0 ? messages.getJSONObject(0).optString("receivedDateTime", null) : null;
+    }
+
+    // Through a proxy from proxies.txt when there are any, like the other Graph requests
+    private static HttpClient graphClient() {
+        return Main.proxies.isEmpty() ? HttpClient.create() : HttpClient.proxy(ProxyUtil.http(Main.proxies.pick()));
+    }
+
+    static JSONObject getGraphAPI(String accessToken, String url) throws Exception {
+        ResponseContent response = Governor.forKey(GRAPH_ENDPOINT).call(() -> {
+            ResponseContent r = graphClient()
+                    .getRequest(url,
+                            Headers.create()
+                                    .setAuthorization("Bearer " + accessToken)
+                                    .setDefaultContentType()
+                                    .get());
+            checkThrottled(r);
+            return r;
+        });
+
+        if (response.getContent().contains("IDX14100: JWT is not well formed"))
+            throw new InvalidAuthenticationToken(response.getContent());
+
+        if (response.getCode() != 200) throw new ConnectException(response);
+
+        return new JSONObject(response.getContent());
+    }
+
+    /**
+     * Fetches one page of inbox changes from the Microsoft Graph delta endpoint.
+     * The first call starts a delta sequence for messages received since {@code since}; every page after that
+     * is requested with the @odata.nextLink or @odata.deltaLink of the previous one.
+     *
+     * @param accessToken The access token for authentication
+     * @param link The nextLink or deltaLink to follow, or null to start a new sequence
+     * @param since ISO-8601 time the new sequence starts at, ignored when following a link
+     * @return The page, with "value" and either "@odata.nextLink" or "@odata.deltaLink"
+     * @throws Exception If an error occurs during the API call
+     */
+    public static JSONObject getInboxDeltaGraphAPI(String accessToken, String link, String since) throws Exception {
+        String url = link != null ? link
+                : "https://graph.microsoft.com/v1.0/me/mailFolders/inbox/messages/delta"
+                + "?$select=subject,from,toRecipients,receivedDateTime,bodyPreview,body,hasAttachments"
+                + "&$filter=" + URLEncoder.encode("receivedDateTime ge " + since, "UTF-8");
+
+        HttpClient client = graphClient();
+        ResponseContent response = Governor.forKey(GRAPH_ENDPOINT).call(() -> {
+            ResponseContent r = client
+                    .getRequest(url,
+                            Headers.create()
+                                    .setAuthorization("Bearer " + accessToken)
+                                    .setDefaultContentType()
+                                    .get());
+            checkThrottled(r);
+            return r;
+        });
+
+        if (response.getContent().contains("IDX14100: JWT is not well formed"))
+            throw new InvalidAuthenticationToken(response.getContent());
+
+        if (response.getCode() != 200) throw new ConnectException(response);
+
+        return new JSONObject(response.getContent());
+    }
+
+    /**
+     * Lists the attachments of a message without downloading them. IMAP attachments come from the BODYSTRUCTURE
+     * fetched with the body, Graph attachments from one attachments request.
+     *
+     * @param account The email account with a valid access token
+     * @param message A message fetched from the account
+     * @return The attachments, also set on the message
+     * @throws Exception If an error occurs during the API call
+     */
+    public static List<Attachment> getAttachments(EmailAccount account, EmailMessage message) throws Exception {
+        List<Attachment> attachments = message.getAttachments();
+        if (attachments != null) return attachments;
+        if (!message.hasAttachments()) {
+            attachments = new ArrayList<>();
+        }
+        else {
+            attachments = getAttachmentsGraphAPI(account.getAccessToken(), message.getId());
+        }
+        message.setAttachments(attachments);
+        return attachments;
+    }
+
+    /**
+     * Lists the attachments of a message with the Microsoft Graph API, without their contentBytes.
+     */
+    public static List<Attachment> getAttachmentsGraphAPI(String accessToken, String messageId) throws Exception {
+        JSONObject json = getGraphAPI(accessToken, "https://graph.microsoft.com/v1.0/me/messages/" + messageId
+                + "/attachments?$select=id,name,contentType,size,isInline");
+        List<Attachment> attachments = new ArrayList<>();
+        JSONArray values = json.optJSONArray("value");
+        if (values != null) {
+            for (int i = 0; i < values.length(); i++) {
+                JSONObject value = values.getJSONObject(i);
+                attachments.add(new Attachment(value.getString("id"), value.optString("name", "attachment-" + (i + 1)),
+                        value.optString("contentType", "application/octet-stream"),
+                        value.optLong("size", -1), value.optBoolean("isInline")));
+            }
+        }
+        return attachments;
+    }
+
+    /**
+     * Downloads an attachment into the {@link AttachmentStore}, unless it is there already.
+     * The content is streamed to disk: IMAP fetches the part in blocks and decodes it as they arrive,
+     * Graph sends the raw bytes of /$value.
+     *
+     * @param account The email account with a valid access token
+     * @param message A message fetched from the account
+     * @param attachment One of the message's attachments
+     * @return The stored file
+     * @throws Exception If an error occurs while downloading
+     */
+    public static Path saveAttachment(EmailAccount account, EmailMessage message, Attachment attachment) throws Exception {
+        if (AttachmentStore.contains(attachment.getSha256())) return AttachmentStore.path(attachment.getSha256());
+
+        String hash;
+        if (account.getType().equals(AuthType.GRAPH)) {
+            hash = saveAttachmentGraphAPI(account.getAccessToken(), message.getId(), attachment.getId());
+        }
+        else {
+            hash = Governor.forKey(getHost(account.getEmail())).call(() -> message.readAttachment(attachment, AttachmentStore::save));
+        }
+        attachment.setSha256(hash);
+        AttachmentStore.index(account.getEmail(), message.getId(), attachment);
+        LogUtil.log(String.format("Saved %s of %s as %s", attachment.getName(), account.getEmail(), hash));
+        return AttachmentStore.path(hash);
+    }
+
+    /**
+     * Streams the raw content of a Graph attachment into the {@link AttachmentStore}.
+     *
+     * @return The SHA-256 the content is stored under
+     */
+    public static String saveAttachmentGraphAPI(String accessToken, String messageId, String attachmentId) throws Exception {
+        return streamGraphAPI(accessToken, "https://graph.microsoft.com/v1.0/me/messages/" + messageId
+                + "/attachments/" + attachmentId + "/$value", AttachmentStore::save);
+    }
+
+    /**
+     * Streams the raw RFC 822 source of a message with the Microsoft Graph API.
+     *
+     * @param out Where the source is written to, not closed
+     */
+    public static void writeMessageGraphAPI(String accessToken, String messageId, OutputStream out) throws Exception {
+        streamGraphAPI(accessToken, "https://graph.microsoft.com/v1.0/me/messages/" + messageId + "/$value", in -> {
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return null;
+        });
+    }
+
+    public interface StreamReader<T> {
+        T read(InputStream in) throws Exception;
+    }
+
+    /**
+     * GET for binary content such as /$value. The shared HttpClient reads responses into a String, which would both
+     * corrupt binary content and hold it in memory, so these requests go through HttpURLConnection.
+     */
+    static <T> T streamGraphAPI(String accessToken, String link, StreamReader<T> reader) throws Exception {
+        URL url = new URL(link);
+        Proxy proxy = Proxy.NO_PROXY;
+        if (!Main.proxies.isEmpty()) {
+            ProxyUtil picked = ProxyUtil.http(Main.proxies.pick());
+            proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(picked.getHost(), picked.getPort()));
+        }
+        Proxy finalProxy = proxy;
+
+        return Governor.forKey(GRAPH_ENDPOINT).call(() -> {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection(finalProxy);
+            try {
+                connection.setRequestProperty("Authorization", "Bearer " + accessToken);
+                connection.setConnectTimeout(15000);
+                connection.setReadTimeout(60000);
+                int code = connection.getResponseCode();
+                if (code == 429 || code == 503) {
+                    String retryAfter = connection.getHeaderField("Retry-After");
+                    throw new ThrottledException("HTTP " + code + " from " + url.getPath(),
+                            retryAfter != null && retryAfter.matches("\\d+") ? Long.parseLong(retryAfter) * 1000 : -1);
+                }
+                if (code == 401) throw new InvalidAuthenticationToken("HTTP 401 from " + url.getPath());
+                if (code != 200) throw new IOException("HTTP " + code + " from " + url.getPath());
+
+                try (InputStream in = connection.getInputStream()) {
+                    return reader.read(in);
+                }
+            }
+            finally {
+                connection.disconnect();
+            }
+        });
+    }
+
+    /**
+     * Deletes a listed email message. IMAP messages are deleted by UID in the folder they were listed from,
+     * without looking through the other folders.
+     *
+     * @param account The email account
+     * @param message A message listed for the account
+     * @return true if deletion was successful, false otherwise
+     * @throws Exception If an error occurs during the deletion process
+     */
+    public static boolean deleteEmail(EmailAccount account, EmailMessage message) throws Exception {
+        MessageReference reference = message.getReference();
+        if (account.getType().equals(AuthType.GRAPH) || reference == null) {
+            return deleteEmail(account, message.getId());
+        }
+        boolean isOAuth = !account.getType().equals(AuthType.IMAP_BASIC);
+        String credential = isOAuth ? account.getAccessToken() : account.getPassword();
+        return Governor.forKey(getHost(account.getEmail())).call(() -> deleteEmail(account.getEmail(), credential, reference, isOAuth));
+    }
+
     /**
      * Deletes an email message based on the account type and message ID.
-     * 
+     * IMAP looks for the Message-ID in every fetched folder, use {@link #deleteEmail(EmailAccount, EmailMessage)}
+     * for a message that was listed.
+     *
      * @param account The email account
      * @param messageId The ID of the message to delete
      * @return true if deletion was successful, false otherwise
@@ -777,22 +1740,26 @@ public class Microsoft {
         HttpClient client = Main.proxies.isEmpty() ? HttpClient.create()
                 : HttpClient.proxy(ProxyUtil.http(Main.proxies.pick()));
 
-        ResponseContent response = client
-                .setKeepAlive(false)
-                .deleteRequest(tokenUrl,
-                        Headers.create()
-                                .setAuthorization("Bearer " + accessToken)
-                                .setDefaultContentType()
-                                .get());
+        ResponseContent response = Governor.forKey(GRAPH_ENDPOINT).call(() -> {
+            ResponseContent r = client
+                    .setKeepAlive(false)
+                    .deleteRequest(tokenUrl,
+                            Headers.create()
+                                    .setAuthorization("Bearer " + accessToken)
+                                    .setDefaultContentType()
+                                    .get());
+            checkThrottled(r);
+            return r;
+        });
 
-        System.out.println(response.printInfo());
+        Log.debug(response::printInfo);
 
         // 204 No Content is the expected response for successful deletion
         return response.getCode() == 204;
     }
 
     /**
-     * Deletes an email message using IMAP with OAuth authentication.
+     * Deletes an email message using IMAP with OAuth authentication, looking for its Message-ID in the fetched folders.
      * 
      * @param email The email address
      * @param accessToken The OAuth access token
@@ -801,11 +1768,11 @@ public class Microsoft {
      * @throws Exception If an error occurs during the IMAP operation
      */
     public static boolean deleteEmailIMAPOAuth(String email, String accessToken, String messageId) throws Exception {
-        return deleteEmail(email, accessToken, messageId, true);
+        return Governor.forKey(getHost(email)).call(() -> deleteEmail(email, accessToken, messageId, true));
     }
 
     /**
-     * Deletes an email message using IMAP with basic authentication.
+     * Deletes an email message using IMAP with basic authentication, looking for its Message-ID in the fetched folders.
      * 
      * @param email The email address
      * @param password The password
@@ -814,7 +1781,7 @@ public class Microsoft {
      * @throws Exception If an error occurs during the IMAP operation
      */
     public static boolean deleteEmailIMAPBasic(String email, String password, String messageId) throws Exception {
-        return deleteEmail(email, password, messageId, false);
+        return Governor.forKey(getHost(email)).call(() -> deleteEmail(email, password, messageId, false));
     }
 
     // Unified delete method for both OAuth and Basic authentication
@@ -823,22 +1790,27 @@ public class Microsoft {
         Store store = null;
 
         try {
-            // Connection properties
-            Properties props = getIMAPProperties(email, isOAuth);
-
-            // Create session and store
-            Session session = Session.getInstance(props);
-            store = session.getStore("imaps");
-
             // Connect using appropriate authentication method
-            store.connect(email, credential);
+            store = connectStore(email, credential, isOAuth);
 
-            // Access inbox in READ_WRITE mode (required for deletion)
-            inbox = store.getFolder("INBOX");
-            inbox.open(Folder.READ_WRITE);
+            // Look through the fetched folders in READ_WRITE mode (required for deletion), INBOX first
+            for (String name : MailFolders.imapFolders(email, store)) {
+                inbox = store.getFolder(name);
+                try {
+                    inbox.open(Folder.READ_WRITE);
+                }
+                catch (FolderNotFoundException e) {
+                    // Deleted or renamed since the folders were listed, the others are still worth a look
+                    MailFolders.forget(email);
+                    inbox = null;
+                    continue;
+                }
 
-            // Search for and delete the message
-            return findAndDeleteMessage(inbox, messageId);
+                // Search for and delete the message
+                if (findAndDeleteMessage(inbox, messageId)) return true;
+                inbox.close(false);
+            }
+            return false;
         }
         catch (Exception e) {
             String authType = isOAuth ? "OAuth" : "Basic";
@@ -851,10 +1823,48 @@ public class Microsoft {
         }
     }
 
+    // Delete by UID in the folder the message was listed from
+    private static boolean deleteEmail(String email, String credential, MessageReference reference, boolean isOAuth) throws Exception {
+        Folder folder = null;
+        Store store = null;
+
+        try {
+            store = connectStore(email, credential, isOAuth);
+            folder = store.getFolder(reference.getFolder());
+            folder.open(Folder.READ_WRITE);
+
+            // Another UIDVALIDITY means the UIDs were given out again, the UID may belong to another message now
+            UIDFolder uidFolder = (UIDFolder) folder;
+            if (uidFolder.getUIDValidity() != reference.getUidValidity()) return false;
+            Message message = uidFolder.getMessageByUID(reference.getUid());
+            if (message == null) return false;
+            message.setFlag(Flags.Flag.DELETED, true);
+            return true;
+        }
+        catch (FolderNotFoundException e) {
+            MailFolders.forget(email);
+            return false;
+        }
+        catch (Exception e) {
+            String authType = isOAuth ? "OAuth" : "Basic";
+            LogUtil.error("Error deleting message via IMAP " + authType + " for " + email);
+            ThrowableUtil.println(e);
+            throw e;
+        }
+        finally {
+            closeDeleteConnection(folder, store);
+        }
+    }
+
     // Find and delete message by ID
     private static boolean findAndDeleteMessage(Folder inbox, String messageId) throws Exception {
         Message[] messages = inbox.getMessages();
 
+        // One FETCH for all Message-ID headers instead of one per message
+        FetchProfile profile = new FetchProfile();
+        profile.add("Message-ID");
+        inbox.fetch(messages, profile);
+
         for (Message message : messages) {
             String msgId = message.getHeader("Message-ID") != null ?
                     message.getHeader("Message-ID")[0] :
@@ -887,7 +1897,8 @@ public class Microsoft {
     }
 
     /**
-     * Deletes all email messages in the inbox for the given account.
+     * Deletes all email messages in the inbox and the junk folder for the given account.
+     * Other folders, e.g. Sent, Drafts or Trash with --folders all, are left alone.
      * 
      * @param account The email account
      * @return the number of deleted messages
@@ -906,7 +1917,7 @@ public class Microsoft {
     }
 
     /**
-     * Deletes all email messages in the inbox using the Microsoft Graph API.
+     * Deletes all email messages in the inbox and the junk folder using the Microsoft Graph API.
      * 
      * @param accessToken The access token for authentication
      * @return the number of deleted messages
@@ -924,6 +1935,7 @@ public class Microsoft {
 
         // Delete each message
         for (EmailMessage message : messages) {
+            if (!isInboxOrJunk(message.getFolder())) continue;
             boolean deleted = deleteEmailGraphAPI(accessToken, message.getId());
             if (deleted) deletedCount++;
         }
@@ -932,7 +1944,7 @@ public class Microsoft {
     }
 
     /**
-     * Deletes all email messages in the inbox using IMAP with OAuth authentication.
+     * Deletes all email messages in the inbox and the junk folder using IMAP with OAuth authentication.
      * 
      * @param email The email address
      * @param accessToken The OAuth access token
@@ -940,11 +1952,11 @@ public class Microsoft {
      * @throws Exception If an error occurs during the IMAP operation
      */
     private static int deleteAllEmailIMAPOAuth(String email, String accessToken) throws Exception {
-        return deleteAllEmailIMAP(email, accessToken, true);
+        return Governor.forKey(getHost(email)).call(() -> deleteAllEmailIMAP(email, accessToken, true));
     }
 
     /**
-     * Deletes all email messages in the inbox using IMAP with basic authentication.
+     * Deletes all email messages in the inbox and the junk folder using IMAP with basic authentication.
      * 
      * @param email The email address
      * @param password The password
@@ -952,7 +1964,12 @@ public class Microsoft {
      * @throws Exception If an error occurs during the IMAP operation
      */
     private static int deleteAllEmailIMAPBasic(String email, String password) throws Exception {
-        return deleteAllEmailIMAP(email, password, false);
+        return Governor.forKey(getHost(email)).call(() -> deleteAllEmailIMAP(email, password, false));
+    }
+
+    // Folder of a Graph message: INBOX, a role name, or a display name when it was fetched for "all"
+    private static boolean isInboxOrJunk(String folder) {
+        return folder.equals("INBOX") || folder.equals(FolderRole.JUNK.name()) || FolderRole.JUNK.hasName(folder);
     }
 
     // Unified delete all method for both OAuth and Basic authentication
@@ -961,33 +1978,36 @@ public class Microsoft {
         Store store = null;
 
         try {
-            // Connection properties
-            Properties props = getIMAPProperties(email, isOAuth);
-
-            // Create session and store
-            Session session = Session.getInstance(props);
-            store = session.getStore("imaps");
-
             // Connect using appropriate authentication method
-            store.connect(email, credential);
+            store = connectStore(email, credential, isOAuth);
 
-            // Access inbox in READ_WRITE mode (required for deletion)
-            inbox = store.getFolder("INBOX");
-            inbox.open(Folder.READ_WRITE);
+            int deleted = 0;
+            for (String name : MailFolders.imapFolders(email, store)) {
+                FolderRole role = MailFolders.role(email, name);
+                if (role != FolderRole.INBOX && role != FolderRole.JUNK) continue;
+                if (role == FolderRole.JUNK && MailFolders.status((IMAPFolder) store.getFolder(name)).getMessages() == 0) {
+                    continue;
+                }
 
-            // Mark all messages for deletion
-            Message[] messages = inbox.getMessages();
-            int count = messages.length;
+                // Access the folder in READ_WRITE mode (required for deletion)
+                inbox = store.getFolder(name);
+                inbox.open(Folder.READ_WRITE);
 
-            if (count == 0) {
-                return 0; // No messages to delete
-            }
+                // Mark all messages for deletion
+                int count = inbox.getMessageCount();
 
-            for (Message message : messages) {
-                message.setFlag(Flags.Flag.DELETED, true);
+                if (count > 0) {
+                    // Single STORE over the whole sequence range
+                    inbox.setFlags(1, count, new Flags(Flags.Flag.DELETED), true);
+                    deleted += count;
+                }
+
+                // Expunge before the next folder
+                inbox.close(true);
+                inbox = null;
             }
 
-            return count;
+            return deleted;
         }
         catch (Exception e) {
             String authType = isOAuth ? "OAuth" : "Basic";
@@ -0,0 +1,223 @@
+package net.tokenu.mail.service;
+
+import com.commons.FileUtil;
+import com.commons.LogUtil;
+import com.commons.ThrowableUtil;
+import com.commons.json.JsonUtil;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.tokenu.mail.model.EmailAccount;
+import net.tokenu.mail.util.BloomFilter;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent record of accounts that failed permanently, keyed by email and a fingerprint of the credentials.
+ * An entry only matches while the credentials are unchanged and its TTL has not passed, so editing
+ * the password or refresh token in emails.txt makes the account eligible again.
+ * A {@link BloomFilter} in front keeps the lookup for the usual, healthy account allocation-free.
+ */
+public class NegativeCache {
+    public static String fileName = "negative.json";
+    // false to check every account again (--recheck), failures are still recorded
+    public static boolean ENABLED = true;
+
+    private static volatile Map<String, Entry> entries;
+    private static volatile BloomFilter bloom;
+    private static boolean dirty;
+
+    private static class Entry {
+        private final String email;
+        private final String fingerprint;
+        private final ResultWriter.Category category;
+        private final long failedAt;
+        private final long expiresAt;
+
+        private Entry(String email, String fingerprint, ResultWriter.Category category, long failedAt, long expiresAt) {
+            this.email = email;
+            this.fingerprint = fingerprint;
+            this.category = category;
+            this.failedAt = failedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        private JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            json.addProperty("email", email);
+            json.addProperty("fingerprint", fingerprint);
+            json.addProperty("category", category.name());
+            json.addProperty("failedAt", failedAt);
+            json.addProperty("expiresAt", expiresAt);
+            return json;
+        }
+
+        private static Entry fromJson(JsonObject json) {
+            return new Entry(json.get("email").getAsString(),
+                    json.get("fingerprint").getAsString(),
+                    ResultWriter.Category.valueOf(json.get("category").getAsString()),
+                    json.get("failedAt").getAsLong(),
+                    json.get("expiresAt").getAsLong());
+        }
+    }
+
+    /**
+     * How long a failure is trusted, or 0 for failures that say nothing about the account.
+     */
+    public static long getTTL(ResultWriter.Category category) {
+        switch (category) {
+            case INVALID_CREDENTIALS:
+                return TimeUnit.DAYS.toMillis(7);
+            case TOKEN_REVOKED:
+                return TimeUnit.DAYS.toMillis(30);
+            case LOCKED:
+                return TimeUnit.DAYS.toMillis(1);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Looks up a known permanent failure for the account.
+     *
+     * @param account The account
+     * @return The recorded failure, or null if the account is not known to be dead
+     */
+    public static ResultWriter.Category lookup(EmailAccount account) {
+        if (!ENABLED) return null;
+        load();
+        if (!bloom.mightContain(account.getEmail())) return null;
+
+        Entry entry = entries.get(account.getEmail().toLowerCase());
+        if (entry == null) return null;
+        if (entry.expiresAt < System.currentTimeMillis() || !entry.fingerprint.equals(fingerprint(account))) {
+            return null;
+        }
+        return entry.category;
+    }
+
+    public static boolean isDead(EmailAccount account) {
+        return lookup(account) != null;
+    }
+
+    /**
+     * Records a failure. Only authentication failures are kept, transient (connect, throttling) and
+     * {@link ResultWriter.Category#UNKNOWN} failures are ignored.
+     */
+    public static void record(EmailAccount account, ResultWriter.Category category) {
+        long ttl = getTTL(category);
+        if (ttl == 0) return;
+        load();
+
+        long now = System.currentTimeMillis();
+        String email = account.getEmail().toLowerCase();
+        entries.put(email, new Entry(email, fingerprint(account), category, now, now + ttl));
+        bloom.add(email);
+        markDirty();
+    }
+
+    /**
+     * Forgets the account after it worked again.
+     *
+     * @return true if the account had an entry
+     */
+    public static boolean clear(EmailAccount account) {
+        load();
+        if (!bloom.mightContain(account.getEmail())) return false;
+        if (entries.remove(account.getEmail().toLowerCase()) == null) return false;
+        markDirty();
+        return true;
+    }
+
+    private static synchronized void markDirty() {
+        dirty = true;
+    }
+
+    /**
+     * Fingerprint of everything that can make a dead account work again.
+     */
+    private static String fingerprint(EmailAccount account) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String credentials = account.getPassword() + "\0" + account.getClientId() + "\0" + account.getRefreshToken();
+            byte[] hash = digest.digest(credentials.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                sb.append(String.format("%02x", hash[i]));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void load() {
+        if (entries == null) {
+            synchronized (NegativeCache.class) {
+                if (entries == null) read();
+            }
+        }
+    }
+
+    private static void read() {
+        Map<String, Entry> entries = new ConcurrentHashMap<>();
+        long now = System.currentTimeMillis();
+        if (new File(fileName).exists()) {
+            try {
+                String content = FileUtil.readString(fileName);
+                if (!content.isEmpty()) {
+                    JsonArray array = JsonParser.parseString(content).getAsJsonObject().getAsJsonArray("entries");
+                    for (JsonElement element : array) {
+                        Entry entry = Entry.fromJson(element.getAsJsonObject());
+                        if (entry.expiresAt > now) entries.put(entry.email, entry);
+                    }
+                }
+            }
+            catch (Exception e) {
+                LogUtil.error("Error reading " + fileName + ": " + e.getMessage());
+            }
+        }
+        rebuildBloom(entries);
+        NegativeCache.entries = entries;
+    }
+
+    private static void rebuildBloom(Map<String, Entry> entries) {
+        BloomFilter filter = new BloomFilter(Math.max(1024, entries.size() * 2), 0.01);
+        for (String email : entries.keySet()) {
+            filter.add(email);
+        }
+        bloom = filter;
+    }
+
+    /**
+     * Writes the cache if it changed, dropping expired entries.
+     */
+    public static synchronized void save() {
+        if (entries == null || !dirty) return;
+        dirty = false;
+
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(entry -> entry.expiresAt <= now);
+        // Keep the false positive rate near 1% as the cache grows
+        if (entries.size() > bloom.getCapacity()) rebuildBloom(entries);
+
+        JsonArray array = new JsonArray();
+        for (Entry entry : entries.values()) {
+            array.add(entry.toJson());
+        }
+        JsonObject json = new JsonObject();
+        json.add("entries", array);
+        try {
+            FileUtil.write(JsonUtil.prettyPrinting(json), fileName);
+        }
+        catch (Exception e) {
+            ThrowableUtil.println(e);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package net.tokenu.mail.service;
+
+import com.commons.LogUtil;
+import com.commons.ThrowableUtil;
+import net.tokenu.mail.util.CircuitOpenException;
+import net.tokenu.mail.util.DeadlineExceededException;
+import net.tokenu.mail.util.Metrics;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.FolderClosedException;
+import javax.mail.StoreClosedException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes bulk run results to one file per {@link Category} from a single background thread.
+ * Workers only enqueue a line, the writer drains the queue in batches, appends each category's
+ * lines with one channel write and forces the files to disk every FORCE_INTERVAL.
+ */
+public class ResultWriter implements Closeable {
+    public static int QUEUE_CAPACITY = 10000;
+    public static int BATCH_SIZE = 512;
+    public static long FORCE_INTERVAL = 1000;
+
+    // Token endpoint errors (AADSTS codes) and IMAP responses that prove the server rejected the credentials
+    private static final String[] AUTH_MARKERS = {
+            "AADSTS", "invalid_grant", "AUTHENTICATE failed", "LOGIN failed",
+    };
+    // Only looked at once the failure is known to be an authentication failure
+    private static final String[] REVOKED_MARKERS = {
+            "AADSTS70000", "AADSTS70008", "AADSTS50173", "AADSTS700082", "AADSTS700084", "AADSTS54005",
+            "invalid_grant", "revoked", "has expired",
+    };
+    private static final String[] LOCKED_MARKERS = {
+            "AADSTS50053", "AADSTS50057", "AADSTS50055", "AADSTS53003", "AADSTS50076", "AADSTS50079",
+            "account is locked",
+    };
+
+    public enum Category {
+        VALID("valid.txt"),
+        INVALID_CREDENTIALS("invalid.txt"),
+        TOKEN_REVOKED("revoked.txt"),
+        LOCKED("locked.txt"),
+        CONNECT_FAILURE("connect_failure.txt"),
+        THROTTLED("throttled.txt"),
+        // Failures that say nothing about the account, e.g. a parse error or a full disk
+        UNKNOWN("unknown.txt"),
+        MESSAGES("messages.txt"),
+        // Values extracted by the RuleEngine, one JSON object per line
+        MATCHES("matches.txt"),
+        // Journal of finished accounts, see Checkpoint
+        CHECKPOINT("checkpoint.jsonl"),
+        ;
+
+        private final String fileName;
+
+        Category(String fileName) {
+            this.fileName = fileName;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * @return true if the server rejected the credentials or the account, so retrying can't help
+         */
+        public boolean isAuthFailure() {
+            return this == INVALID_CREDENTIALS || this == TOKEN_REVOKED || this == LOCKED;
+        }
+    }
+
+    private static class Record {
+        private final Category category;
+        private final String line;
+
+        private Record(Category category, String line) {
+            this.category = category;
+            this.line = line;
+        }
+    }
+
+    private static final Record END = new Record(null, null);
+
+    private final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Map<Category, FileChannel> channels = new EnumMap<>(Category.class);
+    private final String directory;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    public ResultWriter() {
+        this("");
+    }
+
+    /**
+     * @param directory The directory the category files are written to, "" for the working directory
+     */
+    public ResultWriter(String directory) {
+        this.directory = directory;
+        thread = new Thread(this::loop, "result-writer");
+        thread.setDaemon(true);
+        thread.start();
+        Metrics.gauge("results.queue", queue::size);
+    }
+
+    /**
+     * Classifies why an account failed. Only an {@link AuthenticationFailedException} or an AADSTS / IMAP
+     * AUTHENTICATE response blames the account, anything that isn't recognised is {@link Category#UNKNOWN}.
+     *
+     * @param e The exception thrown while checking the account
+     * @return The category the account belongs to
+     */
+    public static Category classify(Throwable e) {
+        if (Governor.isThrottled(e)) return Category.THROTTLED;
+        boolean authFailed = false;
+        StringBuilder messages = new StringBuilder();
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CircuitOpenException
+                    || cause instanceof DeadlineExceededException
+                    || cause instanceof SocketException
+                    || cause instanceof FolderClosedException
+                    || cause instanceof StoreClosedException) {
+                return Category.CONNECT_FAILURE;
+            }
+            authFailed |= cause instanceof AuthenticationFailedException;
+            if (cause.getMessage() != null) messages.append(cause.getMessage()).append(' ');
+        }
+        if (CircuitBreaker.isInfrastructureFailure(e)) return Category.CONNECT_FAILURE;
+
+        String message = messages.toString();
+        if (!authFailed && !containsAny(message, AUTH_MARKERS)) return Category.UNKNOWN;
+        if (containsAny(message, REVOKED_MARKERS)) return Category.TOKEN_REVOKED;
+        if (containsAny(message, LOCKED_MARKERS)) return Category.LOCKED;
+        return Category.INVALID_CREDENTIALS;
+    }
+
+    private static boolean containsAny(String message, String[] markers) {
+        String lower = message.toLowerCase();
+        for (String marker : markers) {
+            if (lower.contains(marker.toLowerCase())) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Queues a line for the category's file. Only blocks if QUEUE_CAPACITY lines are already waiting,
+     * i.e. when the disk can't keep up at all.
+     */
+    public void write(Category category, String line) {
+        if (closed) throw new IllegalStateException("ResultWriter is closed");
+        Record record = new Record(category, line);
+        if (queue.offer(record)) return;
+
+        Metrics.increment("results.queue.full");
+        try {
+            queue.put(record);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void loop() {
+        List<Record> batch = new ArrayList<>(BATCH_SIZE);
+        long lastForce = System.currentTimeMillis();
+        boolean dirty = false;
+        boolean end = false;
+
+        while (!end) {
+            try {
+                Record first = queue.poll(FORCE_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                }
+            } catch (InterruptedException e) {
+                end = true;
+            }
+            end |= batch.remove(END);
+
+            if (!batch.isEmpty()) {
+                writeBatch(batch);
+                batch.clear();
+                dirty = true;
+            }
+            if (dirty && (end || System.currentTimeMillis() - lastForce >= FORCE_INTERVAL)) {
+                force();
+                dirty = false;
+                lastForce = System.currentTimeMillis();
+            }
+        }
+
+        for (FileChannel channel : channels.values()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ThrowableUtil.println(e);
+            }
+        }
+    }
+
+    private void writeBatch(List<Record> batch) {
+        Map<Category, StringBuilder> lines = new EnumMap<>(Category.class);
+        for (Record record : batch) {
+            lines.computeIfAbsent(record.category, k -> new StringBuilder()).append(record.line).append('\n');
+        }
+
+        lines.forEach((category, sb) -> {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+                FileChannel channel = channel(category);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                LogUtil.error("Error writing " + category.getFileName() + ": " + e.getMessage());
+            }
+        });
+        Metrics.add("results.written", batch.size());
+    }
+
+    private FileChannel channel(Category category) throws IOException {
+        FileChannel channel = channels.get(category);
+        if (channel == null) {
+            if (!directory.isEmpty()) Files.createDirectories(Paths.get(directory));
+            channel = FileChannel.open(Paths.get(directory, category.getFileName()),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            channels.put(category, channel);
+        }
+        return channel;
+    }
+
+    private void force() {
+        for (FileChannel channel : channels.values()) {
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                ThrowableUtil.println(e);
+            }
+        }
+    }
+
+    /**
+     * Writes everything still queued, forces it to disk and stops the writer thread.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            queue.put(END);
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Metrics.removeGauge("results.queue");
+    }
+}
@@ -0,0 +1,278 @@
+package net.tokenu.mail.service;
+
+import com.commons.FileUtil;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.tokenu.mail.model.EmailMessage;
+import net.tokenu.mail.model.RuleMatch;
+import net.tokenu.mail.util.AhoCorasick;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts verification codes, links and other values from messages with rules loaded from a JSON file:
+ * <pre>
+ * {"rules": [
+ *   {"name": "steam", "from": ["steampowered.com"], "subject": ["steam guard"], "body": ["code"], "extract": "alphanumeric"},
+ *   {"name": "confirm", "subject": ["confirm your"], "extract": "link"},
+ *   {"name": "custom", "from": ["example.com"], "pattern": "PIN: (\\d+)", "extractFrom": "subject"}
+ * ]}
+ * </pre>
+ * Keywords are matched ignoring case; a rule needs one keyword of every list it defines.
+ * The keywords of all rules are compiled into one Aho-Corasick automaton per field, so a message is
+ * scanned once per field however many rules there are. Sender and subject are checked first, the body
+ * is only read (and for lazy IMAP messages fetched) when a rule still can match.
+ * Values are extracted with patterns compiled once, starting right after the keyword that matched.
+ */
+public class RuleEngine {
+    public static String fileName = "rules.json";
+    // How far after the keyword the value is looked for before searching the whole text
+    public static int ANCHOR_WINDOW = 400;
+
+    private static final Pattern HTML_TAG = Pattern.compile("<[^>]*>|&nbsp;");
+
+    private static final int FROM = 0;
+    private static final int SUBJECT = 1;
+    private static final int BODY = 2;
+
+    private static class Extractor {
+        private final Pattern pattern;
+        // Links are taken from the raw HTML (href attributes), anything else from the text without tags
+        private final boolean raw;
+        private final ThreadLocal<Matcher> matcher;
+
+        private Extractor(String regex, boolean raw) {
+            this.pattern = Pattern.compile(regex);
+            this.raw = raw;
+            this.matcher = ThreadLocal.withInitial(() -> pattern.matcher(""));
+        }
+
+        private String extract(CharSequence text, int anchor) {
+            Matcher m = matcher.get().reset(text);
+            if (anchor >= 0) {
+                m.region(anchor, Math.min(text.length(), anchor + ANCHOR_WINDOW));
+                if (m.find()) return value(m);
+                m.reset(text);
+            }
+            return m.find() ? value(m) : null;
+        }
+
+        private static String value(Matcher m) {
+            return m.groupCount() > 0 && m.group(1) != null ? m.group(1) : m.group();
+        }
+    }
+
+    private static Extractor builtIn(String name) {
+        switch (name) {
+            case "code":
+                return new Extractor("(?<![\\w#&-])(\\d{4,8})(?![\\w-])", false);
+            case "alphanumeric":
+                return new Extractor("(?<![\\w#&-])([A-Z0-9]{5,8})(?![\\w-])", false);
+            case "link":
+                return new Extractor("https?://[^\\s\"'<>()]+", true);
+            default:
+                throw new IllegalArgumentException("Unknown extractor " + name + ", use code, alphanumeric, link or a pattern");
+        }
+    }
+
+    public static class Rule {
+        private final String name;
+        // By field: FROM, SUBJECT, BODY
+        private final List<List<String>> keywords;
+        private final Extractor extractor;
+        private final int extractFrom;
+
+        private Rule(String name, List<List<String>> keywords, Extractor extractor, int extractFrom) {
+            this.name = name;
+            this.keywords = keywords;
+            this.extractor = extractor;
+            this.extractFrom = extractFrom;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        private boolean requires(int field) {
+            return !keywords.get(field).isEmpty();
+        }
+
+        private boolean needsBody() {
+            return requires(BODY) || (extractor != null && extractFrom == BODY);
+        }
+    }
+
+    // Per-thread scratch space, reused for every message
+    private class Scan implements AhoCorasick.Hit {
+        // End of the first keyword hit per field and rule, -1 if none
+        private final int[][] hits = new int[3][rules.length];
+        private int field;
+
+        private void reset() {
+            for (int[] fieldHits : hits) Arrays.fill(fieldHits, -1);
+        }
+
+        private void search(int field, CharSequence text) {
+            this.field = field;
+            matchers[field].search(text, this);
+        }
+
+        @Override
+        public void onMatch(int pattern, int end) {
+            int rule = owners[field][pattern];
+            if (hits[field][rule] < 0) hits[field][rule] = end;
+        }
+
+        private boolean envelopeMatches(int r) {
+            return (!rules[r].requires(FROM) || hits[FROM][r] >= 0)
+                    && (!rules[r].requires(SUBJECT) || hits[SUBJECT][r] >= 0);
+        }
+    }
+
+    private final Rule[] rules;
+    private final AhoCorasick[] matchers = new AhoCorasick[3];
+    // Pattern index of each field's automaton -> rule index
+    private final int[][] owners = new int[3][];
+    private final ThreadLocal<Scan> scans = ThreadLocal.withInitial(Scan::new);
+
+    public RuleEngine(List<Rule> rules) {
+        this.rules = rules.toArray(new Rule[0]);
+        for (int field = FROM; field <= BODY; field++) {
+            List<String> keywords = new ArrayList<>();
+            List<Integer> owner = new ArrayList<>();
+            for (int r = 0; r < this.rules.length; r++) {
+                for (String keyword : this.rules[r].keywords.get(field)) {
+                    keywords.add(keyword);
+                    owner.add(r);
+                }
+            }
+            matchers[field] = new AhoCorasick(keywords);
+            owners[field] = owner.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    /**
+     * Loads the rules file.
+     *
+     * @param fileName The rules file, see the class comment for its format
+     * @return The compiled rules
+     * @throws Exception If the file can't be read or a rule is invalid
+     */
+    public static RuleEngine load(String fileName) throws Exception {
+        JsonArray array = JsonParser.parseString(FileUtil.readString(fileName)).getAsJsonObject().getAsJsonArray("rules");
+        List<Rule> rules = new ArrayList<>();
+        for (JsonElement element : array) {
+            rules.add(parseRule(element.getAsJsonObject()));
+        }
+        return new RuleEngine(rules);
+    }
+
+    private static Rule parseRule(JsonObject json) {
+        String name = json.has("name") ? json.get("name").getAsString() : "rule";
+        List<List<String>> keywords = Arrays.asList(strings(json, "from"), strings(json, "subject"), strings(json, "body"));
+
+        Extractor extractor = null;
+        if (json.has("pattern")) extractor = new Extractor(json.get("pattern").getAsString(), false);
+        else if (json.has("extract")) extractor = builtIn(json.get("extract").getAsString());
+
+        int extractFrom = json.has("extractFrom") && json.get("extractFrom").getAsString().equalsIgnoreCase("subject")
+                ? SUBJECT : BODY;
+        return new Rule(name, keywords, extractor, extractFrom);
+    }
+
+    private static List<String> strings(JsonObject json, String key) {
+        if (!json.has(key)) return Collections.emptyList();
+        JsonElement element = json.get(key);
+        if (!element.isJsonArray()) return Collections.singletonList(element.getAsString());
+        List<String> list = new ArrayList<>();
+        for (JsonElement item : element.getAsJsonArray()) list.add(item.getAsString());
+        return list;
+    }
+
+    /**
+     * Checks sender and subject only.
+     *
+     * @return true if a rule that reads the body can still match, i.e. the body has to be fetched
+     */
+    public boolean needsBody(EmailMessage message) {
+        Scan scan = scanEnvelope(message);
+        for (int r = 0; r < rules.length; r++) {
+            if (rules[r].needsBody() && scan.envelopeMatches(r)) return true;
+        }
+        return false;
+    }
+
+    private Scan scanEnvelope(EmailMessage message) {
+        Scan scan = scans.get();
+        scan.reset();
+        scan.search(FROM, message.getFrom());
+        scan.search(SUBJECT, message.getSubject());
+        return scan;
+    }
+
+    /**
+     * Runs every rule over the message.
+     *
+     * @param email The account the message belongs to
+     * @param message The message
+     * @return The matches, empty if no rule matched
+     */
+    public List<RuleMatch> match(String email, EmailMessage message) {
+        Scan scan = scanEnvelope(message);
+
+        boolean bodyScanned = false;
+        String body = null;
+        String text = null;
+        List<RuleMatch> matches = null;
+        for (int r = 0; r < rules.length; r++) {
+            Rule rule = rules[r];
+            if (!scan.envelopeMatches(r)) continue;
+
+            if (rule.needsBody() && !bodyScanned) {
+                body = message.getBody();
+                text = "html".equals(message.getContentType()) && body != null
+                        ? HTML_TAG.matcher(body).replaceAll(" ") : body;
+                scan.search(BODY, text);
+                bodyScanned = true;
+            }
+            if (rule.requires(BODY) && scan.hits[BODY][r] < 0) continue;
+
+            String value = null;
+            if (rule.extractor != null) {
+                if (rule.extractFrom == SUBJECT) {
+                    value = rule.extractor.extract(message.getSubject(), scan.hits[SUBJECT][r]);
+                }
+                else if (body != null) {
+                    // Keyword positions are in the text without tags, so raw extraction searches from the start
+                    value = rule.extractor.raw
+                            ? rule.extractor.extract(body, -1)
+                            : rule.extractor.extract(text, scan.hits[BODY][r]);
+                }
+                if (value == null) continue;
+            }
+
+            if (matches == null) matches = new ArrayList<>(2);
+            matches.add(new RuleMatch(email, message, rule.name, value));
+        }
+        return matches != null ? matches : Collections.emptyList();
+    }
+
+    public List<RuleMatch> match(String email, List<EmailMessage> messages) {
+        List<RuleMatch> matches = new ArrayList<>();
+        for (EmailMessage message : messages) {
+            matches.addAll(match(email, message));
+        }
+        return matches;
+    }
+
+    public int size() {
+        return rules.length;
+    }
+}
@@ -0,0 +1,206 @@
+package net.tokenu.mail.service;
+
+import com.commons.LogUtil;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.tokenu.mail.model.EmailAccount;
+import net.tokenu.mail.model.RuleMatch;
+import net.tokenu.mail.util.SharedSecret;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Worker process of a sharded bulk run, see {@link Coordinator}.
+ * Leases a shard, checks it with a {@link BulkRunner} while sending heartbeats, reports the results
+ * with the refreshed tokens, and repeats until the coordinator is done.
+ * Its own files (messages, journal, negative cache) go to a worker-&lt;pid&gt;-&lt;host&gt; directory,
+ * so several workers can share a working directory.
+ */
+public class Worker {
+    public static long HEARTBEAT_INTERVAL = 15000;
+    public static int CONNECT_ATTEMPTS = 5;
+
+    private final String host;
+    private final int port;
+    private final int threads;
+    private final String id;
+    private RuleEngine rules;
+    private String secret = SharedSecret.fromEnvironment();
+
+    /**
+     * @param address The coordinator, host:port
+     * @param threads The number of accounts checked at the same time
+     */
+    public Worker(String address, int threads) {
+        int colon = address.lastIndexOf(':');
+        this.host = colon > 0 ? address.substring(0, colon) : "127.0.0.1";
+        this.port = colon >= 0 ? Integer.parseInt(address.substring(colon + 1)) : Integer.parseInt(address);
+        this.threads = threads;
+        this.id = ManagementFactory.getRuntimeMXBean().getName().replace('@', '-');
+    }
+
+    public Worker setRules(RuleEngine rules) {
+        this.rules = rules;
+        return this;
+    }
+
+    /**
+     * @param secret The coordinator's secret, null to keep the one from the environment
+     */
+    public Worker setSecret(String secret) {
+        if (secret != null) this.secret = secret;
+        return this;
+    }
+
+    public void run() throws Exception {
+        if (secret == null) {
+            throw new IllegalStateException("Workers need the coordinator's --secret or " + SharedSecret.ENVIRONMENT);
+        }
+        String directory = "worker-" + id;
+        Files.createDirectories(Paths.get(directory));
+        NegativeCache.fileName = Paths.get(directory, "negative.json").toString();
+        // The coordinator already skipped the accounts it knows are dead
+        NegativeCache.ENABLED = false;
+
+        ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "worker-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        int completed = 0;
+        try {
+            while (true) {
+                JsonObject request = new JsonObject();
+                request.addProperty("op", "lease");
+                JsonObject lease;
+                try {
+                    lease = request(request);
+                } catch (IOException e) {
+                    // The coordinator stops listening once every shard is done
+                    if (completed == 0) throw e;
+                    LogUtil.warning("Worker " + id + ": coordinator is gone, assuming the run is done");
+                    break;
+                }
+                if (lease.has("done")) break;
+                if (lease.has("wait")) {
+                    Thread.sleep(lease.get("wait").getAsLong());
+                    continue;
+                }
+
+                int shard = lease.get("shard").getAsInt();
+                List<EmailAccount> accounts = new ArrayList<>();
+                for (JsonElement element : lease.getAsJsonArray("accounts")) {
+                    accounts.add(EmailAccount.fromJson(element.getAsJsonObject()));
+                }
+                LogUtil.log(String.format("Worker %s: shard %d, %d accounts", id, shard, accounts.size()));
+
+                ScheduledFuture<?> heartbeat = heartbeats.scheduleWithFixedDelay(() -> heartbeat(shard),
+                        HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+                JsonArray results = new JsonArray();
+                JsonArray matches = new JsonArray();
+                try {
+                    new BulkRunner(accounts, threads, Checkpoint.none())
+                            .setOutputDirectory(directory)
+                            .setRules(rules)
+                            .setListener(new BulkRunner.Listener() {
+                                @Override
+                                public void onResult(EmailAccount account, ResultWriter.Category category) {
+                                    JsonObject result = new JsonObject();
+                                    result.addProperty("category", category.name());
+                                    result.add("account", account.toJson());
+                                    synchronized (results) {
+                                        results.add(result);
+                                    }
+                                }
+
+                                @Override
+                                public void onMatch(RuleMatch match) {
+                                    synchronized (matches) {
+                                        matches.add(match.toJson());
+                                    }
+                                }
+                            })
+                            .run();
+                } finally {
+                    heartbeat.cancel(false);
+                }
+
+                request = new JsonObject();
+                request.addProperty("op", "complete");
+                request.addProperty("shard", shard);
+                request.add("results", results);
+                request.add("matches", matches);
+                request(request);
+                completed++;
+            }
+        } finally {
+            heartbeats.shutdownNow();
+        }
+        LogUtil.successful("Worker " + id + " finished");
+    }
+
+    private void heartbeat(int shard) {
+        JsonObject request = new JsonObject();
+        request.addProperty("op", "heartbeat");
+        request.addProperty("shard", shard);
+        try {
+            if (!request(request).get("ok").getAsBoolean()) {
+                LogUtil.warning("Worker " + id + ": lease of shard " + shard + " was lost, its results may be ignored");
+            }
+        } catch (Exception e) {
+            LogUtil.error("Worker " + id + ": heartbeat failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends one request, retrying while the coordinator can't be reached.
+     */
+    private JsonObject request(JsonObject request) throws IOException, InterruptedException {
+        request.addProperty("worker", id);
+        request.addProperty("secret", secret);
+        IOException failure = null;
+        JsonObject response = null;
+        for (int attempt = 0; attempt < CONNECT_ATTEMPTS; attempt++) {
+            if (attempt > 0) Thread.sleep(2000L * attempt);
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), 10000);
+                socket.setSoTimeout(60000);
+                Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                writer.write(request.toString());
+                writer.write('\n');
+                writer.flush();
+
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String line = reader.readLine();
+                if (line == null) throw new IOException("Coordinator closed the connection");
+                response = JsonParser.parseString(line).getAsJsonObject();
+                break;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (response == null) throw failure;
+        // Not retried, a wrong secret stays wrong
+        if (response.has("error")) throw new IllegalStateException("Coordinator: " + response.get("error").getAsString());
+        return response;
+    }
+}
@@ -2,6 +2,7 @@ package net.tokenu.mail.ui;
 
 import com.sun.mail.util.MailConnectException;
 import com.commons.LogUtil;
+import javafx.animation.PauseTransition;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.beans.property.SimpleStringProperty;
@@ -12,6 +13,7 @@ import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
+import javafx.scene.control.skin.VirtualFlow;
 import javafx.scene.input.Clipboard;
 import javafx.scene.input.ClipboardContent;
 import javafx.scene.layout.*;
@@ -21,15 +23,37 @@ import javafx.scene.image.ImageView;
 import javafx.stage.Stage;
 import com.commons.ThrowableUtil;
 import javafx.util.Duration;
+import net.tokenu.mail.model.AccountSummary;
+import net.tokenu.mail.model.Attachment;
 import net.tokenu.mail.model.EmailAccount;
 import net.tokenu.mail.model.EmailMessage;
+import net.tokenu.mail.service.AccountReloader;
+import net.tokenu.mail.service.AccountScanner;
+import net.tokenu.mail.service.BodyPrefetcher;
+import net.tokenu.mail.service.ImapConnectionPool;
 import net.tokenu.mail.service.Microsoft;
-import net.tokenu.mail.util.AuthType;
-import net.tokenu.mail.util.InvalidAuthenticationToken;
-
+import net.tokenu.mail.service.NegativeCache;
+import net.tokenu.mail.service.ResultWriter;
+import net.tokenu.mail.util.Deadline;
+import net.tokenu.mail.util.Log;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class EmailClientGUI extends Application {
 
@@ -40,6 +64,7 @@ public class EmailClientGUI extends Application {
     private Button closeButton;
     private Button loadImageButton;
     private Button deleteButton;
+    private MenuButton attachmentsButton;
     private Label subjectLabel;
     private Label receivedDateLabel;
     private Label fromLabel;
@@ -53,10 +78,25 @@ public class EmailClientGUI extends Application {
     private String originalHtmlContent;
 
     private List<EmailAccount> accounts;
+    private AccountReloader reloader;
     private ObservableList<EmailAccount> accountsObservable = FXCollections.observableArrayList();
     private FilteredList<EmailAccount> filteredAccounts;
     private ObservableList<EmailMessage> emails = FXCollections.observableArrayList();
     private ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private final BodyPrefetcher prefetcher = new BodyPrefetcher();
+    // Rows after and before the selected email whose bodies are loaded ahead of time
+    private static final int PREFETCH_AHEAD = 3;
+    private static final int PREFETCH_BEHIND = 1;
+    private IdleManager idleManager;
+    // Messages pushed for accounts other than the selected one, by email
+    private final Map<String, Integer> newMail = new HashMap<>();
+    private AccountScanner scanner;
+    // Counts shown as badges, by email; scanner results are collected in pendingSummaries
+    // and applied together, so a pass over many accounts doesn't refresh the list for each one
+    private final Map<String, AccountSummary> summaries = new HashMap<>();
+    private final Map<String, AccountSummary> pendingSummaries = new ConcurrentHashMap<>();
+    private final AtomicBoolean summaryFlushScheduled = new AtomicBoolean();
+    private static final String BADGE_STYLE = "-fx-background-radius: 8; -fx-padding: 0 5 0 5; -fx-font-size: 10px;";
 
     @Override
     public void start(Stage primaryStage) {
@@ -77,6 +117,12 @@ public class EmailClientGUI extends Application {
         HBox bottomPanel = createBottomPanel();
         mainLayout.setBottom(bottomPanel);
 
+        // Push new mail of the selected and watched accounts into the table
+        idleManager = new IdleManager(this::onNewMessage);
+
+        // Listings and lazy bodies of an account share its pooled connection instead of opening one each
+        Microsoft.pooledConnections = true;
+
         // Load email accounts
         loadEmailAccounts();
 
@@ -107,8 +153,44 @@ public class EmailClientGUI extends Application {
         // Initialize the accounts list view
         accountListView = new ListView<>();
         accountListView.setPrefHeight(Integer.MAX_VALUE);
+        // Grey out accounts that failed permanently before, they are still selectable to recheck
+        accountListView.setCellFactory(listView -> new ListCell<EmailAccount>() {
+            @Override
+            protected void updateItem(EmailAccount account, boolean empty) {
+                super.updateItem(account, empty);
+                if (empty || account == null) {
+                    setText(null);
+                    setStyle("");
+                    setGraphic(null);
+                    setTooltip(null);
+                    return;
+                }
+                AccountSummary summary = summaries.get(account.getEmail().toLowerCase());
+                setGraphic(badge(summary));
+                setContentDisplay(ContentDisplay.RIGHT);
+                setTooltip(summary != null && summary.getLastReceived() > 0
+                        ? new Tooltip("Last received " + new Date(summary.getLastReceived())) : null);
+
+                ResultWriter.Category known = NegativeCache.lookup(account);
+                Integer unseen = newMail.get(account.getEmail().toLowerCase());
+                if (known != null) {
+                    setText(account + " (" + known.name().toLowerCase().replace('_', ' ') + ")");
+                    setStyle("-fx-text-fill: gray;");
+                }
+                else if (unseen != null) {
+                    setText(account + " (" + unseen + " new)");
+                    setStyle("-fx-font-weight: bold;");
+                }
+                else {
+                    setText(account.toString());
+                    setStyle("");
+                }
+            }
+        });
         accountListView.getSelectionModel().selectedItemProperty().addListener((obs, oldVal, newVal) -> {
+            idleManager.select(newVal);
             if (newVal != null) {
+                if (newMail.remove(newVal.getEmail().toLowerCase()) != null) accountListView.refresh();
                 loadEmails(newVal);
             }
         });
@@ -129,7 +211,26 @@ public class EmailClientGUI extends Application {
                 statusLabel.setText("Email address copied to clipboard: " + selectedAccount.getEmail());
             }
         });
-        contextMenu.getItems().add(copyEmailItem);
+        CheckMenuItem watchItem = new CheckMenuItem("Watch for New Mail");
+        watchItem.setOnAction(event -> {
+            EmailAccount selectedAccount = accountListView.getSelectionModel().getSelectedItem();
+            if (selectedAccount != null) {
+                idleManager.setWatched(selectedAccount, watchItem.isSelected());
+                statusLabel.setText((watchItem.isSelected() ? "Watching " : "Stopped watching ") + selectedAccount.getEmail());
+            }
+        });
+        contextMenu.setOnShowing(event -> {
+            EmailAccount selectedAccount = accountListView.getSelectionModel().getSelectedItem();
+            watchItem.setSelected(selectedAccount != null && idleManager.isWatched(selectedAccount));
+        });
+        MenuItem scanItem = new MenuItem("Update Message Counts");
+        scanItem.setOnAction(event -> {
+            if (scanner != null) {
+                scanner.scanNow();
+                statusLabel.setText("Updating message counts...");
+            }
+        });
+        contextMenu.getItems().addAll(copyEmailItem, watchItem, scanItem);
 
         // Set the context menu on the ListView
         accountListView.setContextMenu(contextMenu);
@@ -159,7 +260,12 @@ public class EmailClientGUI extends Application {
         previewCol.setCellValueFactory(data -> new SimpleStringProperty(data.getValue().getPreview()));
         previewCol.setPrefWidth(150);
 
-        emailTableView.getColumns().addAll(subjectCol, senderCol, previewCol);
+        TableColumn<EmailMessage, String> folderCol = new TableColumn<>("Folder");
+        folderCol.setCellValueFactory(data -> new SimpleStringProperty(data.getValue().getFolder()));
+        folderCol.setPrefWidth(70);
+
+        // A List instead of varargs, which would be a generic array of TableColumn<EmailMessage, ?>
+        emailTableView.getColumns().addAll(Arrays.asList(subjectCol, senderCol, previewCol, folderCol));
         emailTableView.setItems(emails);
 
         emailTableView.getSelectionModel().selectedItemProperty().addListener((obs, oldVal, newVal) -> {
@@ -249,9 +355,14 @@ public class EmailClientGUI extends Application {
             }
         });
 
+        // Attachments of the shown email, hidden when there are none
+        attachmentsButton = new MenuButton("Attachments");
+        attachmentsButton.setVisible(false);
+        attachmentsButton.managedProperty().bind(attachmentsButton.visibleProperty());
+
         // Create an HBox for deleteButton and loadImageButton
         HBox actionButtonsBox = new HBox(10); // 10 pixels spacing between buttons
-        actionButtonsBox.getChildren().addAll(loadImageButton, deleteButton);
+        actionButtonsBox.getChildren().addAll(loadImageButton, deleteButton, attachmentsButton);
 
         // Add the actionButtonsBox to the labelsBox
         labelsBox.getChildren().add(actionButtonsBox);
@@ -298,18 +409,42 @@ public class EmailClientGUI extends Application {
 
         executorService.submit(() -> {
             try {
-                accounts = Microsoft.loadEmailAccounts();
+                // Copy-on-write, accounts appended to emails.txt are added while the scanner iterates it
+                accounts = new CopyOnWriteArrayList<>(Microsoft.loadEmailAccounts());
+                if (reloader == null && Microsoft.database == null) {
+                    reloader = AccountReloader.watch(Microsoft.fileName, accounts, this::applyAccountChanges);
+                }
 
                 Platform.runLater(() -> {
                     // Create observable list from accounts
                     accountsObservable.clear();
                     accountsObservable.addAll(accounts);
+                    // Known-dead accounts go to the bottom
+                    FXCollections.sort(accountsObservable, Comparator.comparing(NegativeCache::isDead));
 
                     // Initialize filtered list if not already done
                     if (filteredAccounts == null) {
                         filteredAccounts = new FilteredList<>(accountsObservable, p -> true);
                         accountListView.setItems(filteredAccounts);
                     }
+                    idleManager.start(accounts);
+
+                    // Badges with total/unread counts, kept up to date in the background
+                    if (scanner == null) {
+                        scanner = new AccountScanner(accounts, new AccountScanner.Listener() {
+                            @Override
+                            public void onSummary(EmailAccount account, AccountSummary summary) {
+                                queueSummary(summary);
+                            }
+
+                            @Override
+                            public void onFinished() {
+                                // Tokens refreshed by the scan
+                                executorService.submit(() -> Microsoft.saveEmailAccounts(accounts));
+                            }
+                        });
+                        scanner.start();
+                    }
 
                     // Don't automatically select the first account
                     // Let the user explicitly select an account
@@ -324,79 +459,159 @@ public class EmailClientGUI extends Application {
         });
     }
 
+    /**
+     * Applies changes of emails.txt made while the program runs, see AccountReloader.
+     */
+    private void applyAccountChanges(List<EmailAccount> added, List<EmailAccount> removed) {
+        accounts.addAll(added);
+        accounts.removeAll(new HashSet<>(removed));
+        Platform.runLater(() -> {
+            Set<EmailAccount> gone = new HashSet<>(removed);
+            // The open account stays listed until another one is selected
+            gone.remove(accountListView.getSelectionModel().getSelectedItem());
+            accountsObservable.removeAll(gone);
+            accountsObservable.addAll(added);
+            statusLabel.setText(String.format("emails.txt changed: %d accounts added, %d removed", added.size(), removed.size()));
+        });
+    }
+
     private void loadEmails(EmailAccount account) {
         statusLabel.setText("Loading emails for " + account.getEmail() + "...");
         refreshButton.setDisable(true);
         emails.clear();
+        prefetcher.clear();
 
         // Reset placeholder text to loading message
         emailTableView.setPlaceholder(new Label("Loading emails for " + account.getEmail() + "..."));
 
         executorService.submit(() -> {
             try {
-                if (Microsoft.ensureValidAccessToken(account)) {
-                    // Save updated tokens
-                    Microsoft.saveEmailAccounts(accounts);
-
-                    List<EmailMessage> messages;
-                    if (account.getType().equals(AuthType.GRAPH)) {
-                        try {
-                            messages = Microsoft.getInboxMessagesGraphAPI(account.getAccessToken());
-                        }
-                        catch (InvalidAuthenticationToken e) {
-                            messages = Microsoft.getInboxMessagesIMAPOAuth(account.getEmail(), account.getAccessToken());
-                            account.setType(AuthType.IMAP_OAUTH);
-                        }
-                    }
-                    else if (account.getType().equals(AuthType.IMAP_OAUTH)) {
-                        messages = Microsoft.getInboxMessagesIMAPOAuth(account.getEmail(), account.getAccessToken());
-                    }
-                    else {// account.getType().equals(AuthType.IMAP_BASIC)
-                        messages = Microsoft.getInboxMessagesIMAPBasic(account.getEmail(), account.getPassword());
-                    }
-
-                    List<EmailMessage> finalMessages = messages;
-                    Platform.runLater(() -> {
-                        emails.addAll(finalMessages);
-                        statusLabel.setText("Loaded " + finalMessages.size() + " emails for " + account.getEmail());
-                        refreshButton.setDisable(false);
-
-                        // Update placeholder text if no emails are found
-                        if (finalMessages.isEmpty()) {
-                            emailTableView.setPlaceholder(new Label("No emails found in inbox for " + account.getEmail()));
-                        }
-                    });
+                Deadline.start(Microsoft.ACCOUNT_DEADLINE);
+                try {
+                    Microsoft.refreshAccessToken(account);
                 }
-                else {
+                catch (Exception e) {
+                    Log.error(e, "Failed to authenticate %s", account.getEmail());
+                    recordFailure(account, e);
                     Platform.runLater(() -> {
                         statusLabel.setText("Failed to authenticate account: " + account.getEmail());
                         refreshButton.setDisable(false);
                     });
+                    return;
                 }
+                // Save updated tokens
+                Microsoft.saveEmailAccounts(accounts);
+
+                List<EmailMessage> finalMessages = Microsoft.getInboxMessages(account);
+                recordSuccess(account);
+                Platform.runLater(() -> {
+                    // Messages pushed while loading stay on top, unless the listing has them too
+                    Set<String> ids = new HashSet<>();
+                    for (EmailMessage message : finalMessages) {
+                        ids.add(message.getId());
+                    }
+                    emails.removeIf(message -> ids.contains(message.getId()));
+                    emails.addAll(finalMessages);
+                    statusLabel.setText("Loaded " + finalMessages.size() + " emails for " + account.getEmail());
+                    refreshButton.setDisable(false);
+
+                    // Update placeholder text if no emails are found
+                    if (finalMessages.isEmpty()) {
+                        emailTableView.setPlaceholder(new Label("No emails found in inbox for " + account.getEmail()));
+                    }
+                    else {
+                        prefetchAround(null);
+                    }
+                });
             }
             catch (MailConnectException e) {
                 Platform.runLater(() -> {
                     String message = ThrowableUtil.exceptionMessagesSingleLine(e);
                     statusLabel.setText("Error loading emails: " + message);
                     refreshButton.setDisable(false);
-                    LogUtil.error(message);
                 });
+                Log.error("Error loading emails of %s: %s", account.getEmail(), ThrowableUtil.exceptionMessagesSingleLine(e));
             }
             catch (Exception e) {
+                recordFailure(account, e);
                 Platform.runLater(() -> {
                     String message = ThrowableUtil.exceptionMessagesSingleLine(e);
                     statusLabel.setText("Error loading emails: " + message);
                     refreshButton.setDisable(false);
-                    ThrowableUtil.println(e);
                 });
+                Log.error(e, "Error loading emails of %s", account.getEmail());
+            }
+            finally {
+                Deadline.clear();
             }
         });
     }
 
+    private Label badge(AccountSummary summary) {
+        if (summary == null || summary.getFailure() != null) return null;
+        Label badge = new Label(summary.getUnread() > 0
+                ? summary.getUnread() + " / " + summary.getTotal()
+                : String.valueOf(summary.getTotal()));
+        badge.setStyle(BADGE_STYLE + (summary.getUnread() > 0
+                ? "-fx-background-color: #0078d4; -fx-text-fill: white;"
+                : "-fx-background-color: #e0e0e0; -fx-text-fill: #555555;"));
+        return badge;
+    }
+
+    private void queueSummary(AccountSummary summary) {
+        pendingSummaries.put(summary.getEmail().toLowerCase(), summary);
+        if (!summaryFlushScheduled.compareAndSet(false, true)) return;
+        Platform.runLater(() -> {
+            PauseTransition delay = new PauseTransition(Duration.millis(250));
+            delay.setOnFinished(event -> flushSummaries());
+            delay.play();
+        });
+    }
+
+    private void flushSummaries() {
+        summaryFlushScheduled.set(false);
+        for (String email : pendingSummaries.keySet()) {
+            AccountSummary summary = pendingSummaries.remove(email);
+            if (summary != null) summaries.put(email, summary);
+        }
+        accountListView.refresh();
+    }
+
+    private void onNewMessage(EmailAccount account, EmailMessage message) {
+        if (account == accountListView.getSelectionModel().getSelectedItem()) {
+            for (EmailMessage email : emails) {
+                if (Objects.equals(email.getId(), message.getId())) return;
+            }
+            emails.add(0, message);
+            statusLabel.setText("New email from " + message.getFrom() + ": " + message.getSubject());
+        }
+        else {
+            newMail.merge(account.getEmail().toLowerCase(), 1, Integer::sum);
+            accountListView.refresh();
+            statusLabel.setText("New email for " + account.getEmail() + ": " + message.getSubject());
+        }
+    }
+
+    private void recordFailure(EmailAccount account, Exception e) {
+        NegativeCache.record(account, ResultWriter.classify(e));
+        NegativeCache.save();
+        Platform.runLater(accountListView::refresh);
+    }
+
+    private void recordSuccess(EmailAccount account) {
+        if (!NegativeCache.clear(account)) return;
+        NegativeCache.save();
+        Platform.runLater(accountListView::refresh);
+    }
+
     private void displayEmailContent(EmailMessage email) {
         // Reset state for new email
         originalHtmlContent = null;
         loadImageButton.setDisable(true);
+        attachmentsButton.setVisible(false);
+        attachmentsButton.getItems().clear();
+        EmailAccount account = accountListView.getSelectionModel().getSelectedItem();
+        prefetcher.opened(email);
 
         // Set subject, from, to, and received date labels
         subjectLabel.setText(email.getSubject());
@@ -429,8 +644,8 @@ public class EmailClientGUI extends Application {
         // Load email content in background thread
         executorService.submit(() -> {
             try {
-                // Get email content (this will trigger loadBodyIfNeeded)
-                String content = email.getBody();
+                // Get email content (this will trigger loadBodyIfNeeded), prefetching waits for it
+                String content = prefetcher.interactive(email::getBody);
                 String contentType = email.getContentType();
 
                 // Prepare final content
@@ -467,7 +682,12 @@ public class EmailClientGUI extends Application {
 
                     // Refresh the table view to update the preview text
                     emailTableView.refresh();
+
+                    // The connection is free again, load the neighbours while the user reads
+                    prefetchAround(email);
                 });
+
+                if (account != null) loadAttachments(account, email);
             } catch (Exception e) {
                 // Handle any errors
                 Platform.runLater(() -> {
@@ -481,6 +701,84 @@ public class EmailClientGUI extends Application {
         });
     }
 
+    /**
+     * Prefetches the bodies of the emails after and before the selected one, then of the rows on screen.
+     *
+     * @param selected The selected email, or null for only the rows on screen
+     */
+    private void prefetchAround(EmailMessage selected) {
+        List<EmailMessage> items = emailTableView.getItems();
+        Set<EmailMessage> candidates = new LinkedHashSet<>();
+        int index = selected != null ? items.indexOf(selected) : -1;
+        if (index >= 0) {
+            for (int i = index + 1; i <= Math.min(items.size() - 1, index + PREFETCH_AHEAD); i++) {
+                candidates.add(items.get(i));
+            }
+            for (int i = index - 1; i >= Math.max(0, index - PREFETCH_BEHIND); i--) {
+                candidates.add(items.get(i));
+            }
+        }
+
+        int first = 0;
+        int last = Math.min(items.size(), 10) - 1;
+        VirtualFlow<?> flow = (VirtualFlow<?>) emailTableView.lookup(".virtual-flow");
+        if (flow != null && flow.getFirstVisibleCell() != null && flow.getLastVisibleCell() != null) {
+            first = flow.getFirstVisibleCell().getIndex();
+            last = Math.min(items.size() - 1, flow.getLastVisibleCell().getIndex());
+        }
+        for (int i = Math.max(0, first); i <= last; i++) {
+            candidates.add(items.get(i));
+        }
+        candidates.remove(selected);
+        prefetcher.prefetch(new ArrayList<>(candidates));
+    }
+
+    /**
+     * Lists the attachments of the shown email in the attachments button. Called on a background thread.
+     */
+    private void loadAttachments(EmailAccount account, EmailMessage email) {
+        List<Attachment> attachments;
+        try {
+            attachments = Microsoft.getAttachments(account, email);
+        } catch (Exception e) {
+            ThrowableUtil.println(e);
+            return;
+        }
+        if (attachments.isEmpty()) return;
+
+        Platform.runLater(() -> {
+            // Another email may have been selected in the meantime
+            if (email != emailTableView.getSelectionModel().getSelectedItem()) return;
+            for (Attachment attachment : attachments) {
+                MenuItem item = new MenuItem(attachment.getName() + " (" + formatSize(attachment.getSize()) + ")");
+                item.setOnAction(e -> saveAttachment(account, email, attachment));
+                attachmentsButton.getItems().add(item);
+            }
+            attachmentsButton.setText("Attachments (" + attachments.size() + ")");
+            attachmentsButton.setVisible(true);
+        });
+    }
+
+    private void saveAttachment(EmailAccount account, EmailMessage email, Attachment attachment) {
+        statusLabel.setText("Saving " + attachment.getName() + "...");
+        executorService.submit(() -> {
+            try {
+                Path file = Microsoft.saveAttachment(account, email, attachment);
+                Platform.runLater(() -> statusLabel.setText("Saved " + attachment.getName() + " to " + file.toAbsolutePath()));
+            } catch (Exception e) {
+                ThrowableUtil.println(e);
+                Platform.runLater(() -> statusLabel.setText("Error saving " + attachment.getName() + ": " + e.getMessage()));
+            }
+        });
+    }
+
+    private static String formatSize(long bytes) {
+        if (bytes < 0) return "unknown size";
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return (bytes / 1024) + " KB";
+        return String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+
     /**
      * Filters the accounts list based on the search text.
      * 
@@ -506,7 +804,12 @@ public class EmailClientGUI extends Application {
     @Override
     public void stop() {
         // Close any open IMAP connections
+        idleManager.close();
+        if (scanner != null) scanner.stop();
+        if (reloader != null) reloader.stop();
+        prefetcher.shutdown();
         Microsoft.closeCurrentConnection();
+        ImapConnectionPool.closeAll();
 
         // Shutdown the executor service
         executorService.shutdown();
@@ -606,7 +909,7 @@ public class EmailClientGUI extends Application {
                     try {
                         // Ensure we have a valid access token
                         if (Microsoft.ensureValidAccessToken(selectedAccount)) {
-                            boolean success = Microsoft.deleteEmail(selectedAccount, email.getId());
+                            boolean success = Microsoft.deleteEmail(selectedAccount, email);
 
                             Platform.runLater(() -> {
                                 if (success) {
@@ -0,0 +1,124 @@
+package net.tokenu.mail.ui;
+
+import com.commons.FileUtil;
+import com.commons.ThrowableUtil;
+import javafx.application.Platform;
+import net.tokenu.mail.model.EmailAccount;
+import net.tokenu.mail.model.EmailMessage;
+import net.tokenu.mail.service.MessageWaiter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pushes new mail into the GUI without a refresh. The selected account and the watched accounts are
+ * watched through the {@link MessageWaiter}: IMAP IDLE where the server has it, adaptive NOOP polling
+ * where it doesn't, Graph delta queries for Graph accounts.
+ * The watched accounts are kept in watched.txt, one email per line.
+ * All methods are called on the JavaFX thread, and so is the listener.
+ */
+public class IdleManager {
+    public static String fileName = "watched.txt";
+
+    public interface Listener {
+        void onNewMessage(EmailAccount account, EmailMessage message);
+    }
+
+    private final Listener listener;
+    private final Set<String> watched = new LinkedHashSet<>();
+    private final Map<String, MessageWaiter.Watch> watches = new HashMap<>();
+    private EmailAccount selected;
+
+    public IdleManager(Listener listener) {
+        this.listener = listener;
+        File file = new File(fileName);
+        if (!file.exists()) return;
+        try {
+            for (String line : FileUtil.readAllLines(fileName)) {
+                if (!line.trim().isEmpty()) watched.add(line.trim().toLowerCase());
+            }
+        }
+        catch (Exception e) {
+            ThrowableUtil.println(e);
+        }
+    }
+
+    /**
+     * Starts watching the accounts of watched.txt.
+     */
+    public void start(List<EmailAccount> accounts) {
+        for (EmailAccount account : accounts) {
+            if (watched.contains(key(account))) open(account);
+        }
+    }
+
+    /**
+     * Watches the newly selected account, and stops watching the previous one unless it is in the watched list.
+     */
+    public void select(EmailAccount account) {
+        EmailAccount previous = selected;
+        selected = account;
+        if (previous != null && previous != account && !isWatched(previous)) close(previous);
+        if (account != null) open(account);
+    }
+
+    public boolean isWatched(EmailAccount account) {
+        return watched.contains(key(account));
+    }
+
+    /**
+     * Adds an account to or removes it from the watched list, which is saved right away.
+     */
+    public void setWatched(EmailAccount account, boolean watch) {
+        if (watch) {
+            watched.add(key(account));
+            open(account);
+        }
+        else {
+            watched.remove(key(account));
+            if (account != selected) close(account);
+        }
+
+        try {
+            FileUtil.write(new ArrayList<>(watched), fileName);
+        }
+        catch (Exception e) {
+            ThrowableUtil.println(e);
+        }
+    }
+
+    public void close() {
+        for (MessageWaiter.Watch watch : watches.values()) {
+            watch.close();
+        }
+        watches.clear();
+    }
+
+    private void open(EmailAccount account) {
+        String key = key(account);
+        MessageWaiter.Watch current = watches.get(key);
+        // A watch is closed by the waiter when the account's credentials were rejected, selecting it retries
+        if (current != null && !current.isClosed()) return;
+
+        MessageWaiter.Watch[] watch = new MessageWaiter.Watch[1];
+        watch[0] = MessageWaiter.getInstance().watch(account, message -> Platform.runLater(() -> {
+            // Closed or replaced while this message was on its way
+            if (watches.get(key) == watch[0]) listener.onNewMessage(account, message);
+        }));
+        watches.put(key, watch[0]);
+    }
+
+    private void close(EmailAccount account) {
+        MessageWaiter.Watch watch = watches.remove(key(account));
+        if (watch != null) watch.close();
+    }
+
+    private static String key(EmailAccount account) {
+        return account.getEmail().toLowerCase();
+    }
+}
@@ -0,0 +1,133 @@
+package net.tokenu.mail.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aho-Corasick automaton matching many keywords in one pass, ignoring case.
+ * The trie is compacted into sorted arrays after construction, so searching allocates nothing.
+ */
+public class AhoCorasick {
+    /**
+     * Receives every keyword occurrence. end is the index after the last matched character.
+     */
+    public interface Hit {
+        void onMatch(int pattern, int end);
+    }
+
+    private static final int[] NONE = new int[0];
+
+    private final char[][] keys;
+    private final int[][] next;
+    private final int[] fail;
+    private final int[][] outputs;
+    private final int patterns;
+
+    /**
+     * @param keywords The keywords, the index in the list is the pattern reported to {@link Hit}
+     */
+    public AhoCorasick(List<String> keywords) {
+        this.patterns = keywords.size();
+
+        // Build the trie with maps, then freeze it into arrays
+        List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        List<List<Integer>> out = new ArrayList<>();
+        trie.add(new TreeMap<>());
+        out.add(new ArrayList<>());
+        for (int p = 0; p < keywords.size(); p++) {
+            String keyword = keywords.get(p);
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                char c = Character.toLowerCase(keyword.charAt(i));
+                Integer child = trie.get(state).get(c);
+                if (child == null) {
+                    child = trie.size();
+                    trie.add(new TreeMap<>());
+                    out.add(new ArrayList<>());
+                    trie.get(state).put(c, child);
+                }
+                state = child;
+            }
+            if (!keyword.isEmpty()) out.get(state).add(p);
+        }
+
+        int size = trie.size();
+        keys = new char[size][];
+        next = new int[size][];
+        for (int s = 0; s < size; s++) {
+            Map<Character, Integer> children = trie.get(s);
+            keys[s] = new char[children.size()];
+            next[s] = new int[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> child : children.entrySet()) {
+                keys[s][i] = child.getKey();
+                next[s][i] = child.getValue();
+                i++;
+            }
+        }
+
+        // Breadth-first failure links, outputs of the failure state are merged in
+        fail = new int[size];
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int child : next[0]) {
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int s = queue.poll();
+            for (int i = 0; i < keys[s].length; i++) {
+                char c = keys[s][i];
+                int child = next[s][i];
+                int f = fail[s];
+                while (f != 0 && transition(f, c) < 0) f = fail[f];
+                int target = transition(f, c);
+                fail[child] = target >= 0 && target != child ? target : 0;
+                out.get(child).addAll(out.get(fail[child]));
+                queue.add(child);
+            }
+        }
+
+        outputs = new int[size][];
+        for (int s = 0; s < size; s++) {
+            List<Integer> list = out.get(s);
+            if (list.isEmpty()) {
+                outputs[s] = NONE;
+                continue;
+            }
+            outputs[s] = new int[list.size()];
+            for (int i = 0; i < list.size(); i++) outputs[s][i] = list.get(i);
+        }
+    }
+
+    private int transition(int state, char c) {
+        int i = Arrays.binarySearch(keys[state], c);
+        return i >= 0 ? next[state][i] : -1;
+    }
+
+    /**
+     * Reports every keyword occurrence in the text, in order of their end.
+     */
+    public void search(CharSequence text, Hit hit) {
+        if (text == null) return;
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            int target;
+            while ((target = transition(state, c)) < 0 && state != 0) {
+                state = fail[state];
+            }
+            state = Math.max(target, 0);
+            for (int pattern : outputs[state]) {
+                hit.onMatch(pattern, i + 1);
+            }
+        }
+    }
+
+    public int getPatterns() {
+        return patterns;
+    }
+}
@@ -0,0 +1,20 @@
+package net.tokenu.mail.util;
+
+public class CircuitOpenException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAt;
+
+    /**
+     * @param message The error message
+     * @param retryAt Epoch millis at which the breaker lets a probe through
+     */
+    public CircuitOpenException(String message, long retryAt) {
+        super(message);
+        this.retryAt = retryAt;
+    }
+
+    public long getRetryAt() {
+        return retryAt;
+    }
+}
@@ -0,0 +1,81 @@
+package net.tokenu.mail.util;
+
+/**
+ * Time budget for the work done on one account (token refresh, connect and fetch).
+ * The deadline is bound to the current thread so the steps can check it without passing it around,
+ * worker threads that act for the account attach it explicitly.
+ */
+public class Deadline {
+    private static final ThreadLocal<Deadline> current = new ThreadLocal<>();
+
+    private final long expiresAt;
+
+    private Deadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Starts a deadline on the current thread.
+     *
+     * @param millis The time budget in milliseconds
+     * @return The new deadline
+     */
+    public static Deadline start(long millis) {
+        Deadline deadline = new Deadline(System.currentTimeMillis() + millis);
+        current.set(deadline);
+        return deadline;
+    }
+
+    /**
+     * @return The deadline of the current thread, or null if none
+     */
+    public static Deadline current() {
+        return current.get();
+    }
+
+    /**
+     * Binds a deadline to the current thread, e.g. inside a task running for another thread.
+     *
+     * @param deadline The deadline, or null to clear
+     */
+    public static void attach(Deadline deadline) {
+        if (deadline == null) current.remove();
+        else current.set(deadline);
+    }
+
+    public static void clear() {
+        current.remove();
+    }
+
+    /**
+     * Throws if the current thread's deadline has passed.
+     *
+     * @param stage What was about to start, for the error message
+     */
+    public static void check(String stage) {
+        Deadline deadline = current.get();
+        if (deadline != null && deadline.isExpired()) {
+            throw new DeadlineExceededException("Deadline exceeded before " + stage);
+        }
+    }
+
+    /**
+     * Limits a timeout to the time left on the current thread's deadline.
+     *
+     * @param timeoutMillis The timeout that would be used without a deadline
+     * @return The smaller of the two, at least 1
+     */
+    public static int cap(int timeoutMillis) {
+        Deadline deadline = current.get();
+        if (deadline == null) return timeoutMillis;
+        return (int) Math.max(1, Math.min(timeoutMillis, deadline.remaining()));
+    }
+
+    public long remaining() {
+        return Math.max(0, expiresAt - System.currentTimeMillis());
+    }
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= expiresAt;
+    }
+}
@@ -0,0 +1,9 @@
+package net.tokenu.mail.util;
+
+public class DeadlineExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,224 @@
+package net.tokenu.mail.util;
+
+import com.commons.LogUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Tells listeners when files change, through a WatchService on their directories.
+ * <p>
+ * A file that only grew is reported as {@link Listener#appended} with the byte range of the new complete lines,
+ * so only that part has to be parsed; a line still being written (no line break yet) waits for the next change.
+ * Growth is told apart from a rewrite by a checksum of the bytes just before the previous end.
+ * Anything else (shorter, rewritten, replaced by a move) is reported as {@link Listener#replaced}.
+ * <p>
+ * The program's own saves of a watched file go through {@link #write}, so they aren't reported back to it.
+ */
+public class FileWatcher {
+    // Changes arriving in quick succession are handled together after this many milliseconds
+    public static long DEBOUNCE = 200;
+    private static final int FINGERPRINT = 4096;
+
+    public interface Listener {
+        /**
+         * @param from Start of the first new line
+         * @param to End of the last complete new line, after its line break
+         */
+        void appended(Path file, long from, long to) throws Exception;
+
+        void replaced(Path file) throws Exception;
+    }
+
+    public interface Write {
+        void run() throws IOException;
+    }
+
+    private static class Watched {
+        final Path file;
+        final Listener listener;
+        // End of the last complete line that was reported
+        long consumed;
+        long fingerprint;
+
+        Watched(Path file, Listener listener) {
+            this.file = file;
+            this.listener = listener;
+        }
+    }
+
+    private static final Map<Path, Watched> watched = new ConcurrentHashMap<>();
+    private static final Map<Path, WatchKey> directories = new ConcurrentHashMap<>();
+    private static WatchService service;
+
+    /**
+     * Starts reporting changes of the file, made after this call, to the listener. The current content is
+     * expected to be loaded already.
+     */
+    public static synchronized void watch(Path file, Listener listener) throws IOException {
+        file = file.toAbsolutePath().normalize();
+        Watched entry = new Watched(file, listener);
+        sync(entry);
+        watched.put(file, entry);
+
+        if (service == null) {
+            service = FileSystems.getDefault().newWatchService();
+            Thread thread = new Thread(FileWatcher::run, "file-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Path directory = file.getParent();
+        if (!directories.containsKey(directory)) {
+            directories.put(directory, directory.register(service,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY));
+        }
+    }
+
+    public static void unwatch(Path file) {
+        watched.remove(file.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Writes a file, watched or not, without reporting the write as a change: the content afterwards is taken as
+     * seen. Changes made before are reported first, on the calling thread, so lines appended just before a save
+     * that copies the file are still loaded.
+     */
+    public static void write(Path file, Write write) throws IOException {
+        Watched entry = watched.get(file.toAbsolutePath().normalize());
+        if (entry == null) {
+            write.run();
+            return;
+        }
+        synchronized (entry) {
+            check(entry);
+            write.run();
+            sync(entry);
+        }
+        Metrics.increment("watcher.written");
+    }
+
+    /**
+     * Reads the lines in a byte range of a file, e.g. one reported by {@link Listener#appended}.
+     */
+    public static List<String> readLines(Path file, long from, long to) throws IOException {
+        byte[] bytes = read(file, from, to);
+        List<String> lines = new ArrayList<>();
+        for (String line : new String(bytes, StandardCharsets.UTF_8).split("\n")) {
+            line = line.trim();
+            if (!line.isEmpty()) lines.add(line);
+        }
+        return lines;
+    }
+
+    private static void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+                // Let a writer finish and collect the events of a save that creates and then moves a file
+                Thread.sleep(DEBOUNCE);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            Path directory = (Path) key.watchable();
+            key.pollEvents();
+            key.reset();
+
+            // The events only name the directory entry, checking each file of the directory is simpler and cheap
+            for (Watched entry : watched.values()) {
+                if (!entry.file.getParent().equals(directory)) continue;
+                synchronized (entry) {
+                    check(entry);
+                }
+            }
+        }
+    }
+
+    // Called with the entry locked, so it doesn't run during a write
+    private static void check(Watched entry) {
+        try {
+            if (!Files.exists(entry.file)) return;
+            long size = Files.size(entry.file);
+            if (size == entry.consumed && fingerprint(entry.file, entry.consumed) == entry.fingerprint) return;
+
+            if (size > entry.consumed && fingerprint(entry.file, entry.consumed) == entry.fingerprint) {
+                long end = lastLineEnd(entry.file, entry.consumed, size);
+                if (end <= entry.consumed) return;
+                long from = entry.consumed;
+                entry.consumed = end;
+                entry.fingerprint = fingerprint(entry.file, end);
+                Metrics.increment("watcher.appended");
+                entry.listener.appended(entry.file, from, end);
+            }
+            else {
+                sync(entry);
+                Metrics.increment("watcher.replaced");
+                entry.listener.replaced(entry.file);
+            }
+        }
+        catch (Exception e) {
+            LogUtil.error("Error reloading " + entry.file + ": " + e.getMessage());
+        }
+    }
+
+    // Treats everything up to the last line break as reported
+    private static void sync(Watched entry) throws IOException {
+        long size = Files.exists(entry.file) ? Files.size(entry.file) : 0;
+        entry.consumed = lastLineEnd(entry.file, 0, size);
+        entry.fingerprint = fingerprint(entry.file, entry.consumed);
+    }
+
+    /**
+     * @return The position after the last line break in [from, to), or from if there is none
+     */
+    private static long lastLineEnd(Path file, long from, long to) throws IOException {
+        if (to <= from) return from;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            long end = to;
+            while (end > from) {
+                long start = Math.max(from, end - buffer.capacity());
+                buffer.clear();
+                buffer.limit((int) (end - start));
+                while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) > 0) ;
+                for (int i = buffer.position() - 1; i >= 0; i--) {
+                    if (buffer.get(i) == '\n') return start + i + 1;
+                }
+                end = start;
+            }
+            return from;
+        }
+    }
+
+    // CRC32 of the bytes before end, to tell whether they're still the same
+    private static long fingerprint(Path file, long end) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(read(file, Math.max(0, end - FINGERPRINT), end));
+        return crc.getValue();
+    }
+
+    private static byte[] read(Path file, long from, long to) throws IOException {
+        if (to <= from) return new byte[0];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) (to - from));
+            while (buffer.hasRemaining() && channel.read(buffer, from + buffer.position()) > 0) ;
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        }
+    }
+}
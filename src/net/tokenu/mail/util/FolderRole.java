@@ -0,0 +1,53 @@
+package net.tokenu.mail.util;
+
+/**
+ * Well-known mail folders, found by their RFC 6154 SPECIAL-USE attribute on IMAP
+ * (or by the usual names when the server has no SPECIAL-USE) and by their well-known name on Graph.
+ */
+public enum FolderRole {
+    INBOX(null, "inbox", "INBOX"),
+    JUNK("\\Junk", "junkemail", "Junk", "Junk Email", "Junk E-mail", "Spam", "Bulk Mail"),
+    ARCHIVE("\\Archive", "archive", "Archive"),
+    SENT("\\Sent", "sentitems", "Sent", "Sent Items", "Sent Messages"),
+    DRAFTS("\\Drafts", "drafts", "Drafts"),
+    TRASH("\\Trash", "deleteditems", "Trash", "Deleted Items", "Deleted Messages");
+
+    private final String attribute;
+    private final String graphName;
+    private final String[] names;
+
+    FolderRole(String attribute, String graphName, String... names) {
+        this.attribute = attribute;
+        this.graphName = graphName;
+        this.names = names;
+    }
+
+    /**
+     * @return The SPECIAL-USE attribute, e.g. \Junk, or null for INBOX
+     */
+    public String getAttribute() {
+        return attribute;
+    }
+
+    public String getGraphName() {
+        return graphName;
+    }
+
+    public boolean hasName(String folderName) {
+        for (String name : names) {
+            if (name.equalsIgnoreCase(folderName)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param value A role name such as "junk", case-insensitive
+     * @return The role, or null if the value is a folder name
+     */
+    public static FolderRole parse(String value) {
+        for (FolderRole role : values()) {
+            if (role.name().equalsIgnoreCase(value)) return role;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,25 @@
+package net.tokenu.mail.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Access-ordered map that drops the entry used least recently once it holds more than its capacity,
+ * for caches by account that must not grow with the number of accounts. Wrap it with
+ * Collections.synchronizedMap to share it between threads.
+ */
+public class LeastRecentlyUsedMap<K, V> extends LinkedHashMap<K, V> {
+    private static final long serialVersionUID = 1L;
+
+    private final int capacity;
+
+    public LeastRecentlyUsedMap(int capacity) {
+        super(16, 0.75f, true);
+        this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > capacity;
+    }
+}
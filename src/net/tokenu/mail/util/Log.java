@@ -0,0 +1,187 @@
+package net.tokenu.mail.util;
+
+import com.commons.ThrowableUtil;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous console log for hot paths. Callers only claim a slot in a lock-free ring buffer and store the
+ * format and its arguments; formatting and console output happen on one appender thread, so threads logging at the
+ * same time never wait on each other or on the console.
+ * <p>
+ * A disabled level returns before anything is allocated besides the varargs array, use the Supplier overloads or
+ * {@link #isEnabled} around arguments that are expensive to compute. Arguments are formatted later on the appender
+ * thread and must not change after the call. When the buffer is full, entries are dropped and counted as
+ * "log.dropped" instead of blocking the caller.
+ * <p>
+ * The appender sleeps while the buffer is empty and is woken by the entry it waits for. Each burst of entries
+ * is written to System.out at once, the stream LogUtil prints to, so lines of both stay whole and in order.
+ */
+public class Log {
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR
+    }
+
+    public static volatile Level LEVEL = Level.INFO;
+
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+
+    // Slot i holds the entry with sequence s when published[i] == s
+    private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private static final Level[] levels = new Level[CAPACITY];
+    private static final long[] times = new long[CAPACITY];
+    private static final String[] threads = new String[CAPACITY];
+    private static final String[] formats = new String[CAPACITY];
+    private static final Object[][] arguments = new Object[CAPACITY][];
+    private static final Throwable[] throwables = new Throwable[CAPACITY];
+
+    private static final AtomicLong claimed = new AtomicLong();
+    private static volatile long consumed;
+    private static final LongAdder dropped = new LongAdder();
+
+    // Characters written to System.out at once at most
+    private static final int BATCH = 64 * 1024;
+    private static final SimpleDateFormat TIME = new SimpleDateFormat("HH:mm:ss.SSS");
+    private static final Thread appender;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            published.set(i, -1);
+        }
+        appender = new Thread(Log::append, "log-appender");
+        appender.setDaemon(true);
+        appender.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000)));
+        Metrics.gauge("log.dropped", dropped::sum);
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= LEVEL.ordinal();
+    }
+
+    public static void debug(String format, Object... args) {
+        if (isEnabled(Level.DEBUG)) enqueue(Level.DEBUG, format, args, null);
+    }
+
+    /**
+     * @param message Called on the calling thread, only if DEBUG is enabled
+     */
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) enqueue(Level.DEBUG, message.get(), null, null);
+    }
+
+    public static void info(String format, Object... args) {
+        if (isEnabled(Level.INFO)) enqueue(Level.INFO, format, args, null);
+    }
+
+    /**
+     * @param message Called on the calling thread, only if INFO is enabled
+     */
+    public static void info(Supplier<String> message) {
+        if (isEnabled(Level.INFO)) enqueue(Level.INFO, message.get(), null, null);
+    }
+
+    public static void warn(String format, Object... args) {
+        if (isEnabled(Level.WARN)) enqueue(Level.WARN, format, args, null);
+    }
+
+    public static void error(String format, Object... args) {
+        if (isEnabled(Level.ERROR)) enqueue(Level.ERROR, format, args, null);
+    }
+
+    public static void error(Throwable throwable, String format, Object... args) {
+        if (isEnabled(Level.ERROR)) enqueue(Level.ERROR, format, args, throwable);
+    }
+
+    /**
+     * Waits until everything logged so far was written, e.g. before the process exits.
+     *
+     * @param timeoutMillis How long to wait at most
+     */
+    public static void flush(long timeoutMillis) {
+        long target = claimed.get();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (consumed < target && System.currentTimeMillis() < deadline) {
+            LockSupport.unpark(appender);
+            LockSupport.parkNanos(1_000_000);
+        }
+        System.out.flush();
+    }
+
+    private static void enqueue(Level level, String format, Object[] args, Throwable throwable) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) (sequence & MASK);
+        levels[slot] = level;
+        times[slot] = System.currentTimeMillis();
+        threads[slot] = Thread.currentThread().getName();
+        formats[slot] = format;
+        arguments[slot] = args;
+        throwables[slot] = throwable;
+        // Publishes the plain writes above to the appender
+        published.set(slot, sequence);
+        // The appender caught up to this entry, it is asleep or about to check this slot once more
+        if (consumed >= sequence) LockSupport.unpark(appender);
+    }
+
+    private static void append() {
+        String separator = System.lineSeparator();
+        StringBuilder batch = new StringBuilder();
+        long next = 0;
+        while (true) {
+            int slot = (int) (next & MASK);
+            if (published.get(slot) != next) {
+                if (batch.length() > 0) {
+                    write(batch);
+                    continue;
+                }
+                // Until enqueue publishes the entry at consumed
+                LockSupport.park();
+                continue;
+            }
+
+            batch.append(format(slot)).append(separator);
+            Throwable throwable = throwables[slot];
+            if (throwable != null) batch.append(ThrowableUtil.getString(throwable)).append(separator);
+            arguments[slot] = null;
+            throwables[slot] = null;
+            consumed = ++next;
+            if (batch.length() >= BATCH) write(batch);
+        }
+    }
+
+    private static void write(StringBuilder batch) {
+        System.out.print(batch);
+        System.out.flush();
+        batch.setLength(0);
+    }
+
+    private static String format(int slot) {
+        String message;
+        try {
+            Object[] args = arguments[slot];
+            message = args == null || args.length == 0 ? formats[slot] : String.format(formats[slot], args);
+        }
+        catch (RuntimeException e) {
+            message = formats[slot] + " (bad format: " + e + ")";
+        }
+        return TIME.format(new Date(times[slot])) + " " + levels[slot] + " [" + threads[slot] + "] " + message;
+    }
+}
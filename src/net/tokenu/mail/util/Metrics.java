@@ -0,0 +1,107 @@
+package net.tokenu.mail.util;
+
+import com.commons.LogUtil;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide counters, timers and gauges.
+ * Names are dotted, e.g. "tls.handshake.resumed", and a snapshot is printed at the end of bulk runs.
+ */
+public class Metrics {
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private static final Map<String, Supplier<?>> gauges = new ConcurrentHashMap<>();
+
+    public static class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long millis) {
+            count.increment();
+            total.add(millis);
+            max.accumulateAndGet(millis, Math::max);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getAverage() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) total.sum() / n;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d avg=%.1fms max=%dms", getCount(), getAverage(), getMax());
+        }
+    }
+
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    public static void add(String name, long value) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(value);
+    }
+
+    public static long get(String name) {
+        LongAdder counter = counters.get(name);
+        return counter != null ? counter.sum() : 0;
+    }
+
+    public static Timer timer(String name) {
+        return timers.computeIfAbsent(name, k -> new Timer());
+    }
+
+    public static void time(String name, long millis) {
+        timer(name).record(millis);
+    }
+
+    /**
+     * Registers a value that is read when a snapshot is taken, replacing any gauge with the same name.
+     */
+    public static void gauge(String name, Supplier<?> supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public static void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * @return All counters, timers and gauges sorted by name
+     */
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new TreeMap<>();
+        counters.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+        timers.forEach((name, timer) -> snapshot.put(name, timer.toString()));
+        gauges.forEach((name, gauge) -> {
+            try {
+                snapshot.put(name, gauge.get());
+            } catch (Exception e) {
+                snapshot.put(name, e.getMessage());
+            }
+        });
+        return snapshot;
+    }
+
+    public static void print() {
+        Map<String, Object> snapshot = snapshot();
+        if (snapshot.isEmpty()) return;
+        StringBuilder sb = new StringBuilder("Metrics:");
+        snapshot.forEach((name, value) -> sb.append("\n  ").append(name).append(" = ").append(value));
+        LogUtil.log(sb.toString());
+    }
+}
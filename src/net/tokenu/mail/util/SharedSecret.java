@@ -0,0 +1,60 @@
+package net.tokenu.mail.util;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Secret that clients of the coordinator and the daemon must send with every request,
+ * since both hand out account credentials. Set with --secret or the MAILCLIENT_SECRET environment variable.
+ */
+public class SharedSecret {
+    public static final String ENVIRONMENT = "MAILCLIENT_SECRET";
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * @return The secret from the environment, or null
+     */
+    public static String fromEnvironment() {
+        String secret = System.getenv(ENVIRONMENT);
+        return secret != null && !secret.isEmpty() ? secret : null;
+    }
+
+    /**
+     * @return 32 random bytes as hex
+     */
+    public static String generate() {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Compares in constant time, so the secret can't be guessed byte by byte from response times.
+     */
+    public static boolean matches(String secret, String given) {
+        if (secret == null || given == null) return false;
+        return MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), given.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the configured secret, or generates one for a server that only listens on the loopback address.
+     *
+     * @param what The server, for the error message
+     * @throws IllegalArgumentException If the server would listen on another address without a configured secret
+     */
+    public static String forBind(InetAddress bind, String secret, String what) {
+        if (secret != null) return secret;
+        if (!bind.isLoopbackAddress()) {
+            throw new IllegalArgumentException(what + " only listens on " + bind.getHostAddress()
+                    + " with --secret or " + ENVIRONMENT + " set");
+        }
+        return generate();
+    }
+}
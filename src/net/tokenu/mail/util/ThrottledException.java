@@ -0,0 +1,20 @@
+package net.tokenu.mail.util;
+
+public class ThrottledException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfter;
+
+    /**
+     * @param message The error message
+     * @param retryAfter Milliseconds the server asked us to wait, or -1 if it did not say
+     */
+    public ThrottledException(String message, long retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}